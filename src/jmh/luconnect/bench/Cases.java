@@ -0,0 +1,42 @@
+package luconnect.bench;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.Map;
+
+// JMH won't generate benchmarks in the default package and code in a package can't name the server's classes,
+// so the benchmarks are BenchmarkSuite's own, looked up by name through BenchmarkSuite.cases and run through a
+// method handle, which the JIT inlines like a direct call
+final class Cases {
+    private static final MethodHandle RUN;
+
+    static {
+        try {
+            Class<?> op = Class.forName("Benchmark$Op");
+            RUN = MethodHandles.publicLookup().findVirtual(op, "run", MethodType.methodType(long.class))
+                    .asType(MethodType.methodType(long.class, Object.class));
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    private Cases() {
+    }
+
+    // a Benchmark.Op for the named benchmark at this message size and user count
+    static Object find(String name, int size, int users) throws Exception {
+        Map<?, ?> cases = (Map<?, ?>) Class.forName("BenchmarkSuite")
+                .getMethod("cases", String.class, int.class, int.class)
+                .invoke(null, name, size, users);
+        Object op = cases.get(name);
+        if (op == null) {
+            throw new IllegalArgumentException("no benchmark " + name + ", the database ones need the sqlite jar");
+        }
+        return op;
+    }
+
+    static long run(Object op) throws Throwable {
+        return (long) RUN.invokeExact(op);
+    }
+}
@@ -0,0 +1,41 @@
+package luconnect.bench;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+// the DatabaseManager lookups against a temporary users database holding this many users
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DatabaseBenchmarks {
+    @Param({"db.storedPassword", "db.getAllUsers"})
+    String name;
+
+    @Param({"100", "10000"})
+    int users;
+
+    private Object op;
+
+    @Setup
+    public void setup() throws Exception {
+        op = Cases.find(name, 0, users);
+    }
+
+    @Benchmark
+    public long run() throws Throwable {
+        return Cases.run(op);
+    }
+}
@@ -0,0 +1,45 @@
+package luconnect.bench;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+// routing TO, MSG and FILE_CHUNK frames through MessageRouter on both protocols into sessions that discard them,
+// and EncryptionUtils, for each message size. file chunks are always a whole chunk and sha256 a short string.
+// threads are picked with -t, e.g. java -jar target/benchmarks.jar -t 4 -p size=100 MessageBenchmarks
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MessageBenchmarks {
+    @Param({"routing.to.text", "routing.to.binary", "routing.to.binary.rate_limited", "routing.msg.binary",
+            "routing.file_chunk.text", "routing.file_chunk.binary",
+            "crypto.encrypt", "crypto.decrypt", "crypto.seal", "crypto.open", "crypto.sha256"})
+    String name;
+
+    @Param({"100", "4096"})
+    int size;
+
+    private Object op;
+
+    @Setup
+    public void setup() throws Exception {
+        op = Cases.find(name, size, 0);
+    }
+
+    @Benchmark
+    public long run() throws Throwable {
+        return Cases.run(op);
+    }
+}
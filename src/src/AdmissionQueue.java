@@ -0,0 +1,112 @@
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+// FIFO admission to the MAX_CLIENTS slots, a freed slot is handed straight to the head of the queue
+// and one ticker thread sends the WAIT/QUEUE updates to everyone still waiting
+public class AdmissionQueue {
+    // what the queue needs from a connection waiting for a slot
+    public interface Waiter {
+        // the slot is now held by this waiter, it must call release() when the session ends
+        void admit();
+
+        void update(long waitSeconds, int position);
+
+        // the queue is already at its maximum depth
+        void reject();
+    }
+
+    private final int maxQueue;
+    private int available;
+    // waiter to the System.nanoTime it was queued at, in arrival order
+    private final LinkedHashMap<Waiter, Long> queue = new LinkedHashMap<>();
+
+    public AdmissionQueue(int maxClients, int maxQueue) {
+        this.available = maxClients;
+        this.maxQueue = maxQueue;
+        ScheduledExecutorService ticker = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "admission-ticker");
+            t.setDaemon(true);
+            return t;
+        });
+        ticker.scheduleAtFixedRate(this::tick, 1, 1, TimeUnit.SECONDS);
+    }
+
+    public void request(Waiter waiter) {
+        int position;
+        synchronized (this) {
+            if (available > 0 && queue.isEmpty()) {
+                available--;
+                position = 0;
+                ServerMetrics.admissionWait(0);
+            } else if (maxQueue > 0 && queue.size() >= maxQueue) {
+                position = -1;
+            } else {
+                queue.put(waiter, System.nanoTime());
+                position = queue.size();
+            }
+        }
+        // callbacks run outside the lock, they write to sockets
+        if (position == 0) {
+            waiter.admit();
+        } else if (position < 0) {
+            waiter.reject();
+        } else {
+            waiter.update(0, position);
+        }
+    }
+
+    public void release() {
+        Waiter next = null;
+        synchronized (this) {
+            Iterator<Map.Entry<Waiter, Long>> it = queue.entrySet().iterator();
+            if (it.hasNext()) {
+                Map.Entry<Waiter, Long> head = it.next();
+                next = head.getKey();
+                ServerMetrics.admissionWait(System.nanoTime() - head.getValue());
+                it.remove();
+            } else {
+                available++;
+            }
+        }
+        // the slot passes directly to the next waiter without ever being free
+        if (next != null) {
+            next.admit();
+        }
+    }
+
+    // a waiting connection went away before it was admitted
+    public synchronized void cancel(Waiter waiter) {
+        queue.remove(waiter);
+    }
+
+    public synchronized int queued() {
+        return queue.size();
+    }
+
+    private void tick() {
+        Waiter[] waiters;
+        long[] queuedAt;
+        synchronized (this) {
+            waiters = new Waiter[queue.size()];
+            queuedAt = new long[queue.size()];
+            int i = 0;
+            for (Map.Entry<Waiter, Long> entry : queue.entrySet()) {
+                waiters[i] = entry.getKey();
+                queuedAt[i++] = entry.getValue();
+            }
+        }
+        long now = System.nanoTime();
+        for (int i = 0; i < waiters.length; i++) {
+            try {
+                waiters[i].update((now - queuedAt[i]) / 1_000_000_000L, i + 1);
+            } catch (Exception e) {
+                // one broken connection mustn't stop the updates for the rest
+                e.printStackTrace();
+            }
+        }
+    }
+}
@@ -0,0 +1,176 @@
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.charset.StandardCharsets;
+import java.security.KeyPair;
+import java.security.SecureRandom;
+import java.util.Base64;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+// signing in over the protocol, so only the server opens users.db. the first frame from a client is one of
+//   "AUTH:username:password"       an existing user
+//   "REGISTER:username:password"   a new user, signed in once they are added
+//   "RESUME:username:token"        the token from an earlier AUTH_OK, without checking the password again
+// answered with "AUTH_OK:token" or "AUTH_FAIL:reason". before AUTH or REGISTER the client sends "KEY:public key",
+// an X25519 key of its own for this connection, and is answered with the server's. the password payload is sealed
+// like a message with the key both work out from those and the username as associated data, so it can't be read
+// off the wire the way the fixed message key allows. after luconnect.signInAttempts failures the connection gets
+// no more checks. checking and hashing run on the Credentials pool, nothing else from the client is handled until
+// it is signed in. tokens are only known to the node that issued them and each one is used once, a RESUME gets a
+// new one
+public class Auth {
+    private static final long TOKEN_NANOS = TimeUnit.HOURS.toNanos(ServerConfig.TOKEN_HOURS);
+    // expired tokens are only swept once there are this many
+    private static final int SWEEP_AT = 10_000;
+
+    private static class Token {
+        final String username;
+        final long expires;
+
+        Token(String username, long expires) {
+            this.username = username;
+            this.expires = expires;
+        }
+
+        boolean expired() {
+            return System.nanoTime() - expires > 0;
+        }
+    }
+
+    private static final SecureRandom random = new SecureRandom();
+    private static final Map<String, Token> tokens = new ConcurrentHashMap<>();
+    // sessions with a check or signup on the pool, a client gets one at a time
+    private static final Map<ClientSession, Boolean> pending = new ConcurrentHashMap<>();
+
+    // an AUTH, REGISTER, RESUME or KEY frame from a session that isn't signed in yet
+    public static void handle(ClientSession session, Frame frame) {
+        if (session.signInFailures >= ServerConfig.SIGN_IN_ATTEMPTS) {
+            session.send(new Frame(Frame.Type.AUTH_FAIL, new String[]{"too many attempts"}, null, null));
+            return;
+        }
+        if (frame.type == Frame.Type.KEY) {
+            exchange(session, frame.fields[0]);
+            return;
+        }
+        String username = frame.fields[0].trim();
+        if (pending.putIfAbsent(session, Boolean.TRUE) != null) return;
+        if (frame.type == Frame.Type.RESUME) {
+            Token token = tokens.remove(frame.fields[1]);
+            if (token != null && !token.expired() && token.username.equals(username)) {
+                signIn(session, username);
+            } else {
+                fail(session, "session expired");
+            }
+            return;
+        }
+        byte[] sealed;
+        try {
+            sealed = frame.payloadBytes();
+        } catch (IllegalArgumentException e) {
+            sealed = null;
+        }
+        SecretKeySpec key = session.signInKey;
+        if (key == null) {
+            fail(session, "send KEY first");
+            return;
+        }
+        byte[] plain = sealed == null ? null : EncryptionUtils.open(key, sealed, username.getBytes(StandardCharsets.UTF_8));
+        if (plain == null) {
+            fail(session, "unreadable password");
+            return;
+        }
+        String password = new String(plain, StandardCharsets.UTF_8);
+        if (frame.type == Frame.Type.REGISTER) {
+            if (!validName(username) || password.isEmpty()) {
+                fail(session, "usernames can't be empty or contain ':' or ','");
+                return;
+            }
+            Credentials.submit(() -> DatabaseManager.addUser(username, Credentials.hash(password)))
+                    .whenComplete((added, error) -> {
+                        if (error != null) {
+                            busy(session);
+                        } else if (!added) {
+                            fail(session, "username taken");
+                        } else {
+                            Roster.registered(username);
+                            signIn(session, username);
+                        }
+                    });
+        } else {
+            Credentials.verifyUser(username, password).whenComplete((valid, error) -> {
+                if (error != null) {
+                    busy(session);
+                } else if (!valid) {
+                    fail(session, "invalid credentials");
+                } else {
+                    signIn(session, username);
+                }
+            });
+        }
+    }
+
+    // a session that went away, a check still running for it is dropped
+    public static void forget(ClientSession session) {
+        pending.remove(session);
+    }
+
+    private static void signIn(ClientSession session, String username) {
+        synchronized (session.signInLock) {
+            pending.remove(session);
+            if (session.signedOut) return;
+            // signed in before the answer, the client asks for the binary protocol as soon as it has it
+            MessageRouter.signIn(session, username);
+            session.send(new Frame(Frame.Type.AUTH_OK, new String[]{issue(username)}, null, null));
+        }
+    }
+
+    // one key per connection, worked out on the thread that read the frame since it is far cheaper than the KDF
+    private static void exchange(ClientSession session, String theirs) {
+        if (session.signInKey != null) {
+            refuse(session, "KEY already sent");
+            return;
+        }
+        KeyPair ours = EncryptionUtils.keyPair();
+        SecretKeySpec key = EncryptionUtils.agree(ours, theirs);
+        if (key == null) {
+            refuse(session, "bad KEY");
+            return;
+        }
+        session.signInKey = key;
+        session.send(new Frame(Frame.Type.KEY, new String[]{EncryptionUtils.publicKey(ours)}, null, null));
+    }
+
+    // the client may try again on the same connection, up to luconnect.signInAttempts times
+    private static void fail(ClientSession session, String reason) {
+        pending.remove(session);
+        refuse(session, reason);
+    }
+
+    // a KEY can come while a check is running, which it leaves pending
+    private static void refuse(ClientSession session, String reason) {
+        session.signInFailures++;
+        session.send(new Frame(Frame.Type.AUTH_FAIL, new String[]{reason}, null, null));
+    }
+
+    // not the client's fault, so it doesn't count as an attempt
+    private static void busy(ClientSession session) {
+        pending.remove(session);
+        session.send(new Frame(Frame.Type.AUTH_FAIL, new String[]{"server busy"}, null, null));
+    }
+
+    private static String issue(String username) {
+        if (tokens.size() >= SWEEP_AT) {
+            tokens.values().removeIf(Token::expired);
+        }
+        byte[] bytes = new byte[32];
+        random.nextBytes(bytes);
+        String token = Base64.getUrlEncoder().withoutPadding().encodeToString(bytes);
+        tokens.put(token, new Token(username, System.nanoTime() + TOKEN_NANOS));
+        return token;
+    }
+
+    // ':' separates protocol fields and ',' the names in a roster
+    public static boolean validName(String username) {
+        return !username.isEmpty() && username.indexOf(':') < 0 && username.indexOf(',') < 0;
+    }
+}
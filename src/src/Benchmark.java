@@ -0,0 +1,72 @@
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.LongAdder;
+
+// a small timing harness for the benchmark mains, no dependencies so it runs anywhere the server does.
+// each run warms up for a third of the time, at least a second so the JIT has compiled the hot paths,
+// and then counts operations on every thread until the time is up, and the bytes they allocated on the heap
+public class Benchmark {
+    private static final com.sun.management.ThreadMXBean threads =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    // returns something derived from the work, it is summed up so the JIT can't drop the work being measured
+    public interface Op {
+        long run() throws Exception;
+    }
+
+    public static volatile long sink;
+
+    // returns operations per second summed over all the threads
+    public static double run(String name, int threads, double seconds, Op op) throws InterruptedException {
+        measure(threads, Math.max(1, seconds / 3), op);
+        LongAdder allocated = new LongAdder();
+        LongAdder ops = new LongAdder();
+        double perSecond = measure(threads, seconds, op, ops, allocated);
+        System.out.printf("%-55s %,14.0f ops/s %12.2f us/op %,12.0f B/op%n", name, perSecond, threads * 1e6 / perSecond,
+                allocated.doubleValue() / Math.max(1, ops.sum()));
+        return perSecond;
+    }
+
+    private static double measure(int threads, double seconds, Op op) throws InterruptedException {
+        return measure(threads, seconds, op, new LongAdder(), new LongAdder());
+    }
+
+    private static double measure(int threads, double seconds, Op op, LongAdder ops, LongAdder allocated)
+            throws InterruptedException {
+        LongAdder results = new LongAdder();
+        CountDownLatch ready = new CountDownLatch(threads);
+        CountDownLatch go = new CountDownLatch(1);
+        Thread[] workers = new Thread[threads];
+        long[] end = new long[1];
+        for (int i = 0; i < threads; i++) {
+            workers[i] = new Thread(() -> {
+                ready.countDown();
+                try {
+                    go.await();
+                    long before = Benchmark.threads.getCurrentThreadAllocatedBytes();
+                    long count = 0;
+                    long result = 0;
+                    do {
+                        result += op.run();
+                        count++;
+                    } while (System.nanoTime() < end[0]);
+                    allocated.add(Benchmark.threads.getCurrentThreadAllocatedBytes() - before);
+                    ops.add(count);
+                    results.add(result);
+                } catch (Exception e) {
+                    e.printStackTrace();
+                }
+            });
+            workers[i].start();
+        }
+        ready.await();
+        long start = System.nanoTime();
+        end[0] = start + (long) (seconds * 1e9);
+        go.countDown();
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        sink += results.sum();
+        return ops.sum() / ((System.nanoTime() - start) / 1e9);
+    }
+}
@@ -0,0 +1,376 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.*;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// benchmarks the paths that matter for releases: routing TO and FILE_CHUNK frames through MessageRouter on both
+// protocols and with the per user rate limits, TO_GROUP fan-out, EncryptionUtils, the DatabaseManager lookups
+// against a temporary users database, a storm of logins through the Credentials pool and the client's ChatHistory.
+// each benchmark runs for every combination of the settings below, and the results can be saved and compared
+// against an earlier run so a release can be held back if something got slower. runs offline, nothing to download
+// usage: java -cp .:sqlite-jdbc-3.47.0.0.jar BenchmarkSuite
+//   -Dluconnect.bench.sizes=100,4096     message sizes in bytes
+//   -Dluconnect.bench.users=100,10000    registered users in the database
+//   -Dluconnect.bench.threads=1,4        threads running each benchmark at once
+//   -Dluconnect.bench.members=10,1000    group sizes for the TO_GROUP benchmarks, half on each protocol
+//   -Dluconnect.bench.logins=10000       logins in the login storm, each for a different user
+//   -Dluconnect.bench.loginClients=1000  logins waiting at once during the storm
+//   -Dluconnect.bench.history=200000     messages in the chat history that is searched
+//       the KDF cost is -Dluconnect.kdfIterations, lower it for a quick run
+//   -Dluconnect.bench.seconds=2          measured time per benchmark, plus a warmup of a third of it or a second
+//   -Dluconnect.bench.filter=routing     only benchmarks whose name contains this
+//   -Dluconnect.bench.save=results.properties
+//   -Dluconnect.bench.baseline=results.properties -Dluconnect.bench.tolerance=15
+//       exits with 1 if anything is more than tolerance percent slower than the baseline
+// the routing, crypto and db benchmarks are also run by JMH through cases(), see src/jmh and the jmh profile in pom.xml
+public class BenchmarkSuite {
+    private static final int[] SIZES = ints("luconnect.bench.sizes", "100,4096");
+    private static final int[] USERS = ints("luconnect.bench.users", "100,10000");
+    private static final int[] THREADS = ints("luconnect.bench.threads", "1,4");
+    private static final int[] MEMBERS = ints("luconnect.bench.members", "10,1000");
+    private static final int LOGINS = Integer.getInteger("luconnect.bench.logins", 10000);
+    private static final int LOGIN_CLIENTS = Integer.getInteger("luconnect.bench.loginClients", 1000);
+    private static final int HISTORY = Integer.getInteger("luconnect.bench.history", 200000);
+    private static final double SECONDS = Double.parseDouble(System.getProperty("luconnect.bench.seconds", "2"));
+    private static String filter = System.getProperty("luconnect.bench.filter", "");
+
+    private static final Map<String, Double> results = new LinkedHashMap<>();
+    // set by cases(), benchmarks are kept here by name instead of being run
+    private static Map<String, Benchmark.Op> collected;
+
+    // a recipient that throws away what it is sent, so routing is measured without any socket
+    private static class DiscardSession extends ClientSession {
+        DiscardSession(String username) {
+            this.username = username;
+        }
+
+        protected boolean enqueue(String sender, ByteBuffer... parts) {
+            return true;
+        }
+
+        public long queuedBytes() {
+            return 0;
+        }
+
+        public void close() {
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        routing(SIZES);
+        groups();
+        encryption(SIZES);
+        database(USERS);
+        history();
+
+        String save = System.getProperty("luconnect.bench.save");
+        if (save != null) {
+            Properties saved = new Properties();
+            results.forEach((name, opsPerSecond) -> saved.setProperty(name, String.format("%.0f", opsPerSecond)));
+            try (OutputStream out = new FileOutputStream(save)) {
+                saved.store(out, "ops/s");
+            }
+            System.out.println("saved " + results.size() + " results to " + save);
+        }
+        String baseline = System.getProperty("luconnect.bench.baseline");
+        if (baseline != null && !compare(baseline, Double.parseDouble(System.getProperty("luconnect.bench.tolerance", "15")))) {
+            System.exit(1);
+        }
+    }
+
+    // the benchmarks whose name contains filter for one message size and user count, by their name up to the first
+    // space, e.g. "routing.to.binary" or "db.getAllUsers", without running them. the temporary database the db ones
+    // use is deleted when the JVM exits
+    public static Map<String, Benchmark.Op> cases(String filter, int size, int users) throws Exception {
+        BenchmarkSuite.filter = filter;
+        collected = new LinkedHashMap<>();
+        if (matches("routing.")) routing(new int[]{size});
+        if (matches("crypto.")) encryption(new int[]{size});
+        database(new int[]{users});
+        return collected;
+    }
+
+    private static void routing(int[] sizes) throws Exception {
+        ClientSession sender = new DiscardSession("bench-sender");
+        ClientSession textRecipient = new DiscardSession("bench-text");
+        ClientSession binaryRecipient = new DiscardSession("bench-binary");
+        binaryRecipient.upgrade(FrameCodec.BINARY, "PROTO:BIN1");
+        MessageRouter.signIn(textRecipient, "bench-text");
+        MessageRouter.signIn(binaryRecipient, "bench-binary");
+        // takes from its RateLimits buckets first like the engines do, its frames are never actually held back
+        ClientSession limited = new DiscardSession("bench-limited");
+        MessageRouter.signIn(limited, "bench-limited");
+        // both ends of a confirmed message, see MessageRouter.routeMessage
+        ClientSession confirmingSender = new DiscardSession("bench-msg-sender");
+        ClientSession confirmingRecipient = new DiscardSession("bench-msg");
+        for (ClientSession session : new ClientSession[]{confirmingSender, confirmingRecipient}) {
+            session.upgrade(FrameCodec.BINARY, "PROTO:BIN1");
+            session.confirms = true;
+            MessageRouter.signIn(session, session.username);
+        }
+
+        for (int size : sizes) {
+            byte[] payload = EncryptionUtils.seal(new byte[size], 0, size, null);
+            String line = "TO:bench-text:" + Base64.getEncoder().encodeToString(payload);
+            byte[] frame = FrameCodec.BINARY.encode(new Frame(Frame.Type.TO, new String[]{"bench-binary"}, null, payload));
+            byte[] msg = FrameCodec.BINARY.encode(new Frame(Frame.Type.MSG, new String[]{"bench-msg", "1f3k-42"}, null, payload));
+            byte[] received = FrameCodec.BINARY.encode(new Frame(Frame.Type.RECEIVED, new String[]{"bench-msg-sender", "1f3k-42"}, null, null));
+            for (int threads : THREADS) {
+                bench("routing.to.text size=" + size, threads, () -> {
+                    MessageRouter.route(sender, TextCodec.parse(line));
+                    return line.length();
+                });
+                bench("routing.to.binary size=" + size, threads, () -> {
+                    MessageRouter.route(sender, FrameCodec.BINARY.decode(frame, 0, frame.length));
+                    return frame.length;
+                });
+                bench("routing.to.binary.rate_limited size=" + size, threads, () -> {
+                    Frame decoded = FrameCodec.BINARY.decode(frame, 0, frame.length);
+                    decoded.wireLength = frame.length;
+                    RateLimits.delay(limited, decoded);
+                    MessageRouter.route(limited, decoded);
+                    return frame.length;
+                });
+                // the MSG and the recipient's RECEIVED for it, everything the server does per confirmed message
+                bench("routing.msg.binary size=" + size, threads, () -> {
+                    MessageRouter.route(confirmingSender, FrameCodec.BINARY.decode(msg, 0, msg.length));
+                    MessageRouter.route(confirmingRecipient, FrameCodec.BINARY.decode(received, 0, received.length));
+                    return msg.length;
+                });
+            }
+        }
+        byte[] chunk = EncryptionUtils.seal(new byte[FileTransfers.CHUNK_SIZE], 0, FileTransfers.CHUNK_SIZE, null);
+        byte[] chunkLine = ("FILE_CHUNK:bench-text:id:0:" + Base64.getEncoder().encodeToString(chunk) + "\n")
+                .getBytes(StandardCharsets.US_ASCII);
+        byte[] chunkFrame = FrameCodec.BINARY.encode(new Frame(Frame.Type.FILE_CHUNK,
+                new String[]{"bench-binary", "id", "0"}, null, chunk));
+        for (int threads : THREADS) {
+            bench("routing.file_chunk.text size=" + FileTransfers.CHUNK_SIZE, threads, () -> {
+                MessageRouter.route(sender, FrameCodec.TEXT.decode(chunkLine, 0, chunkLine.length));
+                return chunkLine.length;
+            });
+            bench("routing.file_chunk.binary size=" + FileTransfers.CHUNK_SIZE, threads, () -> {
+                MessageRouter.route(sender, FrameCodec.BINARY.decode(chunkFrame, 0, chunkFrame.length));
+                return chunkFrame.length;
+            });
+        }
+    }
+
+    private static void groups() throws Exception {
+        if (!matches("routing.to_group")) return;
+        ClientSession sender = new DiscardSession("bench-group-sender");
+        for (int count : MEMBERS) {
+            String group = "bench-" + count;
+            Groups.join(sender, group);
+            for (int i = 0; i < count; i++) {
+                ClientSession member = new DiscardSession("bench-member-" + i);
+                if (i % 2 == 1) member.upgrade(FrameCodec.BINARY, "PROTO:BIN1");
+                Groups.join(member, group);
+            }
+            for (int size : SIZES) {
+                byte[] payload = EncryptionUtils.seal(new byte[size], 0, size, null);
+                byte[] frame = FrameCodec.BINARY.encode(new Frame(Frame.Type.TO_GROUP, new String[]{group}, null, payload));
+                for (int threads : THREADS) {
+                    bench("routing.to_group members=" + count + " size=" + size, threads, () -> {
+                        MessageRouter.route(sender, FrameCodec.BINARY.decode(frame, 0, frame.length));
+                        return frame.length;
+                    });
+                }
+            }
+        }
+    }
+
+    private static void encryption(int[] sizes) throws Exception {
+        for (int size : sizes) {
+            char[] chars = new char[size];
+            Arrays.fill(chars, 'x');
+            String message = new String(chars);
+            byte[] data = message.getBytes(StandardCharsets.UTF_8);
+            String encrypted = EncryptionUtils.encrypt(message);
+            byte[] sealed = EncryptionUtils.seal(data, 0, data.length, null);
+            for (int threads : THREADS) {
+                bench("crypto.encrypt size=" + size, threads, () -> EncryptionUtils.encrypt(message).length());
+                bench("crypto.decrypt size=" + size, threads, () -> EncryptionUtils.decrypt(encrypted).length());
+                bench("crypto.seal size=" + size, threads, () -> EncryptionUtils.seal(data, 0, data.length, null).length);
+                bench("crypto.open size=" + size, threads, () -> EncryptionUtils.open(sealed, null).length);
+            }
+        }
+        for (int threads : THREADS) {
+            bench("crypto.sha256", threads, () -> EncryptionUtils.sha256("correct horse battery staple").length());
+        }
+    }
+
+    private static void database(int[] counts) throws Exception {
+        if (!matches("db.") && !matches("login.")) return;
+        try {
+            Class.forName("org.sqlite.JDBC");
+        } catch (ClassNotFoundException e) {
+            System.out.println("skipping db benchmarks, the sqlite jdbc jar isn't on the classpath");
+            return;
+        }
+        // read by DatabaseManager when it is first used, so it never touches a real users.db
+        File db = File.createTempFile("luconnect-bench", ".db");
+        System.setProperty("luconnect.db", db.getPath());
+        try {
+            // every user gets the same hash, it costs as much to check as one each and only one to make
+            String password = Credentials.hash("password");
+            int registered = 0;
+            int[] users = counts.clone();
+            Arrays.sort(users);
+            for (int count : users) {
+                for (; registered < count; registered++) {
+                    DatabaseManager.addUser("user" + registered, password);
+                }
+                int known = count;
+                for (int threads : THREADS) {
+                    bench("db.storedPassword users=" + count, threads, () -> {
+                        String user = "user" + ThreadLocalRandom.current().nextInt(known);
+                        return DatabaseManager.storedPassword(user).length();
+                    });
+                    bench("db.getAllUsers users=" + count, threads, () -> DatabaseManager.getAllUsers().length);
+                }
+            }
+            if (matches("login.")) {
+                for (int i = 0; i < LOGINS; i++) {
+                    DatabaseManager.addUser("login" + i, password);
+                }
+                Credentials.forget();
+                loginStorm("login.storm.cold");
+                // the same users again, now remembered
+                loginStorm("login.storm.warm");
+            }
+        } finally {
+            for (String suffix : new String[]{"", "-wal", "-shm"}) {
+                File file = new File(db.getPath() + suffix);
+                if (collected == null) {
+                    file.delete();
+                } else {
+                    // the collected benchmarks still use it
+                    file.deleteOnExit();
+                }
+            }
+        }
+    }
+
+    // HISTORY messages of a dozen words each in 50 conversations, words picked so a few are common and most rare
+    // like in real chat, then searched for one and two words and appended to. runs in a temporary directory
+    private static void history() throws Exception {
+        if (!matches("history.")) return;
+        File dir = Files.createTempDirectory("luconnect-bench-history").toFile();
+        ChatHistory history = new ChatHistory(dir);
+        try {
+            Random random = new Random(1);
+            String[] words = new String[10000];
+            for (int i = 0; i < words.length; i++) {
+                words[i] = "w" + Integer.toString(i, 36);
+            }
+            for (int i = 0; i < HISTORY; i++) {
+                StringBuilder text = new StringBuilder();
+                for (int j = 0; j < 12; j++) {
+                    text.append(words[(int) Math.min(words.length - 1, Math.abs(random.nextGaussian()) * 1000)]).append(' ');
+                }
+                history.record("user" + i % 50, i % 2 == 0 ? "me" : "user" + i % 50, text.toString());
+            }
+            // everything recorded has been written and indexed once this is answered
+            history.search("", 1).join();
+            for (int threads : THREADS) {
+                bench("history.search words=1 messages=" + HISTORY, threads, () -> {
+                    String word = words[ThreadLocalRandom.current().nextInt(100)];
+                    return history.search(word, 20).join().size();
+                });
+                bench("history.search words=2 messages=" + HISTORY, threads, () -> {
+                    ThreadLocalRandom current = ThreadLocalRandom.current();
+                    return history.search(words[current.nextInt(100)] + " " + words[current.nextInt(1000)], 20).join().size();
+                });
+                bench("history.recent count=200 messages=" + HISTORY, threads, () -> history.recent(200).join().size());
+            }
+        } finally {
+            history.close();
+            File[] files = dir.listFiles();
+            if (files != null) {
+                for (File file : files) {
+                    file.delete();
+                }
+            }
+            dir.delete();
+        }
+    }
+
+    // LOGINS logins through the bounded pool with LOGIN_CLIENTS waiting at any time, like that many clients logging
+    // in one after another. latency is from asking to the answer, so it includes waiting for a pool thread
+    private static void loginStorm(String name) throws InterruptedException {
+        name = name + " logins=" + LOGINS + " iterations=" + Credentials.iterations();
+        if (!matches(name)) return;
+        LatencyHistogram latency = new LatencyHistogram();
+        Semaphore clients = new Semaphore(LOGIN_CLIENTS);
+        CountDownLatch done = new CountDownLatch(LOGINS);
+        AtomicInteger rejected = new AtomicInteger();
+        AtomicInteger failed = new AtomicInteger();
+        long start = System.nanoTime();
+        for (int i = 0; i < LOGINS; i++) {
+            clients.acquire();
+            long asked = System.nanoTime();
+            Credentials.verifyUser("login" + i, "password").whenComplete((valid, error) -> {
+                if (error != null) {
+                    rejected.incrementAndGet();
+                } else {
+                    if (!valid) failed.incrementAndGet();
+                    latency.record(System.nanoTime() - asked);
+                }
+                clients.release();
+                done.countDown();
+            });
+        }
+        done.await();
+        double perSecond = LOGINS / ((System.nanoTime() - start) / 1e9);
+        int cores = Runtime.getRuntime().availableProcessors();
+        System.out.printf("%-55s %,14.0f ops/s %,10.0f per core  p50 %.2fms p99 %.2fms  %d rejected %d failed%n",
+                name, perSecond, perSecond / cores, latency.percentile(50) / 1e6, latency.percentile(99) / 1e6,
+                rejected.get(), failed.get());
+        results.put(name, perSecond);
+    }
+
+    private static void bench(String name, int threads, Benchmark.Op op) throws InterruptedException {
+        if (collected != null) {
+            if (matches(name)) collected.put(name.split(" ")[0], op);
+            return;
+        }
+        name = name + " threads=" + threads;
+        if (!matches(name)) return;
+        results.put(name, Benchmark.run(name, threads, SECONDS, op));
+    }
+
+    // also true for a prefix of the filter, so a group's setup is skipped when nothing in it will run
+    private static boolean matches(String name) {
+        return filter.isEmpty() || name.contains(filter) || filter.contains(name);
+    }
+
+    private static boolean compare(String file, double tolerance) throws IOException {
+        Properties baseline = new Properties();
+        try (InputStream in = new FileInputStream(file)) {
+            baseline.load(in);
+        }
+        boolean passed = true;
+        for (Map.Entry<String, Double> result : results.entrySet()) {
+            String before = baseline.getProperty(result.getKey());
+            if (before == null) continue;
+            double change = (result.getValue() / Double.parseDouble(before) - 1) * 100;
+            if (change < -tolerance) {
+                System.out.printf("REGRESSION %s %.1f%% slower than %s%n", result.getKey(), -change, file);
+                passed = false;
+            }
+        }
+        System.out.println(passed ? "no regressions against " + file : "regressions against " + file);
+        return passed;
+    }
+
+    private static int[] ints(String property, String defaults) {
+        return Arrays.stream(System.getProperty(property, defaults).split(","))
+                .mapToInt(value -> Integer.parseInt(value.trim())).toArray();
+    }
+}
@@ -0,0 +1,111 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+// length prefixed binary protocol: int length of the rest, type byte, each field as an unsigned short length
+// and UTF-8 bytes, then the raw payload bytes up to the end of the frame. nothing is Base64 encoded
+public class BinaryCodec implements FrameCodec {
+    // anything bigger is treated as a corrupt stream rather than allocated
+    static final int MAX_FRAME = 256 * 1024 * 1024;
+
+    public byte[] encode(Frame frame) {
+        return encode(frame, payload(frame));
+    }
+
+    public ByteBuffer[] encodeParts(Frame frame) {
+        ByteBuffer payload = payload(frame);
+        if (payload == null || payload.remaining() < GATHER_AT) {
+            return new ByteBuffer[]{ByteBuffer.wrap(encode(frame, payload))};
+        }
+        return new ByteBuffer[]{ByteBuffer.wrap(header(frame, payload.remaining(), 0)), payload};
+    }
+
+    private static byte[] encode(Frame frame, ByteBuffer payload) {
+        int payloadLength = payload == null ? 0 : payload.remaining();
+        byte[] out = header(frame, payloadLength, payloadLength);
+        if (payload != null) {
+            payload.get(out, out.length - payloadLength, payloadLength);
+        }
+        return out;
+    }
+
+    private static ByteBuffer payload(Frame frame) {
+        if (frame.type == Frame.Type.UNKNOWN) {
+            throw new IllegalArgumentException("no binary form for " + frame.fields[0]);
+        }
+        return frame.type.payload ? frame.bytesPayload() : null;
+    }
+
+    // length prefix, type and fields of a frame with payloadLength bytes of payload, with room for spare more
+    private static byte[] header(Frame frame, int payloadLength, int spare) {
+        byte[][] fields = new byte[frame.fields.length][];
+        int length = 1;
+        for (int i = 0; i < fields.length; i++) {
+            fields[i] = frame.fields[i].getBytes(StandardCharsets.UTF_8);
+            if (fields[i].length > 0xffff) {
+                throw new IllegalArgumentException("field too long");
+            }
+            length += 2 + fields[i].length;
+        }
+        byte[] out = new byte[4 + length + spare];
+        length += payloadLength;
+        out[0] = (byte) (length >>> 24);
+        out[1] = (byte) (length >>> 16);
+        out[2] = (byte) (length >>> 8);
+        out[3] = (byte) length;
+        out[4] = (byte) frame.type.id;
+        int position = 5;
+        for (byte[] field : fields) {
+            out[position++] = (byte) (field.length >>> 8);
+            out[position++] = (byte) field.length;
+            System.arraycopy(field, 0, out, position, field.length);
+            position += field.length;
+        }
+        return out;
+    }
+
+    public int frameLength(byte[] buffer, int start, int end, int scanFrom) throws IOException {
+        int length = declaredLength(buffer, start, end);
+        return length > 0 && end - start >= length ? length : -1;
+    }
+
+    public int declaredLength(byte[] buffer, int start, int end) throws IOException {
+        if (end - start < 4) return -1;
+        int length = (buffer[start] & 0xff) << 24 | (buffer[start + 1] & 0xff) << 16
+                | (buffer[start + 2] & 0xff) << 8 | (buffer[start + 3] & 0xff);
+        if (length < 1 || length > MAX_FRAME) {
+            throw new IOException("bad frame length " + length);
+        }
+        return 4 + length;
+    }
+
+    public Frame decode(byte[] buffer, int start, int length, boolean owned) {
+        int end = start + length;
+        Frame.Type type = Frame.Type.byId(buffer[start + 4]);
+        if (type == Frame.Type.UNKNOWN) {
+            return new Frame(Frame.Type.UNKNOWN, new String[]{""}, null, null);
+        }
+        String[] fields = new String[type.fields];
+        int position = start + 5;
+        for (int i = 0; i < fields.length; i++) {
+            if (position + 2 > end) return malformed();
+            int fieldLength = (buffer[position] & 0xff) << 8 | (buffer[position + 1] & 0xff);
+            position += 2;
+            if (position + fieldLength > end) return malformed();
+            fields[i] = new String(buffer, position, fieldLength, StandardCharsets.UTF_8);
+            position += fieldLength;
+        }
+        if (!type.payload) {
+            return new Frame(type, fields, null, null);
+        }
+        if (owned) {
+            return Frame.withBytes(type, fields, buffer, position, end - position);
+        }
+        return new Frame(type, fields, null, Arrays.copyOfRange(buffer, position, end));
+    }
+
+    private static Frame malformed() {
+        return new Frame(Frame.Type.UNKNOWN, new String[]{""}, null, null);
+    }
+}
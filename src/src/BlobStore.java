@@ -0,0 +1,285 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+// files kept on the server by content, so one sent to many users or sent again is only uploaded once.
+// a blob is a file's sealed chunks back to back, named by the SHA-256 the sender worked out for the file.
+// the server can't read the chunks, the recipient checks the hash once it has the whole file.
+// complete blobs are deleted least recently used first once they and the uploads in progress take more than the
+// limit. uploads count towards it too and one no chunk has arrived for in a while is deleted to make room
+public class BlobStore {
+    private static final String SUFFIX = ".blob";
+    private static final String PART = ".part";
+    private static final long SEALED_CHUNK = FileTransfers.CHUNK_SIZE + EncryptionUtils.SEAL_OVERHEAD;
+    // an upload that hasn't had a chunk for this long is treated as abandoned
+    private static final long ABANDONED_MILLIS = 10 * 60 * 1000;
+    // files handed out by FILE_REF that are remembered, the oldest are forgotten past it
+    private static final int REFERENCES = 100_000;
+    private static final int IO_THREADS = 4;
+
+    private static class Upload {
+        final long size;
+        long touched = System.currentTimeMillis();
+
+        Upload(long size) {
+            this.size = size;
+        }
+    }
+
+    private final File dir;
+    private final long limit;
+    // everything below is guarded by this
+    // complete blobs and their length, least recently used first
+    private final LinkedHashMap<String, Long> blobs = new LinkedHashMap<>(16, 0.75f, true);
+    private long totalBytes;
+    // uploads in progress, by hash, with the size of the file being uploaded, and the bytes of their parts
+    private final Map<String, Upload> uploads = new HashMap<>();
+    private long partBytes;
+    // hashes by "recipient:sender:id" of the FILE_REFs sent, a blob is only handed to a user it was sent to
+    private final LinkedHashMap<String, String> references = new LinkedHashMap<>() {
+        protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+            return size() > REFERENCES;
+        }
+    };
+    // blobs are read and sent on these rather than on a reader or event loop, one request at a time per session
+    // so its chunks go out in order. guarded by itself
+    private final Map<ClientSession, ArrayDeque<Runnable>> reading = new HashMap<>();
+    private final ExecutorService io = Executors.newFixedThreadPool(IO_THREADS, r -> {
+        Thread t = new Thread(r, "blob-io");
+        t.setDaemon(true);
+        return t;
+    });
+
+    public BlobStore(File dir, long limit) {
+        this.dir = dir;
+        this.limit = limit;
+        dir.mkdirs();
+        File[] files = dir.listFiles();
+        if (files == null) return;
+        List<File> complete = new ArrayList<>();
+        for (File file : files) {
+            if (file.getName().endsWith(PART)) {
+                // an upload cut off by a restart starts again
+                file.delete();
+            } else if (file.getName().endsWith(SUFFIX)) {
+                complete.add(file);
+            }
+        }
+        // a blob's modified time is when it was last handed out, so the order survives a restart
+        complete.sort(Comparator.comparingLong(File::lastModified));
+        for (File file : complete) {
+            String name = file.getName();
+            blobs.put(name.substring(0, name.length() - SUFFIX.length()), file.length());
+            totalBytes += file.length();
+        }
+        evict();
+        System.out.println("Blob store holds " + blobs.size() + " files, " + totalBytes / (1024 * 1024) + "MB");
+    }
+
+    // sha-256 in lowercase hex, anything else could name a file outside the store
+    public static boolean validHash(String hash) {
+        if (hash.length() != 64) return false;
+        for (int i = 0; i < hash.length(); i++) {
+            char c = hash.charAt(i);
+            if ((c < '0' || c > '9') && (c < 'a' || c > 'f')) return false;
+        }
+        return true;
+    }
+
+    // chunks of the file already here, all of them only once the blob is complete, or -1 if it is too big to
+    // keep or empty, which isn't worth it
+    public synchronized long query(String hash, long size) {
+        long sealedSize = size + FileTransfers.chunks(size) * EncryptionUtils.SEAL_OVERHEAD;
+        if (size == 0 || sealedSize > limit) return -1;
+        Long length = blobs.get(hash);
+        if (length != null) {
+            // the same hash with another size is someone lying about a file, the kept blob stays and the file is
+            // sent directly. recipients check the hash of whatever they fetch
+            return length == sealedSize ? FileTransfers.chunks(size) : -1;
+        }
+        Upload upload = uploads.get(hash);
+        if (upload == null || upload.size != size) {
+            abandon(hash);
+            uploads.put(hash, new Upload(size));
+        } else {
+            upload.touched = System.currentTimeMillis();
+        }
+        // a part with every chunk still needs its BLOB_END
+        return Math.min(part(hash).length() / SEALED_CHUNK, FileTransfers.chunks(size) - 1);
+    }
+
+    // appends the next chunk of an upload, anything out of order or the wrong length is ignored, as is a chunk
+    // there is no room for even after evicting blobs and abandoned uploads
+    public synchronized void chunk(String hash, long index, ByteBuffer sealed) {
+        Upload upload = uploads.get(hash);
+        // not asked about since a restart or abandoned, the uploader starts again after BLOB_END
+        if (upload == null || index >= FileTransfers.chunks(upload.size)) return;
+        long plain = Math.min(FileTransfers.CHUNK_SIZE, upload.size - index * FileTransfers.CHUNK_SIZE);
+        if (sealed.remaining() != plain + EncryptionUtils.SEAL_OVERHEAD) return;
+        upload.touched = System.currentTimeMillis();
+        if (part(hash).length() != index * SEALED_CHUNK || !makeRoom(sealed.remaining())) return;
+        // opened per chunk so an upload that is never finished doesn't hold a file open
+        try (FileChannel part = FileChannel.open(part(hash).toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+            long position = index * SEALED_CHUNK;
+            while (sealed.hasRemaining()) {
+                int written = part.write(sealed, position);
+                position += written;
+                partBytes += written;
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    // the uploader has sent everything, returns the chunks now here like query
+    public synchronized long end(String hash, long size) {
+        long known = query(hash, size);
+        if (known < 0 || blobs.containsKey(hash)) return known;
+        File part = part(hash);
+        long sealedSize = size + FileTransfers.chunks(size) * EncryptionUtils.SEAL_OVERHEAD;
+        if (part.length() != sealedSize) return known;
+        try {
+            Files.move(part.toPath(), blob(hash).toPath(), StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return known;
+        }
+        uploads.remove(hash);
+        partBytes -= sealedSize;
+        blobs.put(hash, sealedSize);
+        totalBytes += sealedSize;
+        evict();
+        return FileTransfers.chunks(size);
+    }
+
+    // marks the blob as just used, false if it isn't here
+    public synchronized boolean touch(String hash) {
+        if (blobs.get(hash) == null) return false;
+        blob(hash).setLastModified(System.currentTimeMillis());
+        return true;
+    }
+
+    // sender has handed the blob to recipient as transfer id
+    public synchronized void refer(String recipient, String sender, String id, String hash) {
+        references.put(recipient + ":" + sender + ":" + id, hash);
+    }
+
+    // chunks [from, from + count) of the blob sender referred session's user to as transfer id. sent later on a
+    // blob-io thread, nothing is sent for a transfer that wasn't referred to them
+    public void fetch(ClientSession session, String sender, String id, long from, int count) {
+        String hash;
+        synchronized (this) {
+            hash = references.get(session.username + ":" + sender + ":" + id);
+        }
+        if (hash == null) return;
+        Runnable task = () -> send(session, sender, id, hash, from, count);
+        synchronized (reading) {
+            ArrayDeque<Runnable> queued = reading.get(session);
+            if (queued != null) {
+                queued.add(task);
+                return;
+            }
+            reading.put(session, new ArrayDeque<>());
+        }
+        io.execute(() -> read(session, task));
+    }
+
+    private void read(ClientSession session, Runnable task) {
+        while (task != null) {
+            task.run();
+            synchronized (reading) {
+                task = reading.get(session).poll();
+                if (task == null) reading.remove(session);
+            }
+        }
+    }
+
+    // sends chunks [from, from + count) of a blob to session as FILE_CHUNK_FROM from sender for transfer id,
+    // followed by FILE_END_FROM if that reaches the end. nothing is sent if the blob has been evicted
+    private void send(ClientSession session, String sender, String id, String hash, long from, int count) {
+        synchronized (this) {
+            if (blobs.get(hash) == null) return;
+        }
+        // a blob evicted from here on stays readable through the open channel
+        try (FileChannel blob = FileChannel.open(blob(hash).toPath(), StandardOpenOption.READ)) {
+            long length = blob.size();
+            long total = (length + SEALED_CHUNK - 1) / SEALED_CHUNK;
+            long to = Math.min(total, from + count);
+            for (long index = from; index < to; index++) {
+                long position = index * SEALED_CHUNK;
+                ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(SEALED_CHUNK, length - position));
+                while (buffer.hasRemaining() && blob.read(buffer, position + buffer.position()) > 0) {
+                }
+                session.send(new Frame(Frame.Type.FILE_CHUNK_FROM, new String[]{sender, id, Long.toString(index)},
+                        null, buffer.array()));
+            }
+            if (to == total) {
+                session.send(new Frame(Frame.Type.FILE_END_FROM, new String[]{sender, id}, null, null));
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private void evict() {
+        evict(0);
+    }
+
+    // deletes least recently used blobs until there's room for bytes more
+    private void evict(long bytes) {
+        Iterator<Map.Entry<String, Long>> eldest = blobs.entrySet().iterator();
+        while (totalBytes + partBytes + bytes > limit && eldest.hasNext()) {
+            Map.Entry<String, Long> entry = eldest.next();
+            totalBytes -= entry.getValue();
+            blob(entry.getKey()).delete();
+            eldest.remove();
+        }
+    }
+
+    // false if bytes more of uploads would take the store past its limit even without any blobs and abandoned uploads
+    private boolean makeRoom(long bytes) {
+        long now = System.currentTimeMillis();
+        Iterator<Map.Entry<String, Upload>> it = uploads.entrySet().iterator();
+        while (partBytes + bytes > limit && it.hasNext()) {
+            Map.Entry<String, Upload> entry = it.next();
+            if (now - entry.getValue().touched < ABANDONED_MILLIS) continue;
+            it.remove();
+            deletePart(entry.getKey());
+        }
+        evict(bytes);
+        return totalBytes + partBytes + bytes <= limit;
+    }
+
+    private void abandon(String hash) {
+        uploads.remove(hash);
+        deletePart(hash);
+    }
+
+    private void deletePart(String hash) {
+        File part = part(hash);
+        long length = part.length();
+        if (part.delete()) partBytes -= length;
+    }
+
+    private File blob(String hash) {
+        return new File(dir, hash + SUFFIX);
+    }
+
+    private File part(String hash) {
+        return new File(dir, hash + PART);
+    }
+}
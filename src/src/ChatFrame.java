@@ -2,33 +2,76 @@ import javax.swing.*;
 import java.awt.*;
 import java.awt.event.*;
 import java.io.*;
-import java.net.*;
-import java.text.SimpleDateFormat;
-import java.util.Date;
+import java.net.URLEncoder;
+import java.time.Instant;
+import java.time.LocalTime;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
 import javax.swing.filechooser.FileNameExtensionFilter;
-import javax.swing.text.BadLocationException;
-import javax.swing.text.Style;
-import javax.swing.text.StyleConstants;
-import javax.swing.text.StyledDocument;
-import java.util.Base64;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 
 public class ChatFrame extends JFrame {
+    private static final DateTimeFormatter TIME = DateTimeFormatter.ofPattern("HH:mm:ss");
+    private static final DateTimeFormatter DATE_TIME = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
+    // where each user's conversations are kept, and how many of the latest are shown on start
+    private static final String HISTORY_DIR = System.getProperty("luconnect.historyDir", "history");
+    private static final int HISTORY_SHOWN = Integer.getInteger("luconnect.historyShown", 200);
+    // most messages listed for a /search
+    private static final int SEARCH_RESULTS = 50;
+    // history conversations of groups, ':' can't be in a username so they never clash with a user's
+    private static final String GROUP = "group:";
+    // e.g. java -Dluconnect.host=chat.example.com LUConnectClient
+    private static final String HOST = System.getProperty("luconnect.host", "localhost");
+    private static final int PORT = Integer.getInteger("luconnect.port", 12345);
+    // longest wait between attempts to reconnect, in seconds
+    private static final int RECONNECT_MAX = 60;
+
     private String username;
-    private Socket socket;
-    private BufferedReader in;
-    private PrintWriter out;
+    private final String password;
+    private final boolean register;
+    // replaced by reconnect() when the server goes away
+    private volatile ServerConnection connection;
+    // from the server's AUTH_OK, signs in again without the password
+    private volatile String token;
 
-    private JTextPane chatArea;
-    private StyledDocument doc;
+    private ChatView chatView;
+    private final ChatHistory history;
+    // messages to users wait here for the server's window and for their confirmations
+    private final Delivery delivery = new Delivery((recipient, id, status) ->
+            appendChat("Not delivered to " + recipient + ": " + undelivered(status), Color.RED));
+    // sends them in order, off the event dispatch thread since a full window blocks
+    private final ExecutorService outgoing = Executors.newSingleThreadExecutor();
+    // groups joined, joined again after reconnecting
+    private final Set<String> groups = ConcurrentHashMap.newKeySet();
     private JTextField messageField;
     private JButton sendButton, uploadButton, muteButton;
     private JList<String> usersList;
     private DefaultListModel<String> listModel;
+    // users the server says are connected right now, only touched on the event dispatch thread
+    private final Set<String> online = new HashSet<>();
+    // what's already in listModel, so a big roster doesn't search the model for every name
+    private final Set<String> listed = new HashSet<>();
     private boolean muted = false;
+    private FileTransfers transfers;
+    private JPanel transfersPanel;
+    // progress bars of incoming files by sender and file name, only touched on the event dispatch thread
+    private final Map<String, JProgressBar> progressBars = new HashMap<>();
 
-    public ChatFrame(String username) {
+    // signs in with the password once the server admits the client, registering username first if register is set
+    public ChatFrame(String username, String password, boolean register) {
         this.username = username;
+        this.password = password;
+        this.register = register;
         setTitle("LU-Connect Chat | " + username);
         setSize(600,400);
         setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
@@ -37,20 +80,30 @@ public class ChatFrame extends JFrame {
         // left panel shows users, center panels shows chat, bottom panel for message input
         JPanel mainPanel = new JPanel(new BorderLayout());
 
-        // left panel, list of all registered users
+        // left panel, list of all registered users, filled in and kept up to date by the server
         listModel = new DefaultListModel<>();
         usersList = new JList<>(listModel);
-        refreshUsers(); // if new user signs up while other clients are active
+        // users that aren't connected are greyed out
+        usersList.setCellRenderer(new DefaultListCellRenderer() {
+            public Component getListCellRendererComponent(JList<?> list, Object value, int index, boolean isSelected, boolean cellHasFocus) {
+                super.getListCellRendererComponent(list, value, index, isSelected, cellHasFocus);
+                if (!online.contains(value)) {
+                    setForeground(Color.GRAY);
+                }
+                return this;
+            }
+        });
         JScrollPane userScrollPane = new JScrollPane(usersList);
         userScrollPane.setPreferredSize(new Dimension(150,0));
         mainPanel.add(userScrollPane, BorderLayout.WEST); // set to the left
 
         // center panel, chat area
-        chatArea = new JTextPane();
-        chatArea.setEditable(false);
-        doc = chatArea.getStyledDocument();
-        JScrollPane chatScrollPane = new JScrollPane(chatArea);
-        mainPanel.add(chatScrollPane, BorderLayout.CENTER);
+        chatView = new ChatView();
+        mainPanel.add(chatView.component(), BorderLayout.CENTER);
+        // this user's conversations on this computer, shown once they have signed in
+        history = new ChatHistory(new File(HISTORY_DIR, URLEncoder.encode(username, StandardCharsets.UTF_8)));
+        // the index is saved on the way out, otherwise the next start indexes what was added since it last was
+        Runtime.getRuntime().addShutdownHook(new Thread(history::close));
 
         // bottom panel, message input
         JPanel bottomPanel = new JPanel(new BorderLayout());
@@ -66,16 +119,15 @@ public class ChatFrame extends JFrame {
         buttonPanel.add(muteButton);
         bottomPanel.add(buttonPanel, BorderLayout.EAST);
 
-        mainPanel.add(bottomPanel, BorderLayout.SOUTH);
-        add(mainPanel);
+        // incoming files, a bar for each one still arriving
+        transfersPanel = new JPanel();
+        transfersPanel.setLayout(new BoxLayout(transfersPanel, BoxLayout.Y_AXIS));
+        JPanel southPanel = new JPanel(new BorderLayout());
+        southPanel.add(transfersPanel, BorderLayout.NORTH);
+        southPanel.add(bottomPanel, BorderLayout.SOUTH);
 
-        // timer that refreshes the list of users every 10 seconds
-        Timer timer = new Timer(10000, new ActionListener() {
-            public void actionPerformed(ActionEvent e) {
-                refreshUsers();
-            }
-        });
-        timer.start();
+        mainPanel.add(southPanel, BorderLayout.SOUTH);
+        add(mainPanel);
 
         // button listeners
         sendButton.addActionListener(e -> sendMessage()); // listener for sending messages
@@ -89,9 +141,25 @@ public class ChatFrame extends JFrame {
 
         // establish server connection, handle waiting if server is full
         try {
-            socket = new Socket("localhost", 12345);
-            in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-            out = new PrintWriter(socket.getOutputStream(), true);
+            connection = new ServerConnection(HOST, PORT);
+            transfers = new FileTransfers(username, connection, new FileTransfers.Listener() {
+                public void fileSent(String recipient, String fileName) {
+                    appendChat(recipient + " received " + fileName + " (" + getCurrentTime() + ")", Color.BLUE);
+                }
+
+                public void fileReceived(String sender, String fileName) {
+                    SwingUtilities.invokeLater(() -> transferDone(sender, fileName));
+                    appendChat("Received file " + fileName + " from " + sender + " (" + getCurrentTime() + ")", Color.MAGENTA);
+                    if (!muted) {
+                        Toolkit.getDefaultToolkit().beep();
+                    }
+                }
+
+                public void fileProgress(String sender, String fileName, long received, long size) {
+                    int percent = size == 0 ? 100 : (int) (received * 100 / size);
+                    SwingUtilities.invokeLater(() -> transferProgress(sender, fileName, percent));
+                }
+            });
             initializeConnection();
         } catch (IOException e) {
             e.printStackTrace();
@@ -105,82 +173,255 @@ public class ChatFrame extends JFrame {
     private void initializeConnection() {
         new Thread(() -> {
             try {
-                JDialog waitingDialog = null;
-                JLabel waitingLabel = new JLabel();
-
-                // keep reading messages until we get "START" message
-                String line;
-                while ((line = in.readLine()) != null) {
-                    if (line.startsWith("WAIT:")) {
-                        // show/update waiting dialog
-                        String waitTime = line.substring(5);
-                        if (waitingDialog == null) {
-                            waitingDialog = new JDialog(ChatFrame.this, "Waiting", true);
-                            waitingDialog.setLayout(new BorderLayout());
-                            waitingDialog.add(new JLabel("Maximum number of connect clients reached!"), BorderLayout.NORTH);
-                            waitingDialog.add(waitingLabel, BorderLayout.CENTER);
-                            waitingDialog.setSize(300, 150);
-                            waitingDialog.setLocationRelativeTo(ChatFrame.this);
-                            JDialog finalWaitingDialog = waitingDialog;
-                            SwingUtilities.invokeLater(() -> finalWaitingDialog.setVisible(true));
-                        }
-                        SwingUtilities.invokeLater(() -> waitingLabel.setText("Waiting for " + waitTime + " seconds"));
-                    } else if (line.equals("START")) {
-                        if (waitingDialog != null && waitingDialog.isVisible()) {
-                            JDialog finalWaitingDialog1 = waitingDialog;
-                            SwingUtilities.invokeLater(() -> finalWaitingDialog1.dispose());
-                        }
-                        break;
-                    }
+                String admitted = admit(connection);
+                if ("FULL".equals(admitted)) {
+                    // the admission queue is at its limit, the server closes the connection
+                    SwingUtilities.invokeLater(() -> {
+                        JOptionPane.showMessageDialog(ChatFrame.this, "The server is full, please try again later.", "Error", JOptionPane.ERROR_MESSAGE);
+                        System.exit(0);
+                    });
+                    return;
+                }
+                // the server checks the password and switches to the binary protocol if it supports it
+                Frame reply = connection.signIn(register ? Frame.Type.REGISTER : Frame.Type.AUTH, username, password);
+                if (reply.type == Frame.Type.AUTH_FAIL) {
+                    connection.close();
+                    history.close();
+                    SwingUtilities.invokeLater(() -> {
+                        JOptionPane.showMessageDialog(ChatFrame.this, "Couldn't sign in: " + reply.fields[0], "Error", JOptionPane.ERROR_MESSAGE);
+                        dispose();
+                        new LoginFrame().setVisible(true);
+                    });
+                    return;
                 }
-                out.println("USER:" + username);
-                startMessageReader();
+                token = reply.fields[0];
+                // the last conversations from this computer, before anything new arrives
+                for (ChatHistory.Message message : history.recent(HISTORY_SHOWN).join()) {
+                    showMessage(message);
+                }
+                signedIn();
+                // keep offering unfinished file transfers every 30 seconds until the recipient confirms them,
+                // and send again messages whose recipient went away before confirming them
+                SwingUtilities.invokeLater(() -> new Timer(30000, e -> {
+                    transfers.resumePending();
+                    delivery.retry();
+                }).start());
             } catch (IOException e){
                 e.printStackTrace();
             }
         }).start();
     }
 
-    // background thread responsible for handling incoming messages
-    private void startMessageReader() {
+    // shows WAIT and QUEUE while the server keeps the client waiting, returns START, FULL or null if the connection
+    // closed first
+    private String admit(ServerConnection connection) throws IOException {
+        JDialog waitingDialog = null;
+        JLabel waitingLabel = new JLabel();
+        JLabel queueLabel = new JLabel();
+
+        // keep reading messages until we get "START" message
+        String line;
+        while ((line = connection.readLine()) != null) {
+            if (line.startsWith("WAIT:")) {
+                // show/update waiting dialog
+                String waitTime = line.substring(5);
+                if (waitingDialog == null) {
+                    waitingDialog = new JDialog(ChatFrame.this, "Waiting", true);
+                    waitingDialog.setLayout(new BorderLayout());
+                    waitingDialog.add(new JLabel("Maximum number of connect clients reached!"), BorderLayout.NORTH);
+                    waitingDialog.add(waitingLabel, BorderLayout.CENTER);
+                    waitingDialog.add(queueLabel, BorderLayout.SOUTH);
+                    waitingDialog.setSize(300, 150);
+                    waitingDialog.setLocationRelativeTo(ChatFrame.this);
+                    JDialog finalWaitingDialog = waitingDialog;
+                    SwingUtilities.invokeLater(() -> finalWaitingDialog.setVisible(true));
+                }
+                SwingUtilities.invokeLater(() -> waitingLabel.setText("Waiting for " + waitTime + " seconds"));
+            } else if (line.startsWith("QUEUE:")) {
+                // position in the server's admission queue, sent alongside every WAIT
+                String position = line.substring(6).trim();
+                SwingUtilities.invokeLater(() -> queueLabel.setText("Position in queue: " + position));
+            } else if (line.equals("FULL") || line.equals("START")) {
+                break;
+            }
+        }
+        if (waitingDialog != null) {
+            JDialog finalWaitingDialog1 = waitingDialog;
+            SwingUtilities.invokeLater(() -> finalWaitingDialog1.dispose());
+        }
+        return line;
+    }
+
+    // everything after signing in, the first time and after each reconnect
+    private void signedIn() {
+        ServerConnection current = connection;
+        startMessageReader(current);
+        // the roster snapshot and then JOIN/LEAVE/REGISTERED as they happen
+        current.send("PRESENCE:on");
+        for (String group : groups) {
+            current.send(new Frame(Frame.Type.GROUP_JOIN, new String[]{group}, null, null));
+        }
+        // carry on with any file transfers that were cut off last time
+        transfers.resumePending();
+        // and messages the server hadn't confirmed
+        delivery.attach(current);
+    }
+
+    // background thread responsible for handling incoming messages, reconnects when the server goes away
+    private void startMessageReader(ServerConnection current) {
         new Thread(() -> {
-            String line;
+            Frame frame;
             try {
-                while ((line = in.readLine()) != null) {
-                    processIncomingMessage(line);
+                while ((frame = current.readFrame()) != null) {
+                    frame = delivery.handle(frame);
+                    if (frame != null) processIncomingMessage(frame);
                 }
             } catch(IOException e){
                 e.printStackTrace();
             }
+            delivery.detach(current);
+            reconnect();
         }).start();
     }
 
-    // refresh the list of registered users
-    private void refreshUsers() {
-        String[] users = DatabaseManager.getAllUsers();
-        listModel.clear();
-        for(String user : users) {
-            if (!user.equals(username)) {
-                listModel.addElement(user);
+    // signs in again with the token from the last AUTH_OK, or the password once the token has expired, trying
+    // again with a growing wait while the server is down or full
+    private void reconnect() {
+        appendChat("Connection lost, reconnecting...", Color.GRAY);
+        for (int wait = 1; ; wait = Math.min(wait * 2, RECONNECT_MAX)) {
+            try {
+                Thread.sleep(wait * 1000L);
+            } catch (InterruptedException e) {
+                return;
+            }
+            ServerConnection next = null;
+            try {
+                next = new ServerConnection(HOST, PORT);
+                if (!"START".equals(admit(next))) {
+                    next.close();
+                    continue;
+                }
+                Frame reply = next.signIn(Frame.Type.RESUME, username, token);
+                if (reply.type == Frame.Type.AUTH_FAIL) {
+                    reply = next.signIn(Frame.Type.AUTH, username, password);
+                }
+                if (reply.type == Frame.Type.AUTH_FAIL) {
+                    next.close();
+                    appendChat("Couldn't sign in again: " + reply.fields[0], Color.RED);
+                    return;
+                }
+                token = reply.fields[0];
+                connection = next;
+                transfers.setConnection(next);
+                // the new roster snapshot says who is online now
+                SwingUtilities.invokeLater(online::clear);
+                appendChat("Reconnected", Color.GRAY);
+                signedIn();
+                return;
+            } catch (IOException e) {
+                // still down
+                if (next != null) next.close();
             }
         }
     }
 
+    // applies ROSTER, JOIN, LEAVE and REGISTERED from the server to the users list, returns false for other lines
+    private boolean handleRoster(String line) {
+        String[] parts = line.split(":", 3);
+        if (line.startsWith("ROSTER:") && parts.length == 3) {
+            boolean isOnline = parts[1].equals("online");
+            String[] users = parts[2].isEmpty() ? new String[0] : parts[2].split(",");
+            SwingUtilities.invokeLater(() -> {
+                for (String user : users) {
+                    addUser(user, isOnline);
+                }
+                usersList.repaint();
+            });
+        } else if ((line.startsWith("JOIN:") || line.startsWith("REGISTERED:")) && parts.length == 2) {
+            boolean isOnline = parts[0].equals("JOIN");
+            SwingUtilities.invokeLater(() -> {
+                addUser(parts[1], isOnline);
+                usersList.repaint();
+            });
+        } else if (line.startsWith("LEAVE:") && parts.length == 2) {
+            SwingUtilities.invokeLater(() -> {
+                online.remove(parts[1]);
+                usersList.repaint();
+            });
+        } else {
+            return false;
+        }
+        return true;
+    }
+
+    private void addUser(String user, boolean isOnline) {
+        if (user.equals(username)) return;
+        if (isOnline) online.add(user);
+        if (listed.add(user)) {
+            listModel.addElement(user);
+        }
+    }
+
     // handles sending messages to other clients
     private void sendMessage() {
         String message = messageField.getText().trim();
         if(message.isEmpty()) return;
+        // group chats don't need a user selected
+        if(message.startsWith("/")) {
+            sendGroupCommand(message);
+            return;
+        }
         String recipient = usersList.getSelectedValue();
         if(recipient == null) {
             JOptionPane.showMessageDialog(ChatFrame.this, "You must select a user to message");
             return;
         }
-        String encryptedMessage = EncryptionUtils.encrypt(message);
-        out.println("TO:" + recipient + ":" + encryptedMessage);
-        appendChat("To " + recipient + " (" + getCurrentTime() + "): " + message, Color.BLUE);
+        byte[] plain = message.getBytes(StandardCharsets.UTF_8);
+        byte[] encryptedMessage = EncryptionUtils.seal(plain, 0, plain.length, null);
+        outgoing.execute(() -> {
+            try {
+                if (!delivery.send(recipient, encryptedMessage)) {
+                    appendChat("Not sent to " + recipient + ", the connection is down", Color.RED);
+                }
+            } catch (InterruptedException e) {
+                // closing
+            }
+        });
+        showMessage(history.record(recipient, username, message));
         messageField.setText("");
     }
 
+    // "/join team", "/leave team", "/group team message" and "/search words"
+    private void sendGroupCommand(String command) {
+        String[] parts = command.split(" ", 3);
+        if(parts.length >= 2 && parts[0].equals("/search")) {
+            String query = command.substring("/search".length()).trim();
+            // answered on the history's thread, appendChat takes it from there
+            history.search(query, SEARCH_RESULTS).thenAccept(found -> {
+                appendChat("Search for \"" + query + "\": " + (found.isEmpty() ? "nothing found" : found.size() + " latest"), Color.GRAY);
+                for (ChatHistory.Message message : found) {
+                    appendChat("  " + messageLine(message), Color.GRAY);
+                }
+            });
+        } else if(parts.length >= 2 && parts[0].equals("/join")) {
+            connection.send(new Frame(Frame.Type.GROUP_JOIN, new String[]{parts[1]}, null, null));
+            groups.add(parts[1]);
+            appendChat("Joined group " + parts[1], Color.GRAY);
+        } else if(parts.length >= 2 && parts[0].equals("/leave")) {
+            connection.send(new Frame(Frame.Type.GROUP_LEAVE, new String[]{parts[1]}, null, null));
+            groups.remove(parts[1]);
+            appendChat("Left group " + parts[1], Color.GRAY);
+        } else if(parts.length == 3 && parts[0].equals("/group")) {
+            byte[] plain = parts[2].getBytes(StandardCharsets.UTF_8);
+            byte[] encryptedMessage = EncryptionUtils.seal(plain, 0, plain.length, null);
+            connection.send(new Frame(Frame.Type.TO_GROUP, new String[]{parts[1]}, null, encryptedMessage));
+            showMessage(history.record(GROUP + parts[1], username, parts[2]));
+        } else {
+            JOptionPane.showMessageDialog(this, "Commands are /join name, /leave name, /group name message and /search words");
+            return;
+        }
+        messageField.setText("");
+    }
 
     // handles file uploads
     private void uploadFile() {
@@ -196,18 +437,15 @@ public class ChatFrame extends JFrame {
                 JOptionPane.showMessageDialog(this, "File type not allowed.");
                 return;
             }
+            String recipient = usersList.getSelectedValue();
+            if(recipient == null) {
+                JOptionPane.showMessageDialog(this,"You must select a user to send a file to");
+                return;
+            }
             try {
-                // serialize file and encrypt then send
-                byte[] fileBytes = java.nio.file.Files.readAllBytes(file.toPath());
-                String fileData = Base64.getEncoder().encodeToString(fileBytes);
-                String encryptedFileData = EncryptionUtils.encrypt(fileData);
-                String recipient = usersList.getSelectedValue();
-                if(recipient == null) {
-                    JOptionPane.showMessageDialog(this,"You must select a user to send a file to");
-                    return;
-                }
-                out.println("FILE:" + recipient + ":" + fileName + ":" + encryptedFileData);
-                appendChat("Sent file " + fileName + " to " + recipient + " (" + getCurrentTime() + ")", Color.BLUE);
+                // hashed and streamed in chunks straight from disk in the background, see FileTransfers
+                transfers.send(file, recipient);
+                appendChat("Sending file " + fileName + " to " + recipient + " (" + getCurrentTime() + ")", Color.BLUE);
             } catch (IOException e) {
                 e.printStackTrace();
             }
@@ -215,58 +453,87 @@ public class ChatFrame extends JFrame {
     }
 
     // handle incoming messages
-    private void processIncomingMessage(String line) {
+    private void processIncomingMessage(Frame frame) {
+        if (transfers.handle(frame)) return;
         // if text message, display message in chat area and alert user with notification
-        if(line.startsWith("FROM:")) {
-            String[] parts = line.split(":", 3);
-            if(parts.length >= 3) {
-                String sender = parts[1];
-                String encryptedMessage = parts[2];
-                String message = EncryptionUtils.decrypt(encryptedMessage);
-                appendChat("From " + sender + " (" + getCurrentTime() + "): " + message, Color.MAGENTA);
+        if(frame.type == Frame.Type.FROM || frame.type == Frame.Type.FROM_GROUP) {
+            // a group message has the group before the sender
+            boolean group = frame.type == Frame.Type.FROM_GROUP;
+            String sender = frame.fields[group ? 1 : 0];
+            byte[] plain;
+            try {
+                plain = EncryptionUtils.open(frame.payloadBytes(), null);
+            } catch (IllegalArgumentException e) {
+                plain = null;
+            }
+            if(plain != null) {
+                String message = new String(plain, StandardCharsets.UTF_8);
+                showMessage(history.record(group ? GROUP + frame.fields[0] : sender, sender, message));
                 if(!muted) {
                     Toolkit.getDefaultToolkit().beep(); // notification sound
                 }
             }
-            // if file, deserialize file and save to a folder named downloads
-        } else if(line.startsWith("FILEFROM:")) {
-            String[] parts = line.split(":", 4);
-            if(parts.length >= 4) {
-                String sender = parts[1];
-                String fileName = parts[2];
-                String encryptedFileData = parts[3];
-                String fileData = EncryptionUtils.decrypt(encryptedFileData);
-                byte[] fileBytes = Base64.getDecoder().decode(fileData);
-                try {
-                    File downloads = new File("downloads");
-                    if(!downloads.exists()) downloads.mkdir();
-                    File outFile = new File(downloads, fileName);
-                    try (FileOutputStream fos = new FileOutputStream(outFile)) {
-                        fos.write(fileBytes);
-                    }
-                    appendChat("Received file " + fileName + " from " + sender + " (" + getCurrentTime() + ")", Color.MAGENTA);
-                    if(!muted) {
-                        Toolkit.getDefaultToolkit().beep();
-                    }
-                } catch(IOException e) {
-                    e.printStackTrace();
-                }
-            }
+            return;
         }
+        String line = TextCodec.format(frame);
+        if (handleRoster(line)) return;
     }
 
-    // helper method for appending colored chats to chatPanel
+    private void transferProgress(String sender, String fileName, int percent) {
+        JProgressBar bar = progressBars.get(sender + ":" + fileName);
+        if (bar == null) {
+            // the last progress update can land after the file is done
+            if (percent >= 100) return;
+            bar = new JProgressBar(0, 100);
+            bar.setStringPainted(true);
+            progressBars.put(sender + ":" + fileName, bar);
+            transfersPanel.add(bar);
+            transfersPanel.revalidate();
+        }
+        bar.setValue(percent);
+        bar.setString(fileName + " from " + sender + " " + percent + "%");
+    }
+
+    private void transferDone(String sender, String fileName) {
+        JProgressBar bar = progressBars.remove(sender + ":" + fileName);
+        if (bar != null) {
+            transfersPanel.remove(bar);
+            transfersPanel.revalidate();
+            transfersPanel.repaint();
+        }
+    }
+
+    // why the server couldn't deliver or keep a message, from the status in its ACK
+    private static String undelivered(String status) {
+        switch (status) {
+            case "unknown": return "no such user";
+            case "dropped": return "they are too far behind";
+            default: return status;
+        }
+    }
+
+    // helper method for appending colored chats to the chat area, from any thread
     private void appendChat(String message, Color color) {
-        Style style = chatArea.addStyle("Style", null);
-        StyleConstants.setForeground(style, color);
-        try {
-            doc.insertString(doc.getLength(), message + "\n", style);
-        } catch (BadLocationException e) {
-            e.printStackTrace();
+        chatView.append(message, color);
+    }
+
+    private void showMessage(ChatHistory.Message message) {
+        appendChat(messageLine(message), message.sender.equals(username) ? Color.BLUE : Color.MAGENTA);
+    }
+
+    // the same lines as messages have always been shown with, plus the date for ones from an earlier day
+    private String messageLine(ChatHistory.Message message) {
+        LocalDateTime time = LocalDateTime.ofInstant(Instant.ofEpochMilli(message.time), ZoneId.systemDefault());
+        String when = time.format(time.toLocalDate().equals(LocalDate.now()) ? TIME : DATE_TIME);
+        boolean own = message.sender.equals(username);
+        if (message.conversation.startsWith(GROUP)) {
+            String group = "[" + message.conversation.substring(GROUP.length()) + "] ";
+            return group + (own ? "To group" : "From " + message.sender) + " (" + when + "): " + message.text;
         }
+        return (own ? "To " + message.conversation : "From " + message.sender) + " (" + when + "): " + message.text;
     }
 
     private String getCurrentTime() {
-        return new SimpleDateFormat("HH:mm:ss").format(new Date());
+        return LocalTime.now().format(TIME);
     }
 }
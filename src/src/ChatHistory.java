@@ -0,0 +1,470 @@
+import java.io.*;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+// the client's own copy of its conversations, so they survive a restart and can be searched. each conversation,
+// a user or "group:name", is an append-only log of messages next to a file of where each one starts, so its last
+// messages are read from the end without going through the rest. words are found through an inverted index from
+// each lowercased word to the ids of the messages it is in, delta encoded as varints. the index is saved now and
+// then and on close with how much of each log it covers, the next start only indexes what was added after that.
+// all of it runs on one background thread, the methods can be called from any thread
+public class ChatHistory {
+    // messages indexed between saves of the index
+    private static final int SAVE_EVERY = 1000;
+    // longer words aren't indexed, e.g. a pasted link
+    private static final int MAX_WORD = 64;
+    private static final int MAGIC = 0x4C554849;
+
+    public static class Message {
+        public final String conversation;
+        // milliseconds since the epoch
+        public final long time;
+        public final String sender;
+        public final String text;
+
+        Message(String conversation, long time, String sender, String text) {
+            this.conversation = conversation;
+            this.time = time;
+            this.sender = sender;
+            this.text = text;
+        }
+    }
+
+    private static class Conversation {
+        final int number;
+        final String name;
+        final File file;
+        // a record is the length of the rest, the time, the sender and the text
+        final RandomAccessFile log;
+        // a long per record, where it starts in log
+        final RandomAccessFile offsets;
+        // bytes of log the index covers
+        long indexed;
+
+        Conversation(int number, String name, File file, RandomAccessFile offsets) throws IOException {
+            this.number = number;
+            this.name = name;
+            this.file = file;
+            this.log = new RandomAccessFile(file, "rw");
+            this.offsets = offsets;
+        }
+    }
+
+    // the ids of the messages a word is in, ascending
+    private static class Postings {
+        byte[] bytes = new byte[4];
+        int length;
+        int count;
+        int last = -1;
+
+        void add(int id) {
+            if (id == last) return;
+            int delta = id - last;
+            if (length + 5 > bytes.length) bytes = Arrays.copyOf(bytes, bytes.length * 2);
+            while ((delta & ~0x7F) != 0) {
+                bytes[length++] = (byte) ((delta & 0x7F) | 0x80);
+                delta >>>= 7;
+            }
+            bytes[length++] = (byte) delta;
+            last = id;
+            count++;
+        }
+
+        int[] ids() {
+            int[] ids = new int[count];
+            int id = -1;
+            int position = 0;
+            for (int i = 0; i < count; i++) {
+                int delta = 0;
+                int shift = 0;
+                byte b;
+                do {
+                    b = bytes[position++];
+                    delta |= (b & 0x7F) << shift;
+                    shift += 7;
+                } while (b < 0);
+                id += delta;
+                ids[i] = id;
+            }
+            return ids;
+        }
+    }
+
+    private final File dir;
+    private final ExecutorService worker = Executors.newSingleThreadExecutor(task -> {
+        Thread t = new Thread(task, "chat-history");
+        t.setDaemon(true);
+        return t;
+    });
+
+    // everything below is only touched on the worker
+    private final List<Conversation> conversations = new ArrayList<>();
+    private final Map<String, Conversation> byName = new HashMap<>();
+    // by message id, the conversation it is in and where in its log
+    private int[] messageConversation = new int[1024];
+    private long[] messageOffset = new long[1024];
+    private int messages;
+    private final Map<String, Postings> index = new HashMap<>();
+    private int unsaved;
+
+    // opens or creates the history in dir, what was added since the index was last saved is indexed in the background
+    public ChatHistory(File dir) {
+        this.dir = dir;
+        worker.execute(() -> {
+            try {
+                load();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        });
+    }
+
+    // written and indexed in the background, the message is returned straight away for showing
+    public Message record(String conversation, String sender, String text) {
+        Message message = new Message(conversation, System.currentTimeMillis(), sender, text);
+        worker.execute(() -> {
+            try {
+                append(message);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        });
+        return message;
+    }
+
+    // the last count messages of all conversations together, oldest first. read straight from the files rather
+    // than on the worker, so they can be shown while the index is still loading
+    public CompletableFuture<List<Message>> recent(int count) {
+        return CompletableFuture.supplyAsync(() -> {
+            List<Message> recent = new ArrayList<>();
+            File[] logs = dir.listFiles((d, name) -> name.endsWith(".log"));
+            if (logs == null) return recent;
+            for (File log : logs) {
+                String file = log.getName().substring(0, log.getName().length() - 4);
+                try (RandomAccessFile offsets = new RandomAccessFile(new File(dir, file + ".offsets"), "r")) {
+                    long records = offsets.length() / 8;
+                    if (records == 0) continue;
+                    offsets.seek(Math.max(0, records - count) * 8);
+                    readFrom(log, URLDecoder.decode(file, StandardCharsets.UTF_8), offsets.readLong(), recent, null);
+                } catch (IOException e) {
+                    // a conversation started since the listing, or one being repaired
+                }
+            }
+            recent.sort(Comparator.comparingLong(message -> message.time));
+            return new ArrayList<>(recent.subList(Math.max(0, recent.size() - count), recent.size()));
+        });
+    }
+
+    // the newest messages, up to limit, that have every word of the query in them or their sender, oldest first
+    public CompletableFuture<List<Message>> search(String query, int limit) {
+        return CompletableFuture.supplyAsync(() -> {
+            List<Message> found = new ArrayList<>();
+            List<Postings> lists = new ArrayList<>();
+            for (String word : words(query)) {
+                Postings postings = index.get(word);
+                if (postings == null) return found;
+                lists.add(postings);
+            }
+            if (lists.isEmpty()) return found;
+            // the rarest word first, every step after it can only make the list shorter
+            lists.sort(Comparator.comparingInt(postings -> postings.count));
+            int[] ids = lists.get(0).ids();
+            int matches = ids.length;
+            for (int i = 1; i < lists.size() && matches > 0; i++) {
+                matches = intersect(ids, matches, lists.get(i).ids());
+            }
+            try {
+                for (int i = Math.max(0, matches - limit); i < matches; i++) {
+                    found.add(read(ids[i]));
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            // ids follow the order messages were indexed in, which after a rebuild is one conversation at a time
+            found.sort(Comparator.comparingLong(message -> message.time));
+            return found;
+        }, worker);
+    }
+
+    // saves the index and closes the files, waiting for what is queued first
+    public synchronized void close() {
+        if (worker.isShutdown()) return;
+        worker.execute(() -> {
+            try {
+                if (unsaved > 0) save();
+                for (Conversation conversation : conversations) {
+                    conversation.log.close();
+                    conversation.offsets.close();
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        });
+        worker.shutdown();
+        try {
+            worker.awaitTermination(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // keeps the ids in ids[0, count) that are also in other and returns how many
+    private static int intersect(int[] ids, int count, int[] other) {
+        int kept = 0;
+        int j = 0;
+        for (int i = 0; i < count && j < other.length; i++) {
+            while (j < other.length && other[j] < ids[i]) j++;
+            if (j < other.length && other[j] == ids[i]) ids[kept++] = ids[i];
+        }
+        return kept;
+    }
+
+    // lowercased runs of letters and digits
+    static List<String> words(String text) {
+        List<String> words = new ArrayList<>();
+        int start = -1;
+        for (int i = 0; i <= text.length(); i++) {
+            boolean inWord = i < text.length() && Character.isLetterOrDigit(text.charAt(i));
+            if (inWord && start < 0) {
+                start = i;
+            } else if (!inWord && start >= 0) {
+                if (i - start <= MAX_WORD) words.add(text.substring(start, i).toLowerCase(Locale.ROOT));
+                start = -1;
+            }
+        }
+        return words;
+    }
+
+    private void append(Message message) throws IOException {
+        Conversation conversation = conversation(message.conversation);
+        ByteArrayOutputStream record = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(record);
+        byte[] text = message.text.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(0);
+        out.writeLong(message.time);
+        out.writeUTF(message.sender);
+        out.write(text);
+        byte[] bytes = record.toByteArray();
+        int length = bytes.length - 4;
+        bytes[0] = (byte) (length >>> 24);
+        bytes[1] = (byte) (length >>> 16);
+        bytes[2] = (byte) (length >>> 8);
+        bytes[3] = (byte) length;
+        long offset = conversation.log.length();
+        conversation.log.seek(offset);
+        conversation.log.write(bytes);
+        conversation.offsets.seek(conversation.offsets.length());
+        conversation.offsets.writeLong(offset);
+        add(conversation, offset, message);
+        conversation.indexed = offset + bytes.length;
+        // saving costs as much as the index is big, so it is done less often as it grows
+        if (++unsaved >= Math.max(SAVE_EVERY, messages / 4)) save();
+    }
+
+    private void add(Conversation conversation, long offset, Message message) {
+        if (messages == messageOffset.length) {
+            messageConversation = Arrays.copyOf(messageConversation, messages * 2);
+            messageOffset = Arrays.copyOf(messageOffset, messages * 2);
+        }
+        int id = messages++;
+        messageConversation[id] = conversation.number;
+        messageOffset[id] = offset;
+        for (String word : words(message.sender + " " + message.text)) {
+            index.computeIfAbsent(word, key -> new Postings()).add(id);
+        }
+    }
+
+    private Message read(int id) throws IOException {
+        Conversation conversation = conversations.get(messageConversation[id]);
+        conversation.log.seek(messageOffset[id]);
+        byte[] record = new byte[conversation.log.readInt()];
+        conversation.log.readFully(record);
+        return parse(conversation.name, record);
+    }
+
+    // the records from offset to the end of the log, and where each one starts if offsets isn't null. stops at a
+    // record that is still being written
+    private static void readFrom(File log, String conversation, long offset, List<Message> into, List<Long> offsets)
+            throws IOException {
+        try (FileInputStream file = new FileInputStream(log)) {
+            long end = file.getChannel().size();
+            file.getChannel().position(offset);
+            DataInputStream in = new DataInputStream(new BufferedInputStream(file,
+                    (int) Math.max(1, Math.min(64 * 1024, end - offset))));
+            while (offset + 4 <= end) {
+                int length = in.readInt();
+                if (length < 0 || offset + 4 + length > end) break;
+                byte[] record = new byte[length];
+                in.readFully(record);
+                into.add(parse(conversation, record));
+                if (offsets != null) offsets.add(offset);
+                offset += 4 + length;
+            }
+        }
+    }
+
+    private static Message parse(String conversation, byte[] record) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(record));
+        long time = in.readLong();
+        String sender = in.readUTF();
+        String text = new String(record, record.length - in.available(), in.available(), StandardCharsets.UTF_8);
+        return new Message(conversation, time, sender, text);
+    }
+
+    private Conversation conversation(String name) throws IOException {
+        Conversation conversation = byName.get(name);
+        if (conversation != null) return conversation;
+        if (!dir.exists()) dir.mkdirs();
+        String file = URLEncoder.encode(name, StandardCharsets.UTF_8);
+        conversation = new Conversation(conversations.size(), name, new File(dir, file + ".log"),
+                new RandomAccessFile(new File(dir, file + ".offsets"), "rw"));
+        conversations.add(conversation);
+        byName.put(name, conversation);
+        return conversation;
+    }
+
+    private void load() throws IOException {
+        if (!loadIndex()) {
+            // missing or out of step with the logs, everything is indexed again
+            for (Conversation conversation : conversations) {
+                conversation.log.close();
+                conversation.offsets.close();
+            }
+            conversations.clear();
+            byName.clear();
+            index.clear();
+            messages = 0;
+        }
+        File[] logs = dir.listFiles((d, name) -> name.endsWith(".log"));
+        if (logs == null) return;
+        for (File log : logs) {
+            String file = log.getName();
+            conversation(URLDecoder.decode(file.substring(0, file.length() - 4), StandardCharsets.UTF_8));
+        }
+        for (Conversation conversation : conversations) {
+            repair(conversation);
+            // what was written after the index was last saved
+            List<Message> added = new ArrayList<>();
+            List<Long> offsets = new ArrayList<>();
+            readFrom(conversation.file, conversation.name, conversation.indexed, added, offsets);
+            for (int i = 0; i < added.size(); i++) {
+                add(conversation, offsets.get(i), added.get(i));
+            }
+            // repair left the log ending with a whole record
+            conversation.indexed = conversation.log.length();
+            unsaved += added.size();
+        }
+        if (unsaved > 0) save();
+    }
+
+    // what the log and offsets files hold after a crash part way through an append: a record cut short is dropped
+    // and the offsets of records whose offset wasn't written are added
+    private static void repair(Conversation conversation) throws IOException {
+        RandomAccessFile log = conversation.log;
+        RandomAccessFile offsets = conversation.offsets;
+        long records = offsets.length() / 8;
+        // offsets of records that didn't make it into the log whole
+        while (records > 0 && end(log, readOffset(offsets, records - 1)) < 0) {
+            records--;
+        }
+        offsets.setLength(records * 8);
+        long offset = records == 0 ? 0 : end(log, readOffset(offsets, records - 1));
+        long next;
+        while ((next = end(log, offset)) >= 0) {
+            offsets.seek(offsets.length());
+            offsets.writeLong(offset);
+            offset = next;
+        }
+        log.setLength(offset);
+        conversation.indexed = Math.min(conversation.indexed, offset);
+    }
+
+    // where the record at offset ends, -1 if it isn't all there
+    private static long end(RandomAccessFile log, long offset) throws IOException {
+        if (offset + 4 > log.length()) return -1;
+        log.seek(offset);
+        int length = log.readInt();
+        long end = offset + 4 + length;
+        return length < 0 || end > log.length() ? -1 : end;
+    }
+
+    private static long readOffset(RandomAccessFile offsets, long record) throws IOException {
+        offsets.seek(record * 8);
+        return offsets.readLong();
+    }
+
+    private boolean loadIndex() throws IOException {
+        File file = new File(dir, "index");
+        if (!file.exists()) return false;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (in.readInt() != MAGIC) return false;
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                Conversation conversation = conversation(in.readUTF());
+                conversation.indexed = in.readLong();
+                // a log that is shorter than the index says was changed behind its back
+                if (conversation.log.length() < conversation.indexed) return false;
+            }
+            messages = in.readInt();
+            messageConversation = new int[Math.max(1024, messages)];
+            messageOffset = new long[Math.max(1024, messages)];
+            for (int i = 0; i < messages; i++) {
+                messageConversation[i] = in.readInt();
+                messageOffset[i] = in.readLong();
+            }
+            int words = in.readInt();
+            for (int i = 0; i < words; i++) {
+                String word = in.readUTF();
+                Postings postings = new Postings();
+                postings.count = in.readInt();
+                postings.last = in.readInt();
+                postings.length = in.readInt();
+                postings.bytes = new byte[Math.max(4, postings.length)];
+                in.readFully(postings.bytes, 0, postings.length);
+                index.put(word, postings);
+            }
+            return true;
+        } catch (EOFException e) {
+            return false;
+        }
+    }
+
+    // written next to the old one and renamed over it, so a crash leaves one or the other
+    private void save() throws IOException {
+        if (!dir.exists()) dir.mkdirs();
+        File temp = new File(dir, "index.tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(conversations.size());
+            for (Conversation conversation : conversations) {
+                out.writeUTF(conversation.name);
+                out.writeLong(conversation.indexed);
+            }
+            out.writeInt(messages);
+            for (int i = 0; i < messages; i++) {
+                out.writeInt(messageConversation[i]);
+                out.writeLong(messageOffset[i]);
+            }
+            out.writeInt(index.size());
+            for (Map.Entry<String, Postings> entry : index.entrySet()) {
+                Postings postings = entry.getValue();
+                out.writeUTF(entry.getKey());
+                out.writeInt(postings.count);
+                out.writeInt(postings.last);
+                out.writeInt(postings.length);
+                out.write(postings.bytes, 0, postings.length);
+            }
+        }
+        Files.move(temp.toPath(), new File(dir, "index").toPath(), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+        unsaved = 0;
+    }
+}
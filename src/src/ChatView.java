@@ -0,0 +1,187 @@
+import javax.swing.*;
+import javax.swing.text.BadLocationException;
+import javax.swing.text.DefaultCaret;
+import javax.swing.text.Style;
+import javax.swing.text.StyleConstants;
+import javax.swing.text.StyledDocument;
+import java.awt.*;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+// the chat area. lines can be added from any thread, they are queued and handled on the event dispatch thread
+// one batch at a time, however many arrived since the last one. the document only ever holds a window of the
+// history, which is kept in memory up to luconnect.chatHistory lines: the newest lines while the user follows
+// the conversation at the bottom, plus a page more each time they scroll to the top. lines that arrive while
+// they are reading further up are added once they scroll back down
+public class ChatView {
+    private static final int KEPT = Integer.getInteger("luconnect.chatHistory", 10000);
+    // lines left in the document while the user is following the conversation at the bottom
+    private static final int SHOWN = 500;
+    // lines put back each time the user scrolls to the top
+    private static final int PAGE = 200;
+    // pixels from the bottom that still count as following the conversation
+    private static final int BOTTOM_SLACK = 16;
+
+    private static class Line {
+        final String text;
+        final Color color;
+
+        Line(String text, Color color) {
+            this.text = text + "\n";
+            this.color = color;
+        }
+    }
+
+    private final JTextPane pane = new JTextPane();
+    private final JScrollPane scrollPane = new JScrollPane(pane);
+    private final StyledDocument doc = pane.getStyledDocument();
+    private final Queue<Line> incoming = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean flushScheduled = new AtomicBoolean();
+
+    // everything below is only touched on the event dispatch thread
+    private final List<Line> history = new ArrayList<>();
+    // the lines of history in the document are [firstShown, lastShown)
+    private int firstShown;
+    private int lastShown;
+    // one style per colour, made the first time it is used
+    private final Map<Color, Style> styles = new HashMap<>();
+    private boolean loadingOlder;
+
+    public ChatView() {
+        pane.setEditable(false);
+        // scrolling is done here, so the view doesn't jump to new lines while the user is reading older ones
+        ((DefaultCaret) pane.getCaret()).setUpdatePolicy(DefaultCaret.NEVER_UPDATE);
+        scrollPane.getVerticalScrollBar().addAdjustmentListener(e -> {
+            if (e.getValueIsAdjusting() || loadingOlder) return;
+            if (e.getValue() == 0 && firstShown > 0) {
+                loadOlder();
+            } else if (lastShown < history.size() && atBottom()) {
+                showNewest();
+            }
+        });
+    }
+
+    public JComponent component() {
+        return scrollPane;
+    }
+
+    // safe from any thread
+    public void append(String text, Color color) {
+        incoming.add(new Line(text, color));
+        if (flushScheduled.compareAndSet(false, true)) {
+            SwingUtilities.invokeLater(this::flush);
+        }
+    }
+
+    private void flush() {
+        flushScheduled.set(false);
+        List<Line> batch = new ArrayList<>();
+        Line line;
+        while ((line = incoming.poll()) != null) {
+            batch.add(line);
+        }
+        if (batch.isEmpty()) return;
+        history.addAll(batch);
+        if (history.size() > KEPT + PAGE) {
+            // dropped in steps of a page so the list isn't shifted for every line
+            int drop = history.size() - KEPT;
+            removeShown(drop);
+            history.subList(0, drop).clear();
+            firstShown = Math.max(0, firstShown - drop);
+            lastShown = Math.max(0, lastShown - drop);
+        }
+        if (atBottom()) {
+            showNewest();
+        }
+    }
+
+    // brings the document up to the newest SHOWN lines and scrolls to the end
+    private void showNewest() {
+        int from = history.size() - SHOWN;
+        if (from > lastShown) {
+            // a flood of lines went past everything shown, the ones in between are only in history
+            removeShown(lastShown);
+            firstShown = from;
+            lastShown = from;
+        }
+        insert(doc.getLength(), history.subList(lastShown, history.size()));
+        lastShown = history.size();
+        removeShown(lastShown - SHOWN);
+        // after the document change has been laid out
+        SwingUtilities.invokeLater(() -> {
+            JScrollBar bar = scrollPane.getVerticalScrollBar();
+            bar.setValue(bar.getMaximum());
+        });
+    }
+
+    // takes the lines before index upTo in history out of the top of the document
+    private void removeShown(int upTo) {
+        upTo = Math.min(upTo, lastShown);
+        if (upTo <= firstShown) return;
+        int length = 0;
+        for (int i = firstShown; i < upTo; i++) {
+            length += history.get(i).text.length();
+        }
+        try {
+            doc.remove(0, length);
+        } catch (BadLocationException e) {
+            e.printStackTrace();
+        }
+        firstShown = upTo;
+    }
+
+    private void loadOlder() {
+        int from = Math.max(0, firstShown - PAGE);
+        JScrollBar bar = scrollPane.getVerticalScrollBar();
+        int oldMaximum = bar.getMaximum();
+        int oldValue = bar.getValue();
+        insert(0, history.subList(from, firstShown));
+        firstShown = from;
+        loadingOlder = true;
+        // keep the line the user was looking at in the same place once the new height is known
+        SwingUtilities.invokeLater(() -> {
+            bar.setValue(oldValue + bar.getMaximum() - oldMaximum);
+            loadingOlder = false;
+        });
+    }
+
+    // consecutive lines of the same colour go in as one string
+    private void insert(int offset, List<Line> lines) {
+        StringBuilder run = new StringBuilder();
+        Color runColor = null;
+        try {
+            for (Line line : lines) {
+                if (runColor != null && !line.color.equals(runColor)) {
+                    doc.insertString(offset, run.toString(), style(runColor));
+                    offset += run.length();
+                    run.setLength(0);
+                }
+                runColor = line.color;
+                run.append(line.text);
+            }
+            if (run.length() > 0) {
+                doc.insertString(offset, run.toString(), style(runColor));
+            }
+        } catch (BadLocationException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private Style style(Color color) {
+        return styles.computeIfAbsent(color, key -> {
+            Style style = pane.addStyle("chat-" + Integer.toHexString(key.getRGB()), null);
+            StyleConstants.setForeground(style, key);
+            return style;
+        });
+    }
+
+    private boolean atBottom() {
+        JScrollBar bar = scrollPane.getVerticalScrollBar();
+        return bar.getValue() + bar.getVisibleAmount() >= bar.getMaximum() - BOTTOM_SLACK;
+    }
+}
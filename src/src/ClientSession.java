@@ -0,0 +1,114 @@
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+// a single admitted client connection, independent of the engine that is serving it
+public abstract class ClientSession {
+    // set once the client has signed in
+    protected volatile String username;
+    // text until the client asks for something else at the handshake, changed under the session lock
+    private volatile FrameCodec codec = FrameCodec.TEXT;
+    // held while the session is signed in or out, so a sign in that finishes after the client left is dropped
+    final Object signInLock = new Object();
+    boolean signedOut;
+    // System.nanoTime() of the last frame from the client and the pending check on it, see Heartbeats
+    volatile long lastHeard;
+    volatile TimerWheel.Timeout heartbeat;
+    // the signed in user's rate limits, null before sign in or with the limits off
+    volatile RateLimits.Limiter limiter;
+    // set by "PROTO:ACK1", the client confirms each MSG_FROM with RECEIVED. others get them as plain FROM
+    volatile boolean confirms;
+    // from the client's KEY, what its passwords are sealed with, and the sign ins that have failed, see Auth
+    volatile SecretKeySpec signInKey;
+    volatile int signInFailures;
+
+    public String getUsername() {
+        return username;
+    }
+
+    public FrameCodec codec() {
+        return codec;
+    }
+
+    // deliver one message to this client in whatever protocol it speaks, false if it was dropped
+    public boolean send(Frame frame) {
+        awaitRoom();
+        synchronized (this) {
+            ByteBuffer[] encoded;
+            try {
+                // a file chunk's payload goes out from the buffer it was read into
+                encoded = codec.encodeParts(frame);
+            } catch (IllegalArgumentException e) {
+                // e.g. a text client's payload that isn't valid Base64 can't become a binary frame
+                return false;
+            }
+            return enqueue(frame.sender(), encoded);
+        }
+    }
+
+    // deliver a frame going to many clients, every one speaking the same protocol gets the same bytes
+    public void send(SharedFrame frame) {
+        awaitRoom();
+        synchronized (this) {
+            byte[] encoded;
+            try {
+                encoded = frame.encoded(codec);
+            } catch (IllegalArgumentException e) {
+                return;
+            }
+            enqueue(frame.sender(), ByteBuffer.wrap(encoded));
+        }
+    }
+
+    // plain text line outside the framed protocol, used before and during the handshake
+    public void sendLine(String line) {
+        awaitRoom();
+        synchronized (this) {
+            enqueue(null, ByteBuffer.wrap((line + "\n").getBytes(StandardCharsets.UTF_8)));
+        }
+    }
+
+    // the acknowledgement still goes out in the old protocol, everything queued after it in the new one
+    public synchronized void upgrade(FrameCodec next, String ackLine) {
+        sendLine(ackLine);
+        codec = next;
+    }
+
+    // called before taking the session lock, so an engine can make the sending thread wait there for room in
+    // the queue without holding up everyone else sending to this client. nothing to do where enqueue waits itself
+    protected void awaitRoom() {
+    }
+
+    // queue one frame already encoded for this client's protocol, in one or more parts to be written in order.
+    // the buffers are never written to, the engines only move their positions. frames from one sender stay in
+    // order, the engine may interleave them with other senders' and the server's own, null, frames.
+    // returns false if the frame was dropped, because the session is closed or its queue is full
+    protected abstract boolean enqueue(String sender, ByteBuffer... parts);
+
+    // the parts of a frame as one array
+    static byte[] join(ByteBuffer[] parts) {
+        int length = 0;
+        for (ByteBuffer part : parts) {
+            length += part.remaining();
+        }
+        byte[] joined = new byte[length];
+        int position = 0;
+        for (ByteBuffer part : parts) {
+            int count = part.remaining();
+            part.duplicate().get(joined, position, count);
+            position += count;
+        }
+        return joined;
+    }
+
+    // bytes waiting to be written to this client
+    public abstract long queuedBytes();
+
+    public abstract void close();
+
+    // closes a session that stopped answering, engines that only let go of its slot once their reader notices
+    // release it here
+    public void evict() {
+        close();
+    }
+}
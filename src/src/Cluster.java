@@ -0,0 +1,500 @@
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+// several servers sharing their users. every node tells the others who is connected to it, so each one holds
+// the whole directory: its own sessions and a RemoteSession for everyone on another node, which MessageRouter
+// treats like any other recipient. a frame for a remote user is forwarded over a link to the node it is on.
+// each pair of nodes talks over two connections, one each way. what a node learned from a peer is dropped
+// when the connection from that peer closes, and its users' chat messages are then kept in the store until
+// they log in again, on any node. both ends send heartbeats and a connection that goes quiet for LINK_TIMEOUT
+// is closed, so a node that crashed or can't be reached is noticed. the receiving node confirms forwarded
+// frames and those it hadn't confirmed when a link went down are kept like messages for someone offline.
+// a node only listens on the address in luconnect.node, and a link is only trusted once both nodes have
+// answered the other's random challenge with an HMAC keyed by the shared luconnect.clusterSecret, since whoever
+// holds a link can act as any user
+public class Cluster {
+    // the first frame each way, naming the node, with the HMAC of the other end's challenge. the node that
+    // opened the link adds its own challenge
+    private static final byte HELLO = 1;
+    private static final byte ONLINE = 2;
+    private static final byte OFFLINE = 3;
+    // a frame in the binary protocol for a user connected to the receiving node
+    private static final byte DELIVER = 4;
+    // a group message in the binary protocol for the group's members connected to the receiving node
+    private static final byte GROUP = 5;
+    // sent both ways every HEARTBEAT_MS
+    private static final byte HEARTBEAT = 6;
+    // back to the node that opened the link, with how many DELIVERs on it have been handled
+    private static final byte CONFIRM = 7;
+
+    private static final long LINK_LIMIT = 8 * ServerConfig.OUTBOUND_LIMIT;
+    private static final long RECONNECT_MS = 1000;
+    private static final long HEARTBEAT_MS = 1000;
+    // how long a link may go without a byte from the other end
+    private static final int LINK_TIMEOUT = 5000;
+    // what the accepting node's answer is keyed with besides the challenge, so it can't be used as the other's
+    private static final String ACCEPTED = "accepted ";
+    // bytes of the challenge the accepting node sends first
+    private static final int CHALLENGE = 32;
+    // how long either end waits for the other's side of the handshake
+    private static final int HANDSHAKE_TIMEOUT = 5000;
+    private static final SecureRandom random = new SecureRandom();
+
+    // "host:port" other nodes reach this one on, empty when it runs alone
+    private static String self = "";
+    // outgoing links by the address of the node at the other end
+    private static final Map<String, Peer> peers = new ConcurrentHashMap<>();
+    // incoming links, each with the users its node has announced
+    private static final Set<Link> links = ConcurrentHashMap.newKeySet();
+    // ONLINE/OFFLINE and the snapshot sent on a new link are queued under this, so they are never out of order
+    private static final Object lock = new Object();
+
+    // a user connected to another node, sending to it forwards the frame there
+    static class RemoteSession extends ClientSession {
+        final String node;
+
+        RemoteSession(String username, String node) {
+            this.username = username;
+            this.node = node;
+            // nodes always pass frames to each other in the binary protocol, a MSG_FROM is only turned into FROM by
+            // the node of a client that can't confirm it
+            upgrade(FrameCodec.BINARY, null);
+            confirms = true;
+        }
+
+        // lines outside the framed protocol are only for the client's own connection
+        @Override
+        public synchronized void sendLine(String line) {
+        }
+
+        @Override
+        protected boolean enqueue(String sender, ByteBuffer... parts) {
+            byte[] frame = join(parts);
+            Peer peer = peers.get(node);
+            if (peer == null || !peer.forward(username, frame)) {
+                // the link is down or backed up, keep it like a message for someone offline
+                return MessageRouter.keep(username, FrameCodec.BINARY.decode(frame, 0, frame.length));
+            }
+            return true;
+        }
+
+        // the link to the node is shared, its queue isn't this user's
+        @Override
+        public long queuedBytes() {
+            return 0;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    // the connection this node opens to another one, reopened whenever it closes
+    private static class Peer implements Runnable {
+        final String address;
+        private volatile OutboundQueue queue;
+        // users and frames of the DELIVERs on the current connection the other node hasn't confirmed yet, by
+        // their count on it. guarded by this
+        private final TreeMap<Long, Map.Entry<String, byte[]>> unconfirmed = new TreeMap<>();
+        private long forwarded;
+
+        Peer(String address) {
+            this.address = address;
+        }
+
+        // false if nothing is connected or the link is too far behind
+        boolean send(byte[] message) {
+            OutboundQueue current = queue;
+            try {
+                return current != null && current.offer(message, false);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+
+        // a frame for a user on the other node, held until it is confirmed. false like send
+        synchronized boolean forward(String username, byte[] frame) {
+            if (!send(message(DELIVER, username, frame))) return false;
+            unconfirmed.put(++forwarded, Map.entry(username, frame));
+            return true;
+        }
+
+        synchronized void confirmed(long count) {
+            unconfirmed.headMap(count, true).clear();
+        }
+
+        public void run() {
+            while (true) {
+                OutboundQueue current = null;
+                try (Socket socket = new Socket()) {
+                    socket.connect(address(address));
+                    socket.setTcpNoDelay(true);
+                    socket.setSoTimeout(HANDSHAKE_TIMEOUT);
+                    DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+                    byte[] challenge = new byte[CHALLENGE];
+                    in.readFully(challenge);
+                    byte[] ours = new byte[CHALLENGE];
+                    random.nextBytes(ours);
+                    byte[] hello = new byte[32 + CHALLENGE];
+                    System.arraycopy(proof(challenge, self), 0, hello, 0, 32);
+                    System.arraycopy(ours, 0, hello, 32, CHALLENGE);
+                    socket.getOutputStream().write(message(HELLO, self, hello));
+                    // nothing is sent before the other node has proved it holds the secret as well
+                    if (in.readByte() != HELLO) throw new IOException("no hello from " + address);
+                    String name = in.readUTF();
+                    if (in.readInt() != 32) throw new IOException("bad hello from " + address);
+                    byte[] proof = new byte[32];
+                    in.readFully(proof);
+                    if (!MessageDigest.isEqual(proof, proof(ours, ACCEPTED + name))) {
+                        System.out.println("Cluster link to " + address + " refused, wrong secret");
+                        throw new IOException("wrong secret");
+                    }
+                    socket.setSoTimeout(LINK_TIMEOUT);
+                    System.out.println("Cluster link to " + address + " up");
+                    current = new OutboundQueue(LINK_LIMIT);
+                    synchronized (lock) {
+                        for (String user : MessageRouter.localUsers()) {
+                            current.offer(message(ONLINE, user, null), false);
+                        }
+                        queue = current;
+                    }
+                    // anything kept for its users while there was no link
+                    MessageRouter.deliverStored(address);
+                    OutboundQueue writing = current;
+                    Thread writer = new Thread(() -> writeLoop(socket, writing), "cluster-writer-" + address);
+                    writer.setDaemon(true);
+                    writer.start();
+                    // confirmations and heartbeats come back, the read times out once the other end goes quiet
+                    while (true) {
+                        byte kind = in.readByte();
+                        if (kind == CONFIRM) confirmed(in.readLong());
+                    }
+                } catch (IOException e) {
+                    if (current != null) {
+                        down(current);
+                        System.out.println("Cluster link to " + address + " down");
+                    }
+                } catch (InterruptedException e) {
+                    return;
+                }
+                try {
+                    Thread.sleep(RECONNECT_MS);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }
+
+        // whatever the other node may not have handled is kept like messages for someone offline, and delivered
+        // again once a link is back if they are still on that node
+        private void down(OutboundQueue current) {
+            List<Map.Entry<String, byte[]>> lost;
+            synchronized (this) {
+                queue = null;
+                lost = new ArrayList<>(unconfirmed.values());
+                unconfirmed.clear();
+                forwarded = 0;
+            }
+            current.close();
+            for (Map.Entry<String, byte[]> forward : lost) {
+                byte[] frame = forward.getValue();
+                MessageRouter.keep(forward.getKey(), FrameCodec.BINARY.decode(frame, 0, frame.length));
+            }
+        }
+
+        private void writeLoop(Socket socket, OutboundQueue current) {
+            try {
+                OutputStream out = new BufferedOutputStream(socket.getOutputStream());
+                List<ByteBuffer> batch;
+                while (!(batch = current.drain()).isEmpty()) {
+                    for (ByteBuffer message : batch) {
+                        out.write(message.array(), message.arrayOffset() + message.position(), message.remaining());
+                    }
+                    out.flush();
+                }
+            } catch (IOException | InterruptedException e) {
+                // closing the socket ends the reader in run, which reconnects
+            }
+            current.close();
+            try {
+                socket.close();
+            } catch (IOException e) {
+            }
+        }
+    }
+
+    // a connection opened by another node, everything it announces is forgotten when it closes
+    private static class Link implements Runnable {
+        private final Socket socket;
+        private final Map<String, RemoteSession> users = new ConcurrentHashMap<>();
+        // confirmations and heartbeats back to the node that opened the link, written under its own lock
+        private DataOutputStream out;
+
+        Link(Socket socket) {
+            this.socket = socket;
+        }
+
+        RemoteSession user(String username) {
+            return users.get(username);
+        }
+
+        public void run() {
+            String node = null;
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()))) {
+                out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+                byte[] challenge = new byte[CHALLENGE];
+                random.nextBytes(challenge);
+                out.write(challenge);
+                out.flush();
+                socket.setSoTimeout(HANDSHAKE_TIMEOUT);
+                if (in.readByte() != HELLO) return;
+                String claimed = in.readUTF();
+                // an HMAC-SHA256 and a challenge, nothing bigger is read from a node that hasn't proved anything yet
+                if (in.readInt() != 32 + CHALLENGE) return;
+                byte[] proof = new byte[32];
+                in.readFully(proof);
+                byte[] theirs = new byte[CHALLENGE];
+                in.readFully(theirs);
+                if (!MessageDigest.isEqual(proof, proof(challenge, claimed))) {
+                    System.out.println("Cluster link from " + socket.getRemoteSocketAddress() + " refused, wrong secret");
+                    return;
+                }
+                out.write(message(HELLO, self, proof(theirs, ACCEPTED + self)));
+                out.flush();
+                socket.setSoTimeout(LINK_TIMEOUT);
+                node = claimed;
+                System.out.println("Cluster link from " + node + " up");
+                // it may have been found through this connection rather than configured
+                connect(node);
+                links.add(this);
+                long delivered = 0;
+                long confirmed = 0;
+                while (true) {
+                    byte kind = in.readByte();
+                    String username = in.readUTF();
+                    if (kind == ONLINE) {
+                        RemoteSession session = new RemoteSession(username, node);
+                        users.put(username, session);
+                        MessageRouter.remoteOnline(session);
+                    } else if (kind == OFFLINE) {
+                        RemoteSession session = users.remove(username);
+                        if (session != null) MessageRouter.remoteOffline(session);
+                    } else if (kind == DELIVER) {
+                        byte[] frame = readFrame(in);
+                        Frame decoded = FrameCodec.BINARY.decode(frame, 0, frame.length);
+                        decoded.wireLength = frame.length;
+                        MessageRouter.deliverLocal(username, decoded);
+                        delivered++;
+                    } else if (kind == GROUP) {
+                        // the name is the group's here
+                        byte[] frame = readFrame(in);
+                        Groups.deliverLocal(username, FrameCodec.BINARY.decode(frame, 0, frame.length));
+                    }
+                    // once everything that has arrived so far is handled
+                    if (delivered > confirmed && in.available() == 0) {
+                        write(CONFIRM, delivered);
+                        confirmed = delivered;
+                    }
+                }
+            } catch (IOException e) {
+                // the node went away, restarted or went quiet, or never said hello
+            } finally {
+                try {
+                    socket.close();
+                } catch (IOException e) {
+                }
+                links.remove(this);
+                for (RemoteSession session : users.values()) {
+                    MessageRouter.remoteOffline(session);
+                }
+                if (node != null) System.out.println("Cluster link from " + node + " down");
+            }
+        }
+
+        // a CONFIRM with its count, or a HEARTBEAT
+        void write(byte kind, long count) {
+            try {
+                synchronized (out) {
+                    out.writeByte(kind);
+                    if (kind == CONFIRM) out.writeLong(count);
+                    out.flush();
+                }
+                return;
+            } catch (IOException e) {
+                // the reader notices the closed socket and takes the link down
+            }
+            try {
+                socket.close();
+            } catch (IOException e) {
+            }
+        }
+    }
+
+    // listens for other nodes on the address in node and connects to every one in peers, a comma separated list
+    public static void start(String node, String seeds) {
+        if (node.isEmpty()) return;
+        if (ServerConfig.CLUSTER_SECRET.isEmpty()) {
+            System.out.println("Not joining a cluster without -Dluconnect.clusterSecret");
+            return;
+        }
+        self = node;
+        try {
+            ServerSocket server = new ServerSocket();
+            server.bind(address(node));
+            Thread acceptor = new Thread(() -> acceptLoop(server), "cluster-acceptor");
+            acceptor.setDaemon(true);
+            acceptor.start();
+            Thread heartbeats = new Thread(Cluster::heartbeatLoop, "cluster-heartbeats");
+            heartbeats.setDaemon(true);
+            heartbeats.start();
+        } catch (IOException e) {
+            e.printStackTrace();
+            return;
+        }
+        System.out.println("Cluster node " + node + " started");
+        for (String seed : seeds.split(",")) {
+            if (!seed.isBlank()) connect(seed.trim());
+        }
+    }
+
+    private static void acceptLoop(ServerSocket server) {
+        while (true) {
+            try {
+                Socket socket = server.accept();
+                socket.setTcpNoDelay(true);
+                Thread reader = new Thread(new Link(socket), "cluster-link");
+                reader.setDaemon(true);
+                reader.start();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    // a full link doesn't need one, the frames waiting on it keep the other end reading
+    private static void heartbeatLoop() {
+        byte[] heartbeat = message(HEARTBEAT, "", null);
+        while (true) {
+            try {
+                Thread.sleep(HEARTBEAT_MS);
+            } catch (InterruptedException e) {
+                return;
+            }
+            for (Peer peer : peers.values()) {
+                peer.send(heartbeat);
+            }
+            for (Link link : links) {
+                link.write(HEARTBEAT, 0);
+            }
+        }
+    }
+
+    private static void connect(String address) {
+        if (address.equals(self)) return;
+        peers.computeIfAbsent(address, key -> {
+            Peer peer = new Peer(key);
+            Thread thread = new Thread(peer, "cluster-peer-" + key);
+            thread.setDaemon(true);
+            thread.start();
+            return peer;
+        });
+    }
+
+    // tells every node whether username is now connected here, called after MessageRouter changes it
+    public static void announce(String username) {
+        if (self.isEmpty()) return;
+        synchronized (lock) {
+            byte[] message = message(MessageRouter.isLocal(username) ? ONLINE : OFFLINE, username, null);
+            for (Peer peer : peers.values()) {
+                if (!peer.send(message)) {
+                    // a full link would leave that node's directory wrong, the snapshot on reconnect fixes it
+                    OutboundQueue stuck = peer.queue;
+                    if (stuck != null) stuck.close();
+                }
+            }
+        }
+    }
+
+    // passes a group message to every other node, each one has its own members. a node that can't be
+    // reached misses it, group messages aren't kept for later
+    public static void group(String group, SharedFrame relayed) {
+        if (self.isEmpty() || peers.isEmpty()) return;
+        byte[] message;
+        try {
+            message = message(GROUP, group, relayed.encoded(FrameCodec.BINARY));
+        } catch (IllegalArgumentException e) {
+            return;
+        }
+        for (Peer peer : peers.values()) {
+            peer.send(message);
+        }
+    }
+
+    // where username is on another node, if anywhere
+    public static RemoteSession find(String username) {
+        for (Link link : links) {
+            RemoteSession session = link.user(username);
+            if (session != null) return session;
+        }
+        return null;
+    }
+
+    // the length prefixed frame of a DELIVER or GROUP, refusing a length no frame can have
+    private static byte[] readFrame(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0 || length > BinaryCodec.MAX_FRAME) {
+            throw new IOException("bad frame length " + length);
+        }
+        byte[] frame = new byte[length];
+        in.readFully(frame);
+        return frame;
+    }
+
+    // what the node called name answers challenge with
+    private static byte[] proof(byte[] challenge, String name) {
+        try {
+            Mac mac = Mac.getInstance("HmacSHA256");
+            mac.init(new SecretKeySpec(ServerConfig.CLUSTER_SECRET.getBytes(StandardCharsets.UTF_8), "HmacSHA256"));
+            mac.update(challenge);
+            return mac.doFinal(name.getBytes(StandardCharsets.UTF_8));
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static byte[] message(byte kind, String username, byte[] frame) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(frame == null ? 32 : frame.length + 32);
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeByte(kind);
+            out.writeUTF(username);
+            if (frame != null) {
+                out.writeInt(frame.length);
+                out.write(frame);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    private static InetSocketAddress address(String hostPort) {
+        int colon = hostPort.lastIndexOf(':');
+        return new InetSocketAddress(hostPort.substring(0, colon), Integer.parseInt(hostPort.substring(colon + 1)));
+    }
+}
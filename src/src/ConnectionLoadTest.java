@@ -0,0 +1,113 @@
+import java.io.*;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+// holds a large number of idle connections open against a running server and measures
+// TO: routing latency between two active clients while they are held
+// usage: java ConnectionLoadTest [host] [port] [idleConnections] [messages] [messagesPerSecond]
+// compare the engines by starting the server with -Dluconnect.engine=thread|virtual|pool|nio -Dluconnect.metricsInterval=5
+// and -Dluconnect.allowUserLogin=true, the clients sign in with the plain USER line
+// and -Dluconnect.idleTimeout=0, the idle connections never answer a PING and would be closed after 45 seconds
+public class ConnectionLoadTest {
+    public static void main(String[] args) throws Exception {
+        String host = args.length > 0 ? args[0] : "localhost";
+        int port = args.length > 1 ? Integer.parseInt(args[1]) : 12345;
+        int idleConnections = args.length > 2 ? Integer.parseInt(args[2]) : 1000;
+        int messages = args.length > 3 ? Integer.parseInt(args[3]) : 10000;
+        int rate = args.length > 4 ? Integer.parseInt(args[4]) : 1000;
+
+        // the measuring pair connects first so it is admitted before the idle connections use up the slots
+        Socket sender = connect(host, port, "loadtest-sender");
+        Socket receiver = connect(host, port, "loadtest-receiver");
+        long[] latencies = new long[messages];
+        CountDownLatch received = new CountDownLatch(messages);
+        Thread reader = new Thread(() -> readLatencies(receiver, latencies, received));
+        reader.setDaemon(true);
+        reader.start();
+
+        List<Socket> idle = new ArrayList<>();
+        long openStart = System.nanoTime();
+        for (int i = 0; i < idleConnections; i++) {
+            try {
+                Socket socket = new Socket(host, port);
+                // the server reads this once it admits the connection, until then it just sits in the socket
+                socket.getOutputStream().write(("USER:idle-" + i + "\n").getBytes());
+                idle.add(socket);
+            } catch (IOException e) {
+                System.out.println("stopped opening connections after " + idle.size() + ": " + e.getMessage());
+                break;
+            }
+        }
+        long openMillis = (System.nanoTime() - openStart) / 1_000_000;
+        System.out.println("holding " + idle.size() + " idle connections, opened in " + openMillis + " ms");
+
+        PrintWriter out = new PrintWriter(new OutputStreamWriter(sender.getOutputStream()), true);
+        long interval = 1_000_000_000L / Math.max(1, rate);
+        long sendStart = System.nanoTime();
+        for (int i = 0; i < messages; i++) {
+            // paced sends so the latency measured is routing time rather than queueing behind a burst
+            long due = sendStart + i * interval;
+            long now;
+            while ((now = System.nanoTime()) < due) {
+                LockSupport.parkNanos(due - now);
+            }
+            out.println("TO:loadtest-receiver:" + System.nanoTime());
+        }
+        boolean complete = received.await(60, TimeUnit.SECONDS);
+        long sendMillis = Math.max(1, (System.nanoTime() - sendStart) / 1_000_000);
+
+        int count = messages - (int) received.getCount();
+        long[] sorted = Arrays.copyOf(latencies, count);
+        Arrays.sort(sorted);
+        System.out.println("routed " + count + "/" + messages + " messages in " + sendMillis + " ms ("
+                + (count * 1000L / sendMillis) + " msg/s)" + (complete ? "" : ", timed out"));
+        if (count > 0) {
+            System.out.println("routing latency p50=" + micros(sorted, 0.50) + "us p99=" + micros(sorted, 0.99)
+                    + "us p99.9=" + micros(sorted, 0.999) + "us max=" + sorted[count - 1] / 1000 + "us");
+        }
+
+        for (Socket socket : idle) {
+            socket.close();
+        }
+        sender.close();
+        receiver.close();
+    }
+
+    // connects, waits through any WAIT: updates for START and sends the USER: handshake
+    private static Socket connect(String host, int port, String username) throws IOException {
+        Socket socket = new Socket(host, port);
+        BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+        String line;
+        while ((line = in.readLine()) != null && !line.equals("START")) {
+        }
+        socket.getOutputStream().write(("USER:" + username + "\n").getBytes());
+        return socket;
+    }
+
+    private static void readLatencies(Socket socket, long[] latencies, CountDownLatch received) {
+        try {
+            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+            String line;
+            int index = 0;
+            while (index < latencies.length && (line = in.readLine()) != null) {
+                if (line.startsWith("FROM:")) {
+                    long sentAt = Long.parseLong(line.substring(line.lastIndexOf(':') + 1));
+                    latencies[index++] = System.nanoTime() - sentAt;
+                    received.countDown();
+                }
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private static long micros(long[] sorted, double percentile) {
+        int index = (int) Math.ceil(percentile * sorted.length) - 1;
+        return sorted[Math.max(0, index)] / 1000;
+    }
+}
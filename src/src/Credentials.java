@@ -0,0 +1,228 @@
+import javax.crypto.Mac;
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Base64;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+// how passwords are stored and checked. new ones are "pbkdf2-sha512$iterations$salt$hash" with a random salt per
+// user. the old unsalted sha256 hex strings still work and, like pbkdf2 ones with fewer iterations than
+// luconnect.kdfIterations, are replaced with a fresh hash the next time that user logs in.
+// checks run on a bounded pool so a storm of logins waits its turn, up to luconnect.loginQueue of them, and is
+// turned away past that instead of taking every thread. a successful check is remembered for
+// luconnect.loginCacheSeconds as a keyed hash of the password, so logging in again soon skips the KDF
+public class Credentials {
+    private static final int ITERATIONS = Integer.getInteger("luconnect.kdfIterations", 210_000);
+    private static final int THREADS = Integer.getInteger("luconnect.loginThreads", Runtime.getRuntime().availableProcessors());
+    private static final int QUEUE = Integer.getInteger("luconnect.loginQueue", 1024);
+    private static final long CACHE_NANOS = TimeUnit.SECONDS.toNanos(Integer.getInteger("luconnect.loginCacheSeconds", 300));
+    private static final int CACHE_SIZE = 10_000;
+
+    // a way of storing passwords, picked by the start of the stored string
+    public interface Scheme {
+        boolean handles(String stored);
+
+        boolean verify(String password, String stored);
+
+        // true if a stored hash should be replaced by one from the current scheme
+        boolean outdated(String stored);
+    }
+
+    public static class Pbkdf2 implements Scheme {
+        private static final String PREFIX = "pbkdf2-sha512$";
+        private static final int SALT_BYTES = 16;
+        private static final int HASH_BITS = 512;
+        private final int iterations;
+
+        public Pbkdf2(int iterations) {
+            this.iterations = iterations;
+        }
+
+        public String hash(String password) {
+            byte[] salt = new byte[SALT_BYTES];
+            random.nextBytes(salt);
+            Base64.Encoder base64 = Base64.getEncoder();
+            return PREFIX + iterations + "$" + base64.encodeToString(salt) + "$"
+                    + base64.encodeToString(derive(password, salt, iterations));
+        }
+
+        public boolean handles(String stored) {
+            return stored.startsWith(PREFIX);
+        }
+
+        public boolean verify(String password, String stored) {
+            String[] parts = stored.split("\\$");
+            if (parts.length != 4) return false;
+            try {
+                Base64.Decoder base64 = Base64.getDecoder();
+                byte[] expected = base64.decode(parts[3]);
+                return MessageDigest.isEqual(expected, derive(password, base64.decode(parts[2]), Integer.parseInt(parts[1])));
+            } catch (IllegalArgumentException e) {
+                return false;
+            }
+        }
+
+        public boolean outdated(String stored) {
+            String[] parts = stored.split("\\$");
+            try {
+                return parts.length != 4 || Integer.parseInt(parts[1]) < iterations;
+            } catch (NumberFormatException e) {
+                return true;
+            }
+        }
+
+        private static byte[] derive(String password, byte[] salt, int iterations) {
+            PBEKeySpec spec = new PBEKeySpec(password.toCharArray(), salt, iterations, HASH_BITS);
+            try {
+                return SecretKeyFactory.getInstance("PBKDF2WithHmacSHA512").generateSecret(spec).getEncoded();
+            } catch (GeneralSecurityException e) {
+                throw new IllegalStateException(e);
+            } finally {
+                spec.clearPassword();
+            }
+        }
+    }
+
+    // what the sign up forms stored before, EncryptionUtils.sha256 of the password
+    public static class LegacySha256 implements Scheme {
+        public boolean handles(String stored) {
+            return stored.length() == 64 && stored.chars().allMatch(c -> (c >= '0' && c <= '9') || (c >= 'a' && c <= 'f'));
+        }
+
+        public boolean verify(String password, String stored) {
+            return MessageDigest.isEqual(stored.getBytes(StandardCharsets.US_ASCII),
+                    EncryptionUtils.sha256(password).getBytes(StandardCharsets.US_ASCII));
+        }
+
+        public boolean outdated(String stored) {
+            return true;
+        }
+    }
+
+    private static final SecureRandom random = new SecureRandom();
+    private static final Pbkdf2 current = new Pbkdf2(ITERATIONS);
+    private static final Scheme[] schemes = {current, new LegacySha256()};
+
+    private static final ThreadPoolExecutor verifier = new ThreadPoolExecutor(THREADS, THREADS, 0, TimeUnit.SECONDS,
+            new ArrayBlockingQueue<>(QUEUE), task -> {
+        Thread t = new Thread(task, "credentials");
+        t.setDaemon(true);
+        return t;
+    });
+
+    private static class Remembered {
+        final String stored;
+        final byte[] mac;
+        final long expires;
+
+        Remembered(String stored, byte[] mac, long expires) {
+            this.stored = stored;
+            this.mac = mac;
+            this.expires = expires;
+        }
+    }
+
+    // by username, least recently used dropped first. the key only lives in this process
+    private static final Map<String, Remembered> cache = new LinkedHashMap<>(16, 0.75f, true) {
+        protected boolean removeEldestEntry(Map.Entry<String, Remembered> eldest) {
+            return size() > CACHE_SIZE;
+        }
+    };
+    private static final byte[] cacheKey = new byte[32];
+
+    static {
+        random.nextBytes(cacheKey);
+    }
+
+    // what to store for a new password
+    public static String hash(String password) {
+        return current.hash(password);
+    }
+
+    // checks a password against what is stored for username
+    public static boolean verify(String username, String password, String stored) {
+        byte[] mac = mac(username, password);
+        synchronized (cache) {
+            Remembered remembered = cache.get(username);
+            if (remembered != null && remembered.stored.equals(stored) && System.nanoTime() - remembered.expires < 0
+                    && MessageDigest.isEqual(remembered.mac, mac)) {
+                return true;
+            }
+        }
+        Scheme scheme = scheme(stored);
+        if (scheme == null || !scheme.verify(password, stored)) return false;
+        remember(username, stored, mac);
+        return true;
+    }
+
+    public static boolean outdated(String stored) {
+        return scheme(stored) != current || current.outdated(stored);
+    }
+
+    // after a migration, so the next login doesn't miss the cache
+    static void remember(String username, String stored, String password) {
+        remember(username, stored, mac(username, password));
+    }
+
+    // DatabaseManager.verifyUser on the login pool. fails with RejectedExecutionException when too many are waiting
+    public static CompletableFuture<Boolean> verifyUser(String username, String password) {
+        return submit(() -> DatabaseManager.verifyUser(username, password));
+    }
+
+    // other KDF work, e.g. hashing a new user's password, on the same pool and with the same limit
+    public static <T> CompletableFuture<T> submit(Supplier<T> work) {
+        try {
+            return CompletableFuture.supplyAsync(work, verifier);
+        } catch (RejectedExecutionException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+    }
+
+    // for the benchmark's cold runs
+    static void forget() {
+        synchronized (cache) {
+            cache.clear();
+        }
+    }
+
+    public static int iterations() {
+        return ITERATIONS;
+    }
+
+    private static void remember(String username, String stored, byte[] mac) {
+        if (CACHE_NANOS <= 0) return;
+        synchronized (cache) {
+            cache.put(username, new Remembered(stored, mac, System.nanoTime() + CACHE_NANOS));
+        }
+    }
+
+    private static Scheme scheme(String stored) {
+        for (Scheme scheme : schemes) {
+            if (scheme.handles(stored)) return scheme;
+        }
+        return null;
+    }
+
+    private static byte[] mac(String username, String password) {
+        try {
+            Mac mac = Mac.getInstance("HmacSHA256");
+            mac.init(new SecretKeySpec(cacheKey, "HmacSHA256"));
+            mac.update(username.getBytes(StandardCharsets.UTF_8));
+            mac.update((byte) 0);
+            return mac.doFinal(password.getBytes(StandardCharsets.UTF_8));
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
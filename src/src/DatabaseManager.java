@@ -1,30 +1,61 @@
 import java.sql.*;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
+// users.db access through a small pool of open connections, each keeping its prepared statements.
+// the user list is cached and only read again when a user has been added, here or by another process
 public class DatabaseManager {
-    private static final String DB_URL = "jdbc:sqlite:users.db";
+    private static final String DB_URL = "jdbc:sqlite:" + System.getProperty("luconnect.db", "users.db");
+    private static final int POOL_SIZE = Integer.getInteger("luconnect.dbPoolSize", 4);
+    // how long a connection waits on another process's write lock before giving up
+    private static final int BUSY_TIMEOUT_MS = 5000;
+    // how often a call waiting for a connection checks whether one was closed and it may open another
+    private static final int REOPEN_CHECK_MS = 100;
+
+    private static final BlockingQueue<PooledConnection> idle = new ArrayBlockingQueue<>(POOL_SIZE);
+    private static final AtomicInteger opened = new AtomicInteger();
+
+    // the cached user list and the highest id it covers, replaced together
+    private static volatile UserDirectory directory;
+    // nanoseconds per call, waiting for a pooled connection included, read by ServerMetrics
+    static final LatencyHistogram callLatency = new LatencyHistogram();
 
     static {
-        try (Connection conn = DriverManager.getConnection(DB_URL)) {
-            if (conn != null) {
-                Statement stmt = conn.createStatement();
-                String sql = "CREATE TABLE IF NOT EXISTS users (" +
-                        "id INTEGER PRIMARY KEY AUTOINCREMENT, " +
-                        "username TEXT UNIQUE NOT NULL, " +
-                        "password TEXT NOT NULL)";
-                stmt.execute(sql);
-            }
+        try {
+            withConnection(conn -> {
+                try (Statement stmt = conn.connection.createStatement()) {
+                    // readers no longer block the writer or each other, which the default rollback journal does
+                    stmt.execute("PRAGMA journal_mode=WAL");
+                    String sql = "CREATE TABLE IF NOT EXISTS users (" +
+                            "id INTEGER PRIMARY KEY AUTOINCREMENT, " +
+                            "username TEXT UNIQUE NOT NULL, " +
+                            "password TEXT NOT NULL)";
+                    stmt.execute(sql);
+                }
+                return null;
+            });
         } catch (SQLException e) {
             e.printStackTrace();
         }
     }
 
-    public static boolean addUser(String username, String hashedPassword) {
-        String sql = "INSERT INTO users(username, password) VALUES(?, ?)";
-        try (Connection conn = DriverManager.getConnection(DB_URL);
-             PreparedStatement pstmt = conn.prepareStatement(sql)) {
-            pstmt.setString(1, username);
-            pstmt.setString(2, hashedPassword);
-            pstmt.executeUpdate();
+    // stored is what Credentials.hash made of the password
+    public static boolean addUser(String username, String stored) {
+        try {
+            withConnection(conn -> {
+                PreparedStatement pstmt = conn.prepare("INSERT INTO users(username, password) VALUES(?, ?)");
+                pstmt.setString(1, username);
+                pstmt.setString(2, stored);
+                pstmt.executeUpdate();
+                return null;
+            });
+            directory = null;
             return true;
         } catch (SQLException e) {
             System.out.println("Error adding user: " + e.getMessage());
@@ -32,33 +63,174 @@ public class DatabaseManager {
         }
     }
 
-    public static boolean verifyUser(String username, String hashedPassword) {
-        String sql = "SELECT * FROM users WHERE username = ? AND password = ?";
-        try (Connection conn = DriverManager.getConnection(DB_URL);
-             PreparedStatement pstmt = conn.prepareStatement(sql)) {
-            pstmt.setString(1, username);
-            pstmt.setString(2, hashedPassword);
-            ResultSet rs = pstmt.executeQuery();
-            return rs.next();
+    // checks a password against the stored hash, replacing an old style one with the current scheme when it
+    // matches. the KDF runs without holding a connection, and not at all for a username that doesn't exist
+    public static boolean verifyUser(String username, String password) {
+        try {
+            String stored = storedPassword(username);
+            if (stored == null || !Credentials.verify(username, password, stored)) return false;
+            if (Credentials.outdated(stored)) {
+                String upgraded = Credentials.hash(password);
+                int updated = withConnection(conn -> {
+                    // unless it was changed in the meantime
+                    PreparedStatement pstmt = conn.prepare("UPDATE users SET password = ? WHERE username = ? AND password = ?");
+                    pstmt.setString(1, upgraded);
+                    pstmt.setString(2, username);
+                    pstmt.setString(3, stored);
+                    return pstmt.executeUpdate();
+                });
+                if (updated == 1) Credentials.remember(username, upgraded, password);
+            }
+            return true;
         } catch (SQLException e) {
             e.printStackTrace();
             return false;
         }
     }
 
-    public static String[] getAllUsers() {
-        String sql = "SELECT username FROM users";
-        try (Connection conn = DriverManager.getConnection(DB_URL);
-             Statement stmt = conn.createStatement();
-             ResultSet rs = stmt.executeQuery(sql)) {
-            java.util.List<String> users = new java.util.ArrayList<>();
-            while (rs.next()) {
-                users.add(rs.getString("username"));
+    // the stored hash, null for a username that doesn't exist
+    public static String storedPassword(String username) throws SQLException {
+        return withConnection(conn -> {
+            // username is unique, so this is a single index lookup
+            PreparedStatement pstmt = conn.prepare("SELECT password FROM users WHERE username = ?");
+            pstmt.setString(1, username);
+            try (ResultSet rs = pstmt.executeQuery()) {
+                return rs.next() ? rs.getString(1) : null;
             }
-            return users.toArray(new String[0]);
+        });
+    }
+
+    // users are only ever added, so an unchanged highest id means the cached list is still complete.
+    // that check is one lookup at the end of the primary key instead of a scan of the whole table
+    public static String[] getAllUsers() {
+        try {
+            return withConnection(conn -> {
+                long maxId;
+                try (ResultSet rs = conn.prepare("SELECT COALESCE(MAX(id), 0) FROM users").executeQuery()) {
+                    maxId = rs.next() ? rs.getLong(1) : 0;
+                }
+                UserDirectory cached = directory;
+                if (cached != null && cached.maxId == maxId) {
+                    return cached.users.clone();
+                }
+                List<String> users = new ArrayList<>();
+                try (ResultSet rs = conn.prepare("SELECT id, username FROM users ORDER BY id").executeQuery()) {
+                    while (rs.next()) {
+                        maxId = rs.getLong(1);
+                        users.add(rs.getString(2));
+                    }
+                }
+                cached = new UserDirectory(users.toArray(new String[0]), maxId);
+                directory = cached;
+                return cached.users.clone();
+            });
         } catch (SQLException e) {
             e.printStackTrace();
             return new String[0];
         }
     }
+
+    private interface Work<T> {
+        T run(PooledConnection conn) throws SQLException;
+    }
+
+    // borrows a connection for one piece of work, one that broke along the way is closed rather than handed out again
+    private static <T> T withConnection(Work<T> work) throws SQLException {
+        long start = System.nanoTime();
+        try {
+            return withPooledConnection(work);
+        } finally {
+            callLatency.record(System.nanoTime() - start);
+        }
+    }
+
+    private static <T> T withPooledConnection(Work<T> work) throws SQLException {
+        PooledConnection conn = borrow();
+        try {
+            T result = work.run(conn);
+            idle.offer(conn);
+            return result;
+        } catch (SQLException | RuntimeException e) {
+            // a failed statement, e.g. a taken username, normally leaves the connection fine to reuse
+            if (conn.isValid()) {
+                idle.offer(conn);
+            } else {
+                conn.close();
+            }
+            throw e;
+        }
+    }
+
+    // a broken connection is closed rather than given back, so waiting callers don't only wait for idle ones
+    private static PooledConnection borrow() throws SQLException {
+        PooledConnection conn = idle.poll();
+        while (conn == null) {
+            if (opened.incrementAndGet() <= POOL_SIZE) {
+                try {
+                    return new PooledConnection(DriverManager.getConnection(DB_URL));
+                } catch (SQLException e) {
+                    opened.decrementAndGet();
+                    throw e;
+                }
+            }
+            opened.decrementAndGet();
+            try {
+                conn = idle.poll(REOPEN_CHECK_MS, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new SQLException("interrupted waiting for a database connection");
+            }
+        }
+        return conn;
+    }
+
+    private static class PooledConnection {
+        final Connection connection;
+        // statements are prepared once per connection and reused for every call after that
+        private final Map<String, PreparedStatement> statements = new HashMap<>();
+
+        PooledConnection(Connection connection) throws SQLException {
+            this.connection = connection;
+            try (Statement stmt = connection.createStatement()) {
+                stmt.execute("PRAGMA busy_timeout=" + BUSY_TIMEOUT_MS);
+                // safe with WAL, a commit only has to reach the log rather than be synced through to the database
+                stmt.execute("PRAGMA synchronous=NORMAL");
+            }
+        }
+
+        PreparedStatement prepare(String sql) throws SQLException {
+            PreparedStatement pstmt = statements.get(sql);
+            if (pstmt == null) {
+                pstmt = connection.prepareStatement(sql);
+                statements.put(sql, pstmt);
+            }
+            return pstmt;
+        }
+
+        boolean isValid() {
+            try {
+                return connection.isValid(1);
+            } catch (SQLException e) {
+                return false;
+            }
+        }
+
+        void close() {
+            opened.decrementAndGet();
+            try {
+                connection.close();
+            } catch (SQLException e) {
+            }
+        }
+    }
+
+    private static class UserDirectory {
+        final String[] users;
+        final long maxId;
+
+        UserDirectory(String[] users, long maxId) {
+            this.users = users;
+            this.maxId = maxId;
+        }
+    }
 }
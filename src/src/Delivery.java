@@ -0,0 +1,206 @@
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+// the client's side of confirmed chat messages, see MessageRouter.routeMessage. every message sent as MSG gets an
+// id and is kept until the recipient confirms it, or the server says it has stored it or can't deliver it. at most
+// the server's WINDOW of them are kept and send waits for room, so a client can send many without waiting for each
+// answer but can't run ahead of the server or a slow recipient. the ones still kept are sent again with the same
+// ids after a reconnect, and recipients confirm every copy but only pass the first one on. a recipient confirms
+// everything one read brought in from a sender in a single RECEIVED:sender:id,id,... once the read is handled, so
+// a busy connection doesn't answer each message with a frame of its own. with a server that doesn't confirm
+// messages they go as plain TO frames like before
+public class Delivery {
+    // senders and ids of the latest messages received, to drop copies sent again after a reconnect
+    private static final int REMEMBERED = 10_000;
+    // how long a message waits for its confirmation before retry() sends it again
+    private static final long RETRY_NANOS = 30_000_000_000L;
+
+    public interface Listener {
+        // the server couldn't deliver or keep a message, status is from its ACK
+        void undelivered(String recipient, String id, String status);
+    }
+
+    private static class Pending {
+        final String recipient;
+        final byte[] sealed;
+        long sentAt = System.nanoTime();
+
+        Pending(String recipient, byte[] sealed) {
+            this.recipient = recipient;
+            this.sealed = sealed;
+        }
+    }
+
+    private final Listener listener;
+    // ids only need to be unique per sender, this one's start with something no earlier run of it used
+    private final String prefix = Long.toString(new SecureRandom().nextLong() & Long.MAX_VALUE, 36) + "-";
+    // everything below is guarded by this
+    private long next;
+    // messages not confirmed yet by id, in the order they were sent
+    private final LinkedHashMap<String, Pending> pending = new LinkedHashMap<>();
+    // null while disconnected
+    private ServerConnection connection;
+    private int window;
+    // the kept messages are being sent again after a reconnect, new ones wait behind them
+    private boolean resending;
+    private final Map<String, Boolean> received = new LinkedHashMap<>() {
+        protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+            return size() > REMEMBERED;
+        }
+    };
+    // ids received and not confirmed yet by sender
+    private final Map<String, StringBuilder> unconfirmed = new LinkedHashMap<>();
+
+    public Delivery(Listener listener) {
+        this.listener = listener;
+    }
+
+    // a connection that has just signed in, anything not confirmed on the last one is sent again
+    public void attach(ServerConnection connection) {
+        List<Frame> again = new ArrayList<>();
+        connection.onIdle(this::confirm);
+        synchronized (this) {
+            this.connection = connection;
+            window = connection.window();
+            resending = true;
+            for (Map.Entry<String, Pending> entry : pending.entrySet()) {
+                Pending message = entry.getValue();
+                message.sentAt = System.nanoTime();
+                again.add(frame(entry.getKey(), message));
+            }
+            // a server that doesn't confirm messages, they go once more as TO and are forgotten
+            if (window == 0) pending.clear();
+        }
+        for (Frame frame : again) {
+            connection.send(frame);
+        }
+        synchronized (this) {
+            resending = false;
+            notifyAll();
+        }
+    }
+
+    // the connection's reader has stopped, senders stop waiting for room that only its confirmations would make
+    public synchronized void detach(ServerConnection connection) {
+        if (this.connection != connection) return;
+        this.connection = null;
+        notifyAll();
+    }
+
+    // waits while the window is full. false if the message couldn't be sent or kept for sending after reconnecting
+    public boolean send(String recipient, byte[] sealed) throws InterruptedException {
+        ServerConnection current;
+        Frame frame;
+        synchronized (this) {
+            while (connection != null && (resending || (window > 0 && pending.size() >= window))) {
+                wait();
+            }
+            current = connection;
+            if (window == 0) {
+                frame = new Frame(Frame.Type.TO, new String[]{recipient}, null, sealed);
+            } else if (pending.size() >= window) {
+                // disconnected with no room left
+                return false;
+            } else {
+                String id = prefix + next++;
+                Pending message = new Pending(recipient, sealed);
+                pending.put(id, message);
+                frame = frame(id, message);
+            }
+        }
+        // outside the lock, the reader mustn't wait for a send to get to the confirmations that make room
+        boolean sent = current != null && current.send(frame);
+        return sent || frame.type == Frame.Type.MSG;
+    }
+
+    // sends again the messages the server passed on but whose recipient hasn't confirmed them for a while, e.g.
+    // because they disconnected before reading them. called every so often by the client
+    public void retry() {
+        List<Frame> again = new ArrayList<>();
+        ServerConnection current;
+        synchronized (this) {
+            current = connection;
+            if (current == null || resending) return;
+            long now = System.nanoTime();
+            for (Map.Entry<String, Pending> entry : pending.entrySet()) {
+                Pending message = entry.getValue();
+                if (now - message.sentAt < RETRY_NANOS) continue;
+                message.sentAt = now;
+                again.add(frame(entry.getKey(), message));
+            }
+        }
+        for (Frame frame : again) {
+            current.send(frame);
+        }
+    }
+
+    // every frame from the server passes through here first. returns what the rest of the client should see:
+    // null for confirmations and repeated messages, a MSG_FROM as the FROM it used to be, anything else unchanged
+    public Frame handle(Frame frame) {
+        switch (frame.type) {
+            case ACK: {
+                String status = frame.fields[1];
+                Pending message;
+                synchronized (this) {
+                    message = pending.remove(frame.fields[0]);
+                    notifyAll();
+                }
+                // a stored message is the server's to deliver from here on, its store only counts one as delivered
+                // once it has been queued for the recipient
+                if (message != null && !status.equals("stored")) {
+                    listener.undelivered(message.recipient, frame.fields[0], status);
+                }
+                return null;
+            }
+            case DELIVERED:
+                synchronized (this) {
+                    for (String id : frame.fields[1].split(",")) {
+                        pending.remove(id);
+                    }
+                    notifyAll();
+                }
+                return null;
+            case MSG_FROM: {
+                String sender = frame.fields[0];
+                boolean seen;
+                synchronized (this) {
+                    seen = received.put(sender + ":" + frame.fields[1], Boolean.TRUE) != null;
+                    // a copy is confirmed again, the first confirmation may be what got lost
+                    StringBuilder ids = unconfirmed.get(sender);
+                    if (ids == null) {
+                        unconfirmed.put(sender, new StringBuilder(frame.fields[1]));
+                    } else {
+                        ids.append(',').append(frame.fields[1]);
+                    }
+                }
+                return seen ? null : frame.relay(Frame.Type.FROM, new String[]{sender});
+            }
+            default:
+                return frame;
+        }
+    }
+
+    // the reader has handled everything it has read so far
+    private void confirm() {
+        ServerConnection current;
+        List<Frame> confirmations = new ArrayList<>();
+        synchronized (this) {
+            current = connection;
+            if (current == null || unconfirmed.isEmpty()) return;
+            for (Map.Entry<String, StringBuilder> entry : unconfirmed.entrySet()) {
+                confirmations.add(new Frame(Frame.Type.RECEIVED, new String[]{entry.getKey(), entry.getValue().toString()}, null, null));
+            }
+            unconfirmed.clear();
+        }
+        for (Frame frame : confirmations) {
+            current.sendLater(frame);
+        }
+    }
+
+    private static Frame frame(String id, Pending message) {
+        return new Frame(Frame.Type.MSG, new String[]{message.recipient, id}, null, message.sealed);
+    }
+}
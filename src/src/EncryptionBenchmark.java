@@ -0,0 +1,78 @@
+import javax.crypto.Cipher;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Random;
+
+// compares the old encryption path, a new AES/ECB Cipher per call and everything through Strings and Base64,
+// with EncryptionUtils' cached AES-GCM byte[] API, for chat sized messages and for a whole file
+// usage: java EncryptionBenchmark [messageBytes] [fileMegabytes] [seconds]
+public class EncryptionBenchmark {
+    private static SecretKeySpec legacyKey;
+
+    public static void main(String[] args) throws Exception {
+        int messageBytes = args.length > 0 ? Integer.parseInt(args[0]) : 100;
+        int fileMegabytes = args.length > 1 ? Integer.parseInt(args[1]) : 8;
+        double seconds = args.length > 2 ? Double.parseDouble(args[2]) : 3;
+
+        byte[] key = Arrays.copyOf(MessageDigest.getInstance("SHA-256").digest("defaultEncryptionKey".getBytes("UTF-8")), 16);
+        legacyKey = new SecretKeySpec(key, "AES");
+        Random random = new Random(42);
+        char[] chars = new char[messageBytes];
+        for (int i = 0; i < chars.length; i++) chars[i] = (char) ('a' + random.nextInt(26));
+        String message = new String(chars);
+        byte[] messageData = message.getBytes(StandardCharsets.UTF_8);
+        byte[] file = new byte[fileMegabytes * 1024 * 1024];
+        random.nextBytes(file);
+
+        System.out.println(messageBytes + " byte message, encrypt + decrypt:");
+        double legacy = Benchmark.run("  legacy ECB, Cipher per call, String", 1, seconds, () -> {
+            return legacyDecrypt(legacyEncrypt(message)).length();
+        });
+        double current = Benchmark.run("  GCM, cached Cipher, byte[]", 1, seconds, () -> {
+            byte[] sealed = EncryptionUtils.seal(messageData, 0, messageData.length, null);
+            return EncryptionUtils.open(sealed, null).length;
+        });
+        System.out.printf("  %.1fx%n", current / legacy);
+
+        System.out.println(fileMegabytes + "MB file, encrypt + decrypt:");
+        legacy = Benchmark.run("  legacy, one Base64 String of the file", 1, seconds, () -> {
+            String encrypted = legacyEncrypt(Base64.getEncoder().encodeToString(file));
+            return Base64.getDecoder().decode(legacyDecrypt(encrypted)).length;
+        });
+        current = Benchmark.run("  GCM, " + FileTransfers.CHUNK_SIZE / 1024 + "KB chunks", 1, seconds, () -> {
+            long total = 0;
+            for (int offset = 0; offset < file.length; offset += FileTransfers.CHUNK_SIZE) {
+                int length = Math.min(FileTransfers.CHUNK_SIZE, file.length - offset);
+                byte[] aad = ("id:" + offset).getBytes(StandardCharsets.UTF_8);
+                byte[] sealed = EncryptionUtils.seal(file, offset, length, aad);
+                total += EncryptionUtils.open(sealed, aad).length;
+            }
+            return total;
+        });
+        System.out.printf("  %.1fx, %.0f MB/s%n", current / legacy, current * fileMegabytes);
+    }
+
+    // EncryptionUtils.encrypt and decrypt as they were before the GCM change
+    private static String legacyEncrypt(String plainText) {
+        try {
+            Cipher cipher = Cipher.getInstance("AES/ECB/PKCS5Padding");
+            cipher.init(Cipher.ENCRYPT_MODE, legacyKey);
+            return Base64.getEncoder().encodeToString(cipher.doFinal(plainText.getBytes("UTF-8")));
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static String legacyDecrypt(String cipherText) {
+        try {
+            Cipher cipher = Cipher.getInstance("AES/ECB/PKCS5Padding");
+            cipher.init(Cipher.DECRYPT_MODE, legacyKey);
+            return new String(cipher.doFinal(Base64.getDecoder().decode(cipherText)), "UTF-8");
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+    }
+}
@@ -1,13 +1,42 @@
 import javax.crypto.Cipher;
+import javax.crypto.KeyAgreement;
+import javax.crypto.spec.GCMParameterSpec;
 import javax.crypto.spec.SecretKeySpec;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.KeyFactory;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
 import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.security.spec.X509EncodedKeySpec;
 import java.util.Arrays;
 import java.util.Base64;
 
+// messages and file chunks are sealed with AES-GCM: a version byte, a random 12 byte nonce, then the ciphertext
+// and its 16 byte tag, so tampering is detected and equal blocks no longer look equal. the version byte alone decides
+// the format: anything without it is treated as the old AES/ECB format so messages from older clients can still be
+// read, and a GCM payload that fails its tag is rejected rather than tried as ECB.
+// passwords are sealed the same way but with a key from an X25519 exchange on the connection, see Auth.
+// Cipher.getInstance is slow, so every thread keeps its own instances and only re-inits them per message
 public class EncryptionUtils {
     private static final String SECRET = "defaultEncryptionKey";
     private static SecretKeySpec secretKeySpec;
 
+    private static final byte GCM_VERSION = 1;
+    private static final int NONCE_LENGTH = 12;
+    private static final int TAG_BITS = 128;
+    // the version byte, nonce and tag added to every sealed payload
+    public static final int SEAL_OVERHEAD = 1 + NONCE_LENGTH + TAG_BITS / 8;
+
+    private static final SecureRandom random = new SecureRandom();
+    private static final ThreadLocal<Cipher> gcm = ThreadLocal.withInitial(() -> cipher("AES/GCM/NoPadding"));
+    private static final ThreadLocal<Cipher> ecb = ThreadLocal.withInitial(() -> cipher("AES/ECB/PKCS5Padding"));
+
     static {
         try {
             MessageDigest sha = MessageDigest.getInstance("SHA-256");
@@ -20,43 +49,137 @@ public class EncryptionUtils {
         }
     }
 
+    private static Cipher cipher(String transformation) {
+        try {
+            return Cipher.getInstance(transformation);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
     public static String encrypt(String plainText) {
+        byte[] plain = plainText.getBytes(StandardCharsets.UTF_8);
+        return Base64.getEncoder().encodeToString(seal(plain, 0, plain.length, null));
+    }
+
+    public static String decrypt(String cipherText) {
         try {
-            Cipher cipher = Cipher.getInstance("AES/ECB/PKCS5Padding");
-            cipher.init(Cipher.ENCRYPT_MODE, secretKeySpec);
-            byte[] encrypted = cipher.doFinal(plainText.getBytes("UTF-8"));
-            return Base64.getEncoder().encodeToString(encrypted);
-        } catch (Exception e) {
-            e.printStackTrace();
+            byte[] plain = open(Base64.getDecoder().decode(cipherText), null);
+            return plain == null ? null : new String(plain, StandardCharsets.UTF_8);
+        } catch (IllegalArgumentException e) {
+            // not Base64
         }
         return null;
     }
 
-    public static String decrypt(String cipherText) {
+    // encrypts data[offset, offset + length). associatedData, if given, isn't in the result but has to be passed
+    // to open unchanged, e.g. a file chunk's transfer id and index so chunks can't be swapped around
+    public static byte[] seal(byte[] data, int offset, int length, byte[] associatedData) {
+        return seal(secretKeySpec, data, offset, length, associatedData);
+    }
+
+    public static byte[] seal(SecretKeySpec key, byte[] data, int offset, int length, byte[] associatedData) {
+        byte[] sealed = new byte[SEAL_OVERHEAD + length];
+        sealed[0] = GCM_VERSION;
+        byte[] nonce = new byte[NONCE_LENGTH];
+        random.nextBytes(nonce);
+        System.arraycopy(nonce, 0, sealed, 1, NONCE_LENGTH);
         try {
-            Cipher cipher = Cipher.getInstance("AES/ECB/PKCS5Padding");
+            Cipher cipher = gcm.get();
+            cipher.init(Cipher.ENCRYPT_MODE, key, new GCMParameterSpec(TAG_BITS, nonce));
+            if (associatedData != null) cipher.updateAAD(associatedData);
+            cipher.doFinal(data, offset, length, sealed, 1 + NONCE_LENGTH);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+        return sealed;
+    }
+
+    // returns null if the payload was tampered with or can't be decrypted, which a peer can cause at will so
+    // nothing is logged
+    public static byte[] open(byte[] sealed, byte[] associatedData) {
+        if (sealed.length > 0 && sealed[0] == GCM_VERSION) return open(secretKeySpec, sealed, associatedData);
+        if (associatedData != null || sealed.length % 16 != 0) return null;
+        try {
+            Cipher cipher = ecb.get();
             cipher.init(Cipher.DECRYPT_MODE, secretKeySpec);
-            byte[] encrypted = Base64.getDecoder().decode(cipherText);
-            return new String(cipher.doFinal(encrypted), "UTF-8");
-        } catch (Exception e) {
-            e.printStackTrace();
+            return cipher.doFinal(sealed);
+        } catch (GeneralSecurityException e) {
+            return null;
+        }
+    }
+
+    // only the GCM format, nothing was ever sealed with any other key in ECB
+    public static byte[] open(SecretKeySpec key, byte[] sealed, byte[] associatedData) {
+        if (sealed.length < SEAL_OVERHEAD || sealed[0] != GCM_VERSION) return null;
+        try {
+            Cipher cipher = gcm.get();
+            cipher.init(Cipher.DECRYPT_MODE, key, new GCMParameterSpec(TAG_BITS, sealed, 1, NONCE_LENGTH));
+            if (associatedData != null) cipher.updateAAD(associatedData);
+            return cipher.doFinal(sealed, 1 + NONCE_LENGTH, sealed.length - 1 - NONCE_LENGTH);
+        } catch (GeneralSecurityException e) {
+            return null;
+        }
+    }
+
+    // a fresh X25519 key pair for one exchange
+    public static KeyPair keyPair() {
+        try {
+            return KeyPairGenerator.getInstance("X25519").generateKeyPair();
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    // the public half as Base64, what goes in a KEY frame
+    public static String publicKey(KeyPair pair) {
+        return Base64.getEncoder().encodeToString(pair.getPublic().getEncoded());
+    }
+
+    // the AES key both ends of an exchange arrive at, null if theirs isn't an X25519 public key
+    public static SecretKeySpec agree(KeyPair ours, String theirs) {
+        try {
+            KeyAgreement agreement = KeyAgreement.getInstance("X25519");
+            agreement.init(ours.getPrivate());
+            agreement.doPhase(KeyFactory.getInstance("X25519")
+                    .generatePublic(new X509EncodedKeySpec(Base64.getDecoder().decode(theirs))), true);
+            return new SecretKeySpec(MessageDigest.getInstance("SHA-256").digest(agreement.generateSecret()), "AES");
+        } catch (GeneralSecurityException | IllegalArgumentException e) {
+            return null;
         }
-        return null;
     }
 
     public static String sha256(String plainText) {
         try {
             MessageDigest digest = MessageDigest.getInstance("SHA-256");
-            byte[] hash = digest.digest(plainText.getBytes("UTF-8"));
-            StringBuilder hexString = new StringBuilder();
-            for (byte b : hash) {
-                String hex = Integer.toHexString(0xff & b);
-                if (hex.length() == 1) hexString.append('0');
-                hexString.append(hex);
-            }
-            return hexString.toString();
+            return hex(digest.digest(plainText.getBytes("UTF-8")));
         } catch (Exception e) {
             throw new RuntimeException(e);
         }
     }
+
+    // the hash of a file's contents, read a block at a time
+    public static String sha256(File file) throws IOException {
+        try (InputStream in = new FileInputStream(file)) {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            byte[] buffer = new byte[64 * 1024];
+            int read;
+            while ((read = in.read(buffer)) > 0) {
+                digest.update(buffer, 0, read);
+            }
+            return hex(digest.digest());
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String hex(byte[] hash) {
+        StringBuilder hexString = new StringBuilder();
+        for (byte b : hash) {
+            String hex = Integer.toHexString(0xff & b);
+            if (hex.length() == 1) hexString.append('0');
+            hexString.append(hex);
+        }
+        return hexString.toString();
+    }
 }
@@ -0,0 +1,570 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+
+// chunked file transfer for one client, files are streamed from and to disk a chunk at a time.
+// the sender offers "FILE_BEGIN:recipient:id:size:fileName" and the recipient answers "FILE_RESUME:sender:id:nextChunk",
+// then "FILE_CHUNK:recipient:id:index:encryptedChunk" lines follow from that chunk on and "FILE_END:recipient:id".
+// each chunk is sealed on its own with AES-GCM and its transfer id and index, so chunks can't be swapped or replayed.
+// a complete file is confirmed with "FILE_DONE:sender:id". the server relays each one as "<TYPE>_FROM:otherUser:..."
+// unfinished transfers are kept on disk on both ends so they carry on from the last chunk after a disconnect.
+// the message reader only hands incoming file frames over, they are decrypted and written on the file-io threads,
+// in order for each transfer and several transfers at once, so chat messages never wait behind a file.
+// when the server keeps files by content (see BlobStore) a file is offered by its hash instead: the sender only
+// uploads the chunks the server doesn't have yet and the recipient fetches them from the server, sealed with the
+// hash and index, so a file sent again or to many users crosses the sender's connection once
+public class FileTransfers {
+    public static final int CHUNK_SIZE = 64 * 1024;
+    private static final int IO_THREADS = 4;
+    // chunks handed over but not yet written, the reader waits once this many bytes are queued
+    private static final int QUEUE_BYTES = 32 * 1024 * 1024;
+    // chunks asked for in each BLOB_GET, two lots are in flight while a file is fetched from the server
+    private static final int BLOB_WINDOW = 16;
+    // a server that never answers a BLOB_QUERY in this long doesn't keep files, they are sent directly
+    private static final long BLOB_FALLBACK_NANOS = 10_000_000_000L;
+
+    public interface Listener {
+        void fileSent(String recipient, String fileName);
+
+        void fileReceived(String sender, String fileName);
+
+        // called from a file-io thread each time another percent of an incoming file is on disk
+        default void fileProgress(String sender, String fileName, long received, long size) {
+        }
+    }
+
+    // one step of an incoming transfer, run on the file-io threads
+    private interface Step {
+        void run(Incoming transfer) throws IOException;
+    }
+
+    // an incoming transfer, its steps run one at a time in the order the frames arrived
+    private class Incoming {
+        final String sender;
+        final String id;
+        final String key;
+        private final ArrayDeque<Step> steps = new ArrayDeque<>();
+        private boolean running;
+        private boolean removed;
+        // only touched by the running step
+        FileChannel part;
+        long expectedChunk;
+        long size;
+        String fileName;
+        // set when the file is fetched from the server's blob store
+        String hash;
+        long requestedUpTo;
+        int reportedPercent = -1;
+
+        Incoming(String sender, String id) {
+            this.sender = sender;
+            this.id = id;
+            this.key = sender + "-" + id;
+        }
+
+        void drain() {
+            while (true) {
+                Step step;
+                synchronized (this) {
+                    step = steps.poll();
+                    if (step == null) {
+                        running = false;
+                        // nothing half written, the next frame for it starts afresh
+                        if (part == null) {
+                            removed = true;
+                            incoming.remove(key, this);
+                        }
+                        return;
+                    }
+                }
+                try {
+                    step.run(this);
+                } catch (RuntimeException | IOException e) {
+                    // a malformed or failed frame only affects its own transfer
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    // replaced when the client reconnects
+    private volatile ServerConnection connection;
+    private final Listener listener;
+    private final File outgoingDir;
+    private final File incomingDir;
+    private final File downloadsDir = new File("downloads");
+    // outgoing transfers being streamed right now, so a repeated FILE_RESUME doesn't start a second stream
+    private final Set<String> streaming = ConcurrentHashMap.newKeySet();
+    private final Map<String, Incoming> incoming = new ConcurrentHashMap<>();
+    private final ExecutorService io = Executors.newFixedThreadPool(IO_THREADS, r -> {
+        Thread t = new Thread(r, "file-io");
+        t.setDaemon(true);
+        return t;
+    });
+    private final Semaphore queuedBytes = new Semaphore(QUEUE_BYTES);
+    // outgoing transfers waiting for the server to say how much of their file it has, with when it was asked
+    private final Map<String, Long> queried = new ConcurrentHashMap<>();
+    // outgoing transfers handed to the recipient by reference, until they confirm it
+    private final Set<String> referred = ConcurrentHashMap.newKeySet();
+    // hashes being uploaded right now
+    private final Set<String> uploading = ConcurrentHashMap.newKeySet();
+    private volatile boolean blobsAnswered;
+
+    public FileTransfers(String username, ServerConnection connection, Listener listener) {
+        this.connection = connection;
+        this.listener = listener;
+        File base = new File("transfers", username);
+        outgoingDir = new File(base, "outgoing");
+        incomingDir = new File(base, "incoming");
+        outgoingDir.mkdirs();
+        incomingDir.mkdirs();
+    }
+
+    // the connection after reconnecting, resumePending then offers what was cut off
+    public void setConnection(ServerConnection connection) {
+        this.connection = connection;
+    }
+
+    // the id is derived from the file and recipient, so sending the same file again resumes the old transfer.
+    // returns straight away, the file is hashed and offered on a thread of its own as that reads all of it
+    public void send(File file, String recipient) throws IOException {
+        String path = file.getCanonicalPath();
+        String id = EncryptionUtils.sha256(recipient + ":" + path + ":" + file.length() + ":" + file.lastModified()).substring(0, 16);
+        Properties meta = new Properties();
+        meta.setProperty("path", path);
+        meta.setProperty("recipient", recipient);
+        meta.setProperty("fileName", file.getName());
+        meta.setProperty("size", Long.toString(file.length()));
+        new Thread(() -> {
+            try {
+                meta.setProperty("hash", EncryptionUtils.sha256(file));
+                try (OutputStream os = new FileOutputStream(new File(outgoingDir, id + ".properties"))) {
+                    meta.store(os, null);
+                }
+                offer(id, meta);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }, "file-hash").start();
+    }
+
+    // offers every transfer the recipient hasn't confirmed yet, called after connecting and then periodically
+    public void resumePending() {
+        File[] pending = outgoingDir.listFiles((dir, name) -> name.endsWith(".properties"));
+        if (pending == null) return;
+        for (File file : pending) {
+            String id = file.getName().substring(0, file.getName().length() - ".properties".length());
+            Properties meta = load(file);
+            if (meta == null || streaming.contains(id)) continue;
+            Long asked = queried.get(id);
+            if (!blobsAnswered && asked != null && System.nanoTime() - asked > BLOB_FALLBACK_NANOS) {
+                sendDirectly(id, meta, file);
+            } else {
+                offer(id, meta);
+            }
+        }
+    }
+
+    private void offer(String id, Properties meta) {
+        String hash = meta.getProperty("hash");
+        if (hash != null) {
+            // the server answers with BLOB_STATUS
+            referred.remove(id);
+            queried.putIfAbsent(id, System.nanoTime());
+            connection.send("BLOB_QUERY:" + hash + ":" + meta.getProperty("size"));
+            return;
+        }
+        connection.send("FILE_BEGIN:" + meta.getProperty("recipient") + ":" + id + ":"
+                + meta.getProperty("size") + ":" + meta.getProperty("fileName"));
+    }
+
+    // returns false for frames that aren't files
+    public boolean handle(Frame frame) {
+        String[] fields = frame.fields;
+        if (hasId(frame.type) && !validId(fields[1])) {
+            // the id names files under transfers, anything but an id made by send could reach outside it
+            return true;
+        }
+        try {
+            switch (frame.type) {
+                case FILE_BEGIN_FROM:
+                    long size = Long.parseLong(fields[2]);
+                    submit(fields[0], fields[1], transfer -> beginReceived(transfer, size, fields[3], null));
+                    break;
+                case FILE_REF_FROM:
+                    long refSize = Long.parseLong(fields[2]);
+                    submit(fields[0], fields[1], transfer -> beginReceived(transfer, refSize, fields[4], fields[3]));
+                    break;
+                case BLOB_STATUS:
+                    blobStatus(fields[0], Long.parseLong(fields[1]));
+                    break;
+                case FILE_CHUNK_FROM:
+                    long index = Long.parseLong(fields[2]);
+                    byte[] data = frame.payloadBytes();
+                    queuedBytes.acquireUninterruptibly(data.length);
+                    submit(fields[0], fields[1], transfer -> {
+                        try {
+                            chunkReceived(transfer, index, data);
+                        } finally {
+                            queuedBytes.release(data.length);
+                        }
+                    });
+                    break;
+                case FILE_END_FROM:
+                    submit(fields[0], fields[1], this::endReceived);
+                    break;
+                case FILEFROM:
+                    legacyReceived(fields[0], fields[1], frame.payloadText());
+                    break;
+                case FILE_RESUME_FROM:
+                    startStreaming(fields[0], fields[1], Long.parseLong(fields[2]));
+                    break;
+                case FILE_DONE_FROM:
+                    File journal = new File(outgoingDir, fields[1] + ".properties");
+                    Properties meta = load(journal);
+                    // only the recipient can say it has the file
+                    if (meta == null || !fields[0].equals(meta.getProperty("recipient"))) break;
+                    referred.remove(fields[1]);
+                    queried.remove(fields[1]);
+                    if (journal.delete()) {
+                        listener.fileSent(fields[0], meta.getProperty("fileName"));
+                    }
+                    break;
+                default:
+                    return false;
+            }
+        } catch (RuntimeException e) {
+            // a malformed frame only affects its own transfer
+            e.printStackTrace();
+        }
+        return true;
+    }
+
+    // the 16 lowercase hex digits send makes ids from
+    private static boolean validId(String id) {
+        if (id.length() != 16) return false;
+        for (int i = 0; i < id.length(); i++) {
+            char c = id.charAt(i);
+            if ((c < '0' || c > '9') && (c < 'a' || c > 'f')) return false;
+        }
+        return true;
+    }
+
+    // file frames whose second field is a transfer id
+    private static boolean hasId(Frame.Type type) {
+        switch (type) {
+            case FILE_BEGIN_FROM:
+            case FILE_REF_FROM:
+            case FILE_CHUNK_FROM:
+            case FILE_END_FROM:
+            case FILE_RESUME_FROM:
+            case FILE_DONE_FROM:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    // the server can't keep the file or hand it to the recipient, it goes the old way from now on
+    private void sendDirectly(String id, Properties meta, File journal) {
+        queried.remove(id);
+        referred.remove(id);
+        meta.remove("hash");
+        try (OutputStream os = new FileOutputStream(journal)) {
+            meta.store(os, null);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        offer(id, meta);
+    }
+
+    // the server's answer to a BLOB_QUERY or BLOB_END, for every transfer of the file waiting on it
+    private void blobStatus(String hash, long stored) {
+        blobsAnswered = true;
+        Set<String> waiting = new HashSet<>(queried.keySet());
+        waiting.addAll(referred);
+        for (String id : waiting) {
+            File journal = new File(outgoingDir, id + ".properties");
+            Properties meta = load(journal);
+            if (meta == null || !hash.equals(meta.getProperty("hash"))) continue;
+            long size = Long.parseLong(meta.getProperty("size"));
+            if (stored < 0) {
+                // no blob store, too big for it, or the recipient is on another node
+                sendDirectly(id, meta, journal);
+            } else if (stored < chunks(size)) {
+                // the rest is uploaded and BLOB_END gets another answer. a file already handed over was evicted
+                referred.remove(id);
+                queried.putIfAbsent(id, System.nanoTime());
+                startUpload(hash, meta, stored);
+            } else if (queried.remove(id) != null) {
+                referred.add(id);
+                connection.send("FILE_REF:" + meta.getProperty("recipient") + ":" + id + ":" + size + ":" + hash
+                        + ":" + meta.getProperty("fileName"));
+            }
+        }
+    }
+
+    private void startUpload(String hash, Properties meta, long fromChunk) {
+        if (!uploading.add(hash)) return;
+        new Thread(() -> {
+            try {
+                if (streamChunks(meta, fromChunk, hash, Frame.Type.BLOB_CHUNK, hash)) {
+                    connection.send("BLOB_END:" + hash + ":" + meta.getProperty("size"));
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+            } finally {
+                uploading.remove(hash);
+            }
+        }).start();
+    }
+
+    private void startStreaming(String recipient, String id, long fromChunk) {
+        Properties meta = load(new File(outgoingDir, id + ".properties"));
+        if (meta == null || !recipient.equals(meta.getProperty("recipient")) || !streaming.add(id)) return;
+        new Thread(() -> {
+            try {
+                stream(id, meta, fromChunk);
+            } catch (IOException e) {
+                e.printStackTrace();
+            } finally {
+                streaming.remove(id);
+            }
+        }).start();
+    }
+
+    private void stream(String id, Properties meta, long fromChunk) throws IOException {
+        String recipient = meta.getProperty("recipient");
+        if (streamChunks(meta, fromChunk, id, Frame.Type.FILE_CHUNK, recipient, id)) {
+            connection.send("FILE_END:" + recipient + ":" + id);
+        }
+    }
+
+    // sends the file's chunks from fromChunk on as frames of type with the given fields then the index, each sealed
+    // with sealedFor and its index. only one chunk is ever in memory, however big the file is. false if the
+    // connection was lost, the transfer is offered again after reconnecting
+    private boolean streamChunks(Properties meta, long fromChunk, String sealedFor, Frame.Type type, String... fields)
+            throws IOException {
+        long size = Long.parseLong(meta.getProperty("size"));
+        long chunks = chunks(size);
+        String[] frameFields = Arrays.copyOf(fields, fields.length + 1);
+        ByteBuffer buffer = ByteBuffer.allocate(CHUNK_SIZE);
+        try (FileChannel channel = FileChannel.open(new File(meta.getProperty("path")).toPath(), StandardOpenOption.READ)) {
+            for (long index = fromChunk; index < chunks; index++) {
+                buffer.clear();
+                long position = index * CHUNK_SIZE;
+                while (buffer.hasRemaining() && channel.read(buffer, position + buffer.position()) > 0) {
+                }
+                byte[] sealed = EncryptionUtils.seal(buffer.array(), 0, buffer.position(), chunkAad(sealedFor, index));
+                frameFields[fields.length] = Long.toString(index);
+                if (!connection.send(new Frame(type, frameFields.clone(), null, sealed))) return false;
+            }
+        }
+        return true;
+    }
+
+    public static long chunks(long size) {
+        return (size + CHUNK_SIZE - 1) / CHUNK_SIZE;
+    }
+
+    private void submit(String sender, String id, Step step) {
+        String key = sender + "-" + id;
+        while (true) {
+            Incoming transfer = incoming.computeIfAbsent(key, k -> new Incoming(sender, id));
+            synchronized (transfer) {
+                // it went idle and was dropped between the lookup and here
+                if (transfer.removed) continue;
+                transfer.steps.add(step);
+                if (transfer.running) return;
+                transfer.running = true;
+            }
+            io.execute(transfer::drain);
+            return;
+        }
+    }
+
+    // the old single line FILEFROM, the whole file in one frame, written on a file-io thread all the same
+    private void legacyReceived(String sender, String fileName, String encryptedFileData) {
+        io.execute(() -> {
+            try {
+                byte[] fileBytes = Base64.getDecoder().decode(EncryptionUtils.decrypt(encryptedFileData));
+                String name = new File(fileName).getName();
+                if (!downloadsDir.exists()) downloadsDir.mkdir();
+                Path temp = Files.createTempFile(downloadsDir.toPath(), name, ".part");
+                Files.write(temp, fileBytes);
+                moveIntoDownloads(temp, name);
+                listener.fileReceived(sender, name);
+            } catch (RuntimeException | IOException e) {
+                e.printStackTrace();
+            }
+        });
+    }
+
+    // hash is set for a file fetched from the server's blob store
+    private void beginReceived(Incoming transfer, long size, String fileName, String hash) throws IOException {
+        String key = transfer.key;
+        if (new File(incomingDir, key + ".done").exists()) {
+            // finished before but the sender missed the confirmation
+            connection.send("FILE_DONE:" + transfer.sender + ":" + transfer.id);
+            return;
+        }
+        File metaFile = new File(incomingDir, key + ".properties");
+        if (!metaFile.exists()) {
+            Properties meta = new Properties();
+            // only keep the name, a sender mustn't be able to pick a path outside downloads
+            meta.setProperty("fileName", new File(fileName).getName());
+            meta.setProperty("size", Long.toString(size));
+            if (hash != null) meta.setProperty("hash", hash);
+            try (OutputStream os = new FileOutputStream(metaFile)) {
+                meta.store(os, null);
+            }
+        }
+        requestFrom(transfer);
+    }
+
+    // asks the sender to carry on from the last complete chunk on disk
+    private void requestFrom(Incoming transfer) throws IOException {
+        closePart(transfer);
+        Properties meta = load(new File(incomingDir, transfer.key + ".properties"));
+        if (meta == null) return;
+        transfer.fileName = meta.getProperty("fileName");
+        transfer.size = Long.parseLong(meta.getProperty("size"));
+        FileChannel part = FileChannel.open(new File(incomingDir, transfer.key + ".part").toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        long nextChunk = part.size() / CHUNK_SIZE;
+        // drop a chunk that was only partly written when the connection went
+        part.truncate(nextChunk * CHUNK_SIZE);
+        transfer.part = part;
+        transfer.expectedChunk = nextChunk;
+        transfer.hash = meta.getProperty("hash");
+        if (transfer.hash != null) {
+            transfer.requestedUpTo = nextChunk;
+            fetch(transfer, 2 * BLOB_WINDOW);
+        } else {
+            connection.send("FILE_RESUME:" + transfer.sender + ":" + transfer.id + ":" + nextChunk);
+        }
+    }
+
+    // asks the server for the next count chunks of a file in its blob store
+    private void fetch(Incoming transfer, int count) {
+        connection.send("BLOB_GET:" + transfer.sender + ":" + transfer.id + ":" + transfer.hash + ":"
+                + transfer.requestedUpTo + ":" + count);
+        transfer.requestedUpTo += count;
+    }
+
+    private void chunkReceived(Incoming transfer, long index, byte[] data) throws IOException {
+        // chunks from before a resume, or for a transfer we didn't accept, are skipped
+        if (transfer.part == null || index != transfer.expectedChunk) return;
+        byte[] chunk = EncryptionUtils.open(data, chunkAad(transfer.hash != null ? transfer.hash : transfer.id, index));
+        if (chunk == null) return;
+        ByteBuffer buffer = ByteBuffer.wrap(chunk);
+        long position = index * CHUNK_SIZE;
+        while (buffer.hasRemaining()) {
+            transfer.part.write(buffer, position + buffer.position());
+        }
+        transfer.expectedChunk = index + 1;
+        // a window used up, ask for another one so the next is already on its way
+        if (transfer.hash != null && transfer.expectedChunk % BLOB_WINDOW == 0
+                && transfer.requestedUpTo < chunks(transfer.size)) {
+            fetch(transfer, BLOB_WINDOW);
+        }
+        long received = position + chunk.length;
+        int percent = transfer.size == 0 ? 100 : (int) (received * 100 / transfer.size);
+        if (percent != transfer.reportedPercent) {
+            transfer.reportedPercent = percent;
+            listener.fileProgress(transfer.sender, transfer.fileName, received, transfer.size);
+        }
+    }
+
+    private void endReceived(Incoming transfer) throws IOException {
+        if (transfer.part == null) return;
+        long written = transfer.part.size();
+        if (written != transfer.size) {
+            // chunks went missing on the way, ask for the rest
+            requestFrom(transfer);
+            return;
+        }
+        // on disk before it is renamed, so a crash can't leave a whole looking file with holes in it
+        transfer.part.force(true);
+        closePart(transfer);
+        File part = new File(incomingDir, transfer.key + ".part");
+        if (transfer.hash != null && !transfer.hash.equals(EncryptionUtils.sha256(part))) {
+            // someone uploaded other content under this hash, ask the sender for the file itself instead
+            System.err.println("File " + transfer.fileName + " from " + transfer.sender + " doesn't match its hash");
+            part.delete();
+            File metaFile = new File(incomingDir, transfer.key + ".properties");
+            Properties meta = load(metaFile);
+            if (meta == null) return;
+            meta.remove("hash");
+            try (OutputStream os = new FileOutputStream(metaFile)) {
+                meta.store(os, null);
+            }
+            requestFrom(transfer);
+            return;
+        }
+        moveIntoDownloads(part.toPath(), transfer.fileName);
+        new File(incomingDir, transfer.key + ".done").createNewFile();
+        new File(incomingDir, transfer.key + ".properties").delete();
+        connection.send("FILE_DONE:" + transfer.sender + ":" + transfer.id);
+        listener.fileReceived(transfer.sender, transfer.fileName);
+    }
+
+    // a file only ever appears in downloads whole, replacing one with the same name in a single rename
+    private void moveIntoDownloads(Path source, String fileName) throws IOException {
+        if (!downloadsDir.exists()) downloadsDir.mkdir();
+        Path target = new File(downloadsDir, fileName).toPath();
+        try {
+            Files.move(source, target, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            // downloads is on another file system, copy next to the target first and rename it there
+            Path temp = Files.createTempFile(downloadsDir.toPath(), fileName, ".part");
+            Files.copy(source, temp, StandardCopyOption.REPLACE_EXISTING);
+            Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE);
+            Files.delete(source);
+        }
+    }
+
+    private static byte[] chunkAad(String id, long index) {
+        return (id + ":" + index).getBytes(StandardCharsets.UTF_8);
+    }
+
+    private void closePart(Incoming transfer) {
+        FileChannel part = transfer.part;
+        transfer.part = null;
+        if (part != null) {
+            try {
+                part.close();
+            } catch (IOException e) {
+            }
+        }
+    }
+
+    private static Properties load(File file) {
+        if (!file.exists()) return null;
+        Properties meta = new Properties();
+        try (InputStream is = new FileInputStream(file)) {
+            meta.load(is);
+            return meta;
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+}
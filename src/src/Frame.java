@@ -0,0 +1,200 @@
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.Map;
+
+// one protocol message independent of how it travels: a type, its header fields and an optional opaque payload.
+// the payload is the encrypted body, kept as Base64 text for the text protocol and as raw bytes for the binary one
+// and only converted when a message crosses from one to the other. either form may be a slice of the buffer the
+// frame was read into, so relaying a file chunk never copies the payload or turns it into a String
+public class Frame {
+    public enum Type {
+        UNKNOWN(0, 1, false),
+        USER(1, 1, false),
+        PROTO(2, 1, false),
+        TO(3, 1, true),
+        FROM(4, 1, true),
+        FILE(5, 2, true),
+        FILEFROM(6, 2, true),
+        FILE_BEGIN(7, 4, false),
+        FILE_BEGIN_FROM(8, 4, false),
+        FILE_CHUNK(9, 3, true),
+        FILE_CHUNK_FROM(10, 3, true),
+        FILE_END(11, 2, false),
+        FILE_END_FROM(12, 2, false),
+        FILE_RESUME(13, 3, false),
+        FILE_RESUME_FROM(14, 3, false),
+        FILE_DONE(15, 2, false),
+        FILE_DONE_FROM(16, 2, false),
+        PRESENCE(17, 1, false),
+        ROSTER(18, 2, false),
+        JOIN(19, 1, false),
+        LEAVE(20, 1, false),
+        REGISTERED(21, 1, false),
+        GROUP_JOIN(22, 1, false),
+        GROUP_LEAVE(23, 1, false),
+        TO_GROUP(24, 1, true),
+        FROM_GROUP(25, 2, true),
+        BLOB_QUERY(26, 2, false),
+        BLOB_STATUS(27, 2, false),
+        BLOB_CHUNK(28, 2, true),
+        BLOB_END(29, 2, false),
+        BLOB_GET(30, 5, false),
+        FILE_REF(31, 5, false),
+        FILE_REF_FROM(32, 5, false),
+        AUTH(33, 1, true),
+        REGISTER(34, 1, true),
+        RESUME(35, 2, false),
+        AUTH_OK(36, 1, false),
+        AUTH_FAIL(37, 1, false),
+        PING(38, 1, false),
+        PONG(39, 1, false),
+        MSG(40, 2, true),
+        MSG_FROM(41, 2, true),
+        ACK(42, 2, false),
+        RECEIVED(43, 2, false),
+        DELIVERED(44, 2, false),
+        WINDOW(45, 1, false),
+        KEY(46, 1, false);
+
+        private static final Type[] byId = new Type[256];
+        private static final Map<String, Type> byName = new HashMap<>();
+
+        static {
+            for (Type type : values()) {
+                byId[type.id] = type;
+                byName.put(type.name(), type);
+            }
+        }
+
+        public final int id;
+        public final int fields;
+        public final boolean payload;
+
+        Type(int id, int fields, boolean payload) {
+            this.id = id;
+            this.fields = fields;
+            this.payload = payload;
+        }
+
+        public static Type byId(int id) {
+            Type type = byId[id & 0xff];
+            return type == null ? UNKNOWN : type;
+        }
+
+        public static Type byName(String name) {
+            Type type = byName.get(name);
+            return type == null ? UNKNOWN : type;
+        }
+
+        // what the server turns a client's message into when it passes it on, null for ones it doesn't relay
+        public Type relayedAs() {
+            switch (this) {
+                case TO: return FROM;
+                case FILE: return FILEFROM;
+                case FILE_BEGIN: return FILE_BEGIN_FROM;
+                case FILE_CHUNK: return FILE_CHUNK_FROM;
+                case FILE_END: return FILE_END_FROM;
+                case FILE_RESUME: return FILE_RESUME_FROM;
+                case FILE_DONE: return FILE_DONE_FROM;
+                case MSG: return MSG_FROM;
+                case RECEIVED: return DELIVERED;
+                default: return null;
+            }
+        }
+    }
+
+    public final Type type;
+    public final String[] fields;
+    // bytes the frame took on the wire when it was read, for the metrics
+    public int wireLength;
+    // Base64 ASCII and raw bytes, never written to and only handed out as duplicates
+    private ByteBuffer payloadText;
+    private ByteBuffer payloadBytes;
+
+    public Frame(Type type, String[] fields, String payloadText, byte[] payloadBytes) {
+        this(type, fields, payloadText == null ? null : ByteBuffer.wrap(payloadText.getBytes(StandardCharsets.ISO_8859_1)),
+                payloadBytes == null ? null : ByteBuffer.wrap(payloadBytes));
+    }
+
+    private Frame(Type type, String[] fields, ByteBuffer payloadText, ByteBuffer payloadBytes) {
+        this.type = type;
+        this.fields = fields;
+        this.payloadText = payloadText;
+        this.payloadBytes = payloadBytes;
+    }
+
+    // a frame whose payload is buffer[offset, offset + length] as Base64 text, the codec must not reuse buffer
+    public static Frame withText(Type type, String[] fields, byte[] buffer, int offset, int length) {
+        return new Frame(type, fields, ByteBuffer.wrap(buffer, offset, length).slice(), null);
+    }
+
+    // the same with raw bytes
+    public static Frame withBytes(Type type, String[] fields, byte[] buffer, int offset, int length) {
+        return new Frame(type, fields, null, ByteBuffer.wrap(buffer, offset, length).slice());
+    }
+
+    // the relayed copy swaps the recipient in the first field for the sender and shares the payload
+    public Frame relay(Type relayedType, String sender) {
+        String[] relayedFields = fields.clone();
+        relayedFields[0] = sender;
+        return relay(relayedType, relayedFields);
+    }
+
+    // a relayed copy with its own fields, sharing the payload in whichever form it arrived
+    public Frame relay(Type relayedType, String[] relayedFields) {
+        return new Frame(relayedType, relayedFields, payloadText, payloadBytes);
+    }
+
+    // who a relayed frame is from, null for the server's own frames
+    public String sender() {
+        if (type == Type.FROM_GROUP) return fields[1];
+        switch (type) {
+            case FROM:
+            case FILEFROM:
+            case FILE_BEGIN_FROM:
+            case FILE_CHUNK_FROM:
+            case FILE_END_FROM:
+            case FILE_RESUME_FROM:
+            case FILE_DONE_FROM:
+            case FILE_REF_FROM:
+            case MSG_FROM:
+            case DELIVERED:
+                return fields[0];
+            default:
+                return null;
+        }
+    }
+
+    public String payloadText() {
+        ByteBuffer text = textPayload();
+        return text == null ? null : StandardCharsets.ISO_8859_1.decode(text).toString();
+    }
+
+    // throws IllegalArgumentException if a text payload isn't valid Base64
+    public byte[] payloadBytes() {
+        ByteBuffer bytes = bytesPayload();
+        if (bytes == null) return null;
+        if (bytes.arrayOffset() == 0 && bytes.remaining() == bytes.array().length) return bytes.array();
+        byte[] copy = new byte[bytes.remaining()];
+        bytes.get(copy);
+        return copy;
+    }
+
+    // the Base64 payload in place, for a codec writing it out as it is. races only convert twice
+    public ByteBuffer textPayload() {
+        if (payloadText == null && payloadBytes != null) {
+            payloadText = Base64.getEncoder().encode(payloadBytes.duplicate());
+        }
+        return payloadText == null ? null : payloadText.duplicate();
+    }
+
+    // the raw payload in place, throws IllegalArgumentException like payloadBytes
+    public ByteBuffer bytesPayload() {
+        if (payloadBytes == null && payloadText != null) {
+            payloadBytes = Base64.getDecoder().decode(payloadText.duplicate());
+        }
+        return payloadBytes == null ? null : payloadBytes.duplicate();
+    }
+}
@@ -0,0 +1,35 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+// turns frames into bytes on the wire and back, one implementation per protocol version
+public interface FrameCodec {
+    FrameCodec TEXT = new TextCodec();
+    FrameCodec BINARY = new BinaryCodec();
+    // payloads at least this big are written from where they are instead of being copied in with the header
+    int GATHER_AT = 8192;
+
+    // throws IllegalArgumentException for a frame this codec can't represent
+    byte[] encode(Frame frame);
+
+    // the same bytes as encode as buffers to write one after another, a large payload is one of them as it is
+    default ByteBuffer[] encodeParts(Frame frame) {
+        return new ByteBuffer[]{ByteBuffer.wrap(encode(frame))};
+    }
+
+    // length of the first complete frame in buffer[start, end), or -1 if more bytes are needed.
+    // bytes before scanFrom were already looked at by an earlier call for the same frame
+    int frameLength(byte[] buffer, int start, int end, int scanFrom) throws IOException;
+
+    // length of the frame starting at buffer[start] once enough of it is there to tell, otherwise -1
+    default int declaredLength(byte[] buffer, int start, int end) throws IOException {
+        return -1;
+    }
+
+    // decodes a complete frame of the length given by frameLength
+    default Frame decode(byte[] buffer, int start, int length) {
+        return decode(buffer, start, length, false);
+    }
+
+    // owned means buffer belongs to the frame from now on, so the payload is left in it rather than copied out
+    Frame decode(byte[] buffer, int start, int length, boolean owned);
+}
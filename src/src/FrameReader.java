@@ -0,0 +1,137 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.util.Arrays;
+
+// collects bytes from a connection and cuts them into frames with whatever codec the connection uses right now,
+// so a connection can switch protocol between two frames without losing anything already read.
+// a frame that says up front it is big, e.g. a binary file chunk, is read into an array of its own instead and the
+// frame keeps that array, so its payload is never copied again on the way through the server. the array starts
+// at up to DETACH_MAX and grows as the bytes arrive, a header claiming a huge frame doesn't allocate it up front
+public class FrameReader {
+    private static final int INITIAL_SIZE = 8192;
+    private static final int DETACH_AT = 64 * 1024;
+    // a file chunk and its header fit in this, bigger frames grow past it
+    private static final int DETACH_MAX = 1024 * 1024;
+
+    private byte[] buffer = new byte[INITIAL_SIZE];
+    private int start, end, scanned;
+    // the big frame being read, if any, how much of it is here and how long it will be
+    private byte[] pending;
+    private int pendingFilled;
+    private int pendingLength;
+
+    // blocking read for the thread engines and the client, null at the end of the stream
+    public Frame read(InputStream in, FrameCodec codec) throws IOException {
+        while (true) {
+            Frame frame = poll(codec);
+            if (frame != null) return frame;
+            if (pending != null) {
+                growPending();
+                int read = in.read(pending, pendingFilled, pending.length - pendingFilled);
+                // cut off in the middle of a frame
+                if (read < 0) return null;
+                pendingFilled += read;
+                continue;
+            }
+            makeRoom(INITIAL_SIZE);
+            int read = in.read(buffer, end, buffer.length - end);
+            if (read < 0) return finish(codec);
+            end += read;
+        }
+    }
+
+    // non-blocking read for the event loops, through scratch unless a big frame is under way.
+    // returns what the channel's read returned
+    public int read(ReadableByteChannel channel, ByteBuffer scratch) throws IOException {
+        if (pending != null) {
+            growPending();
+            int read = channel.read(ByteBuffer.wrap(pending, pendingFilled, pending.length - pendingFilled));
+            if (read > 0) pendingFilled += read;
+            return read;
+        }
+        int read = channel.read(scratch);
+        scratch.flip();
+        feed(scratch);
+        scratch.clear();
+        return read;
+    }
+
+    private void feed(ByteBuffer source) {
+        makeRoom(source.remaining());
+        int count = source.remaining();
+        source.get(buffer, end, count);
+        end += count;
+    }
+
+    // the next complete frame already buffered, or null
+    public Frame poll(FrameCodec codec) throws IOException {
+        if (pending != null) {
+            if (pendingFilled < pendingLength) return null;
+            Frame frame = codec.decode(pending, 0, pendingLength, true);
+            frame.wireLength = pendingLength;
+            pending = null;
+            return frame;
+        }
+        int length = codec.frameLength(buffer, start, end, scanned);
+        if (length < 0) {
+            int declared = codec.declaredLength(buffer, start, end);
+            if (declared >= DETACH_AT) {
+                pendingLength = declared;
+                pendingFilled = end - start;
+                pending = new byte[Math.max(Math.min(declared, DETACH_MAX), pendingFilled)];
+                System.arraycopy(buffer, start, pending, 0, pendingFilled);
+                start = end = scanned = 0;
+                return null;
+            }
+            scanned = end;
+            return null;
+        }
+        Frame frame = codec.decode(buffer, start, length);
+        frame.wireLength = length;
+        start += length;
+        scanned = start;
+        if (start == end) {
+            start = end = scanned = 0;
+            if (buffer.length > 1024 * 1024) {
+                // don't keep a large file's worth of buffer around for the rest of the session
+                buffer = new byte[INITIAL_SIZE];
+            }
+        }
+        return frame;
+    }
+
+    // a trailing text line without a newline still counts, like BufferedReader.readLine
+    public Frame finish(FrameCodec codec) {
+        if (pending != null) return null;
+        if (codec == FrameCodec.TEXT && start < end) {
+            Frame frame = codec.decode(buffer, start, end - start);
+            frame.wireLength = end - start;
+            start = end = scanned = 0;
+            return frame;
+        }
+        return null;
+    }
+
+    // doubles the big frame's array once it is full, up to its declared length
+    private void growPending() {
+        if (pendingFilled < pending.length || pending.length == pendingLength) return;
+        pending = Arrays.copyOf(pending, (int) Math.min(pendingLength, 2L * pending.length));
+    }
+
+    private void makeRoom(int needed) {
+        if (buffer.length - end >= needed) return;
+        if (start > 0) {
+            System.arraycopy(buffer, start, buffer, 0, end - start);
+            end -= start;
+            scanned -= start;
+            start = 0;
+        }
+        if (buffer.length - end < needed) {
+            byte[] bigger = new byte[Math.max(buffer.length * 2, end + needed)];
+            System.arraycopy(buffer, 0, bigger, 0, end);
+            buffer = bigger;
+        }
+    }
+}
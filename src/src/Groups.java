@@ -0,0 +1,69 @@
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+// group chats. "GROUP_JOIN:name" and "GROUP_LEAVE:name" change membership and "TO_GROUP:name:message" from a
+// member reaches every other member as "FROM_GROUP:name:sender:message". the relayed frame is encoded once per
+// protocol and the same bytes are queued for every member, so a large group costs one encode and a write each.
+// membership lasts as long as the connection, clients join their groups again after logging in
+public class Groups {
+    private static final Map<String, Set<ClientSession>> members = new ConcurrentHashMap<>();
+    // the groups each session is in, so they can all be left when it disconnects
+    private static final Map<ClientSession, Set<String>> joined = new ConcurrentHashMap<>();
+
+    public static void join(ClientSession session, String group) {
+        if (!validName(group)) return;
+        // an empty group is removed under the same key lock, so a join never lands in a dropped set
+        members.compute(group, (name, sessions) -> {
+            if (sessions == null) sessions = ConcurrentHashMap.newKeySet();
+            sessions.add(session);
+            return sessions;
+        });
+        joined.computeIfAbsent(session, key -> ConcurrentHashMap.newKeySet()).add(group);
+    }
+
+    public static void leave(ClientSession session, String group) {
+        members.computeIfPresent(group, (name, sessions) -> {
+            sessions.remove(session);
+            return sessions.isEmpty() ? null : sessions;
+        });
+        Set<String> groups = joined.get(session);
+        if (groups != null) groups.remove(group);
+    }
+
+    public static void leaveAll(ClientSession session) {
+        Set<String> groups = joined.remove(session);
+        if (groups == null) return;
+        for (String group : groups) {
+            leave(session, group);
+        }
+    }
+
+    // a TO_GROUP frame from session, only members may send to a group
+    public static void send(ClientSession session, Frame frame) {
+        String group = frame.fields[0];
+        Set<ClientSession> sessions = members.get(group);
+        if (sessions == null || !sessions.contains(session)) return;
+        SharedFrame relayed = new SharedFrame(frame.relay(Frame.Type.FROM_GROUP, new String[]{group, session.username}));
+        for (ClientSession member : sessions) {
+            if (member != session) member.send(relayed);
+        }
+        Cluster.group(group, relayed);
+    }
+
+    // a FROM_GROUP frame forwarded by another node for the members connected here
+    public static void deliverLocal(String group, Frame relayed) {
+        Set<ClientSession> sessions = members.get(group);
+        if (sessions == null) return;
+        SharedFrame shared = new SharedFrame(relayed);
+        for (ClientSession member : sessions) {
+            // the sender may be logged in here as well
+            if (!member.username.equals(relayed.fields[1])) member.send(shared);
+        }
+    }
+
+    // the text protocol splits on ':' and the roster joins names with ','
+    private static boolean validName(String group) {
+        return !group.isEmpty() && group.indexOf(':') < 0 && group.indexOf(',') < 0;
+    }
+}
@@ -0,0 +1,164 @@
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+// a client without any UI, for scripts and load testing. it goes through admission the same way ChatFrame does,
+// signs in and hands every frame the server sends to a listener on its own reader thread. with a password it signs
+// in with AUTH, or RESUME once it has a token from an earlier connect(), without one it sends the old USER line,
+// which the server only accepts with -Dluconnect.allowUserLogin=true. messages to users go through a Delivery, so
+// they wait for room in the server's window and the unconfirmed ones are sent again by the next connect()
+public final class HeadlessClient {
+    public interface Listener {
+        void onFrame(HeadlessClient client, Frame frame);
+
+        // the connection is gone, after close() or because the server went away
+        default void onClosed(HeadlessClient client) {
+        }
+
+        // the server couldn't deliver or keep a message sent with sendMessage
+        default void onUndelivered(HeadlessClient client, String recipient, String status) {
+        }
+    }
+
+    private final String host;
+    private final int port;
+    private final String username;
+    private final String password;
+    private final Listener listener;
+    private final Delivery delivery;
+    // from the last AUTH_OK, used by the next connect()
+    private volatile String token;
+    private ServerConnection connection;
+    private volatile boolean closed;
+    private long admissionWaitNanos;
+
+    public HeadlessClient(String host, int port, String username, Listener listener) {
+        this(host, port, username, null, listener);
+    }
+
+    public HeadlessClient(String host, int port, String username, String password, Listener listener) {
+        this.host = host;
+        this.port = port;
+        this.username = username;
+        this.password = password;
+        this.listener = listener;
+        this.delivery = new Delivery((recipient, id, status) -> listener.onUndelivered(this, recipient, status));
+    }
+
+    public String getUsername() {
+        return username;
+    }
+
+    // how long the server kept this client in the admission queue before sending START
+    public long admissionWaitNanos() {
+        return admissionWaitNanos;
+    }
+
+    public String getToken() {
+        return token;
+    }
+
+    // blocks until the server admits the client, throws if it is turned away with FULL or can't sign in
+    public void connect() throws IOException {
+        long started = System.nanoTime();
+        connection = new ServerConnection(host, port);
+        String line;
+        while ((line = connection.readLine()) != null && !line.equals("START")) {
+            // WAIT: and QUEUE: only matter to a person watching
+            if (line.equals("FULL")) {
+                connection.close();
+                throw new IOException("server is full");
+            }
+        }
+        if (line == null) {
+            throw new IOException("connection closed before START");
+        }
+        admissionWaitNanos = System.nanoTime() - started;
+        signIn();
+        closed = false;
+        ServerConnection current = connection;
+        Thread.ofVirtual().name("client-" + username).start(() -> readLoop(current));
+        delivery.attach(current);
+    }
+
+    private void signIn() throws IOException {
+        if (password == null && token == null) {
+            try {
+                connection.login(username);
+            } catch (IOException e) {
+                connection.close();
+                throw e;
+            }
+            return;
+        }
+        Frame reply = null;
+        if (token != null) {
+            reply = connection.signIn(Frame.Type.RESUME, username, token);
+        }
+        // an expired token, or one issued by another node
+        if ((reply == null || reply.type == Frame.Type.AUTH_FAIL) && password != null) {
+            reply = connection.signIn(Frame.Type.AUTH, username, password);
+        }
+        if (reply.type == Frame.Type.AUTH_FAIL) {
+            connection.close();
+            throw new IOException("sign in failed: " + reply.fields[0]);
+        }
+        token = reply.fields[0];
+    }
+
+    private void readLoop(ServerConnection current) {
+        try {
+            Frame frame;
+            while ((frame = current.readFrame()) != null) {
+                frame = delivery.handle(frame);
+                if (frame != null) listener.onFrame(this, frame);
+            }
+        } catch (IOException e) {
+            // closed, either by us or the server
+        }
+        delivery.detach(current);
+        closed = true;
+        listener.onClosed(this);
+    }
+
+    public boolean send(Frame frame) {
+        return !closed && connection.send(frame);
+    }
+
+    // encrypts and sends a chat message the same way ChatFrame does, waiting while the send window is full
+    public boolean sendMessage(String recipient, byte[] plainText) {
+        byte[] sealed = EncryptionUtils.seal(plainText, 0, plainText.length, null);
+        try {
+            return !closed && delivery.send(recipient, sealed);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    public boolean sendMessage(String recipient, String message) {
+        return sendMessage(recipient, message.getBytes(StandardCharsets.UTF_8));
+    }
+
+    public boolean joinGroup(String group) {
+        return send(new Frame(Frame.Type.GROUP_JOIN, new String[]{group}, null, null));
+    }
+
+    public boolean leaveGroup(String group) {
+        return send(new Frame(Frame.Type.GROUP_LEAVE, new String[]{group}, null, null));
+    }
+
+    // encrypted the same way as a message to one user, every other member gets it as FROM_GROUP
+    public boolean sendGroupMessage(String group, byte[] plainText) {
+        byte[] sealed = EncryptionUtils.seal(plainText, 0, plainText.length, null);
+        return send(new Frame(Frame.Type.TO_GROUP, new String[]{group}, null, sealed));
+    }
+
+    public boolean isClosed() {
+        return closed;
+    }
+
+    public void close() {
+        closed = true;
+        if (connection != null) connection.close();
+    }
+}
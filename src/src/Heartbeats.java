@@ -0,0 +1,53 @@
+import java.util.concurrent.TimeUnit;
+
+// frees the admission slots of clients that have gone away without closing their connection. an admitted session
+// that has sent nothing for luconnect.idleTimeout seconds is sent "PING:n", any frame back counts as an answer and
+// clients reply "PONG:n". one that is still silent luconnect.readTimeout seconds later is closed and its slot and
+// username released at once. every session shares one TimerWheel, a frame only updates a timestamp and the
+// session's timeout looks at it when it comes due
+public class Heartbeats {
+    private static final long IDLE_NANOS = TimeUnit.SECONDS.toNanos(ServerConfig.IDLE_TIMEOUT);
+    private static final long READ_NANOS = TimeUnit.SECONDS.toNanos(Math.max(1, ServerConfig.READ_TIMEOUT));
+
+    private static final TimerWheel wheel = new TimerWheel("heartbeats", 100, TimeUnit.MILLISECONDS, 512);
+
+    // from admission until MessageRouter.unregister
+    public static void watch(ClientSession session) {
+        if (IDLE_NANOS <= 0) return;
+        session.lastHeard = System.nanoTime();
+        schedule(session, IDLE_NANOS, false, 0);
+    }
+
+    public static void forget(ClientSession session) {
+        TimerWheel.Timeout timeout = session.heartbeat;
+        if (timeout != null) timeout.cancel();
+    }
+
+    // pinged says a PING went out at pingedAt
+    private static void check(ClientSession session, boolean pinged, long pingedAt) {
+        synchronized (session.signInLock) {
+            // unregistered while this was coming due
+            if (session.signedOut) return;
+        }
+        long now = System.nanoTime();
+        long heard = session.lastHeard;
+        if (pinged ? heard - pingedAt > 0 : now - heard < IDLE_NANOS) {
+            // heard from since, look again when it could next have been idle that long
+            schedule(session, IDLE_NANOS - (now - heard), false, 0);
+        } else if (!pinged) {
+            schedule(session, READ_NANOS, true, now);
+            // a virtual thread, the send may wait for the session's lock and the wheel mustn't
+            Thread.startVirtualThread(() -> session.send(new Frame(Frame.Type.PING,
+                    new String[]{Long.toString(System.currentTimeMillis())}, null, null)));
+        } else {
+            System.out.println("Client " + session.username + " timed out");
+            ServerMetrics.idleEvicted();
+            session.evict();
+        }
+    }
+
+    private static void schedule(ClientSession session, long delayNanos, boolean pinged, long pingedAt) {
+        session.heartbeat = wheel.schedule(() -> check(session, pinged, pingedAt), Math.max(delayNanos, 0),
+                TimeUnit.NANOSECONDS);
+    }
+}
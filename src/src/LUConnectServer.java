@@ -1,112 +1,253 @@
 import java.io.*;
 import java.net.*;
+import java.nio.ByteBuffer;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.*;
 
 public class LUConnectServer {
-    private static final int PORT = 12345;
-    private static final int MAX_CLIENTS = 3; // the maximum number of allowed concurrent clients
-    private static Semaphore semaphore = new Semaphore(MAX_CLIENTS);
-    private static Map<String, ClientHandler> clients = new ConcurrentHashMap<>();
+    static AdmissionQueue admission = new AdmissionQueue(ServerConfig.MAX_CLIENTS, ServerConfig.MAX_QUEUE);
+    private static Executor connectionExecutor;
+    // writers get their own, a writer waiting for a reader's thread in the same fixed pool might never get one
+    private static Executor writerExecutor;
+    // WAIT and QUEUE lines are written here, the admission ticker mustn't wait for a client that isn't reading
+    private static final ExecutorService admissionUpdates = Executors.newCachedThreadPool(r -> {
+        Thread t = new Thread(r, "admission-update");
+        t.setDaemon(true);
+        return t;
+    });
 
     public static void main(String[] args) {
-        try (ServerSocket serverSocket = new ServerSocket(PORT)) {
-            System.out.println("Server started on port " + PORT);
+        ServerMetrics.startReporter(ServerConfig.METRICS_INTERVAL);
+        ServerMetrics.expose(ServerConfig.METRICS_PORT);
+        Roster.start(ServerConfig.ROSTER_INTERVAL);
+        MessageRouter.openStore();
+        MessageRouter.openBlobs();
+        Cluster.start(ServerConfig.CLUSTER_NODE, ServerConfig.CLUSTER_PEERS);
+        if (ServerConfig.ENGINE.equals("nio")) {
+            try {
+                new NioServer(ServerConfig.PORT, ServerConfig.EVENT_LOOPS).run();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            return;
+        }
+        connectionExecutor = createExecutor(ServerConfig.ENGINE);
+        writerExecutor = createExecutor(ServerConfig.ENGINE);
+        try (ServerSocket serverSocket = new ServerSocket(ServerConfig.PORT)) {
+            System.out.println("Server started on port " + ServerConfig.PORT + " (" + ServerConfig.ENGINE + ")");
             while (true) {
                 Socket clientSocket = serverSocket.accept();
-                new Thread(() -> handleClient(clientSocket)).start();
+                // writers already batch, small ACKs and DELIVEREDs shouldn't wait for Nagle
+                clientSocket.setTcpNoDelay(true);
+                ServerMetrics.connectionOpened();
+                handleClient(clientSocket);
             }
         } catch (IOException e) {
             e.printStackTrace();
         }
     }
 
+    // where admitted ClientHandlers, and separately their writers, run for the blocking engines
+    private static Executor createExecutor(String engine) {
+        if (engine.equals("virtual")) {
+            return Executors.newVirtualThreadPerTaskExecutor();
+        } else if (engine.equals("pool")) {
+            return Executors.newFixedThreadPool(ServerConfig.POOL_SIZE);
+        }
+        // original behaviour, a new platform thread for each task
+        return task -> new Thread(task).start();
+    }
+
     private static void handleClient(Socket clientSocket) {
-        long startTime = System.currentTimeMillis();
         try {
-            PrintWriter out = new PrintWriter(clientSocket.getOutputStream(), true);
-            // keep waiting while max number of clients is connected
-            while (!semaphore.tryAcquire()) {
-                long waitTime = (System.currentTimeMillis() - startTime) / 1000;
-                out.println("WAIT: " + waitTime);
-                Thread.sleep(1000);
-            }
-            // client has disconnected, notify that they can connect
-            out.println("START");
-            // hand over to client handler
-            ClientHandler handler = new ClientHandler(clientSocket);
-            new Thread(handler).start();
-        } catch (Exception e) {
+            // nothing blocks here any more, the connection just joins the admission queue
+            admission.request(new PendingClient(clientSocket));
+        } catch (IOException e) {
             e.printStackTrace();
+            ServerMetrics.connectionClosed();
         }
     }
 
-    static class ClientHandler implements Runnable {
+    // a connection waiting for a slot, it holds no thread until it is admitted
+    static class PendingClient implements AdmissionQueue.Waiter {
         private Socket clientSocket;
-        private BufferedReader in;
         private PrintWriter out;
-        private String username;
+        private boolean admitted, cancelled;
+        // an update is being written, later ones are skipped until it is done
+        private boolean updating;
+
+        public PendingClient(Socket clientSocket) throws IOException {
+            this.clientSocket = clientSocket;
+            out = new PrintWriter(clientSocket.getOutputStream(), true);
+        }
+
+        public synchronized void admit() {
+            if (cancelled) {
+                // went away while the slot was on its way, pass it on
+                admission.release();
+                return;
+            }
+            admitted = true;
+            connectionExecutor.execute(() -> {
+                // client has disconnected, notify that they can connect. after any update being written
+                synchronized (out) {
+                    out.println("START");
+                }
+                // hand over to client handler
+                ServerMetrics.sessionAdmitted();
+                new ClientHandler(clientSocket).run();
+            });
+        }
+
+        public synchronized void update(long waitSeconds, int position) {
+            if (admitted || cancelled || updating) return;
+            updating = true;
+            admissionUpdates.execute(() -> write(waitSeconds, position));
+        }
+
+        private void write(long waitSeconds, int position) {
+            boolean failed;
+            synchronized (out) {
+                synchronized (this) {
+                    // nothing may follow START
+                    if (admitted || cancelled) {
+                        updating = false;
+                        return;
+                    }
+                }
+                out.println("WAIT: " + waitSeconds);
+                out.println("QUEUE: " + position);
+                failed = out.checkError();
+            }
+            synchronized (this) {
+                updating = false;
+                if (!failed || admitted || cancelled) return;
+                // the client gave up waiting
+                cancelled = true;
+            }
+            admission.cancel(this);
+            closeQuietly();
+        }
+
+        public void reject() {
+            out.println("FULL");
+            closeQuietly();
+        }
+
+        private void closeQuietly() {
+            try {
+                clientSocket.close();
+            } catch (IOException e) {
+            }
+            ServerMetrics.connectionClosed();
+        }
+    }
+
+    static class ClientHandler extends ClientSession implements Runnable {
+        private Socket clientSocket;
+        private InputStream in;
+        private OutputStream out;
+        // lines for this client are queued here and written by its own writer, never by the sender's thread
+        private OutboundQueue outbound = new OutboundQueue(ServerConfig.OUTBOUND_LIMIT);
+        // the slot and username are given up once, by the reader or by an eviction
+        private final AtomicBoolean finished = new AtomicBoolean();
 
         public ClientHandler(Socket clientSocket) {
             this.clientSocket = clientSocket;
             try {
-                in = new BufferedReader(new InputStreamReader(clientSocket.getInputStream()));
-                out = new PrintWriter(clientSocket.getOutputStream(), true);
+                in = clientSocket.getInputStream();
+                out = new BufferedOutputStream(clientSocket.getOutputStream(), 65536);
             } catch (IOException e) {
                 e.printStackTrace();
             }
         }
 
-        public void run() {
+        @Override
+        public long queuedBytes() {
+            return outbound.queuedBytes();
+        }
+
+        @Override
+        protected boolean enqueue(String sender, ByteBuffer... parts) {
+            OutboundQueue.OverflowPolicy policy = ServerConfig.OVERFLOW_POLICY;
             try {
-                // first message formatted in form "USER:username"
-                String firstLine = in.readLine();
-                if (firstLine != null && firstLine.startsWith("USER:")) {
-                    // get the username from initial message
-                    username = firstLine.substring(5).trim();
-                    // place the username and its corresponding clientHandler in hashmap
-                    clients.put(username, this);
-                    System.out.println("Client " + username + " connected");
-                }
+                if (outbound.offer(sender, parts, policy == OutboundQueue.OverflowPolicy.BLOCK)) return true;
+                if (outbound.isClosed()) return false;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+            ServerMetrics.overflowDropped();
+            if (policy == OutboundQueue.OverflowPolicy.DISCONNECT) {
+                // the reader notices the closed socket and cleans up the session
+                close();
+            }
+            return false;
+        }
+
+        // the reader may be stuck in a send to someone else's full queue, so the slot isn't left to it
+        @Override
+        public void evict() {
+            close();
+            finish();
+        }
+
+        private void finish() {
+            if (!finished.compareAndSet(false, true)) return;
+            MessageRouter.unregister(this);
+            admission.release();
+            ServerMetrics.sessionClosed();
+            ServerMetrics.connectionClosed();
+        }
+
+        @Override
+        public void close() {
+            outbound.close();
+            try {
+                clientSocket.close();
+            } catch (IOException e) {
+            }
+        }
 
-                String line;
-                while ((line = in.readLine()) != null) {
-                    // check either text message or file
-                    if (line.startsWith("TO:")) {
-                        // if starts with TO, then format is "TO:recipient:encryptedMessage"
-                        String[] parts = line.split(":", 3);
-                        if (parts.length >= 3) {
-                            String recipient = parts[1];
-                            String encryptedMessage = parts[2];
-                            ClientHandler recipientHandler = clients.get(recipient);
-                            if (recipientHandler != null) {
-                                recipientHandler.out.println("FROM:" + username + ":" + encryptedMessage);
-                            }
-                        }
-                    } else if (line.startsWith("FILE:")) {
-                        // if starts with FILE handle accordingly, format "FILE:recipient:filename:encryptedFileData"
-                        String[] parts = line.split(":", 4);
-                        if (parts.length >= 4) {
-                            String recipient = parts[1];
-                            String fileName = parts[2];
-                            String encryptedFileData = parts[3];
-                            ClientHandler recipientHandler = clients.get(recipient);
-                            if (recipientHandler != null) {
-                                recipientHandler.out.println("FILEFROM:" + username + ":" + fileName + ":" + encryptedFileData);
-                            }
-                        }
+        // writes whatever has queued up since the last batch and flushes once, until the queue is closed and empty
+        private void writeLoop() {
+            try {
+                List<ByteBuffer> batch;
+                while (!(batch = outbound.drain()).isEmpty()) {
+                    // a part bigger than the stream's buffer goes straight to the socket
+                    for (ByteBuffer part : batch) {
+                        out.write(part.array(), part.arrayOffset() + part.position(), part.remaining());
                     }
+                    out.flush();
                 }
+            } catch (IOException | InterruptedException e) {
+                close();
+            }
+        }
+
+        public void run() {
+            writerExecutor.execute(this::writeLoop);
+            FrameReader reader = new FrameReader();
+            Heartbeats.watch(this);
+            try {
+                MessageRouter.register(this, reader.read(in, codec()));
+                Frame frame;
+                // the codec is looked up per frame, the client may have switched protocol in the one before
+                while ((frame = reader.read(in, codec())) != null) {
+                    // over its rate limit, nothing more is read meanwhile so the client's socket fills up
+                    long delay = RateLimits.delay(this, frame);
+                    if (delay > 0) TimeUnit.NANOSECONDS.sleep(delay);
+                    MessageRouter.route(this, frame);
+                }
+            } catch (InterruptedException e) {
+                // the server is shutting the pool down
             } catch (IOException e) {
-                e.printStackTrace();
+                // an evicted session's socket was closed under it
+                if (!finished.get()) e.printStackTrace();
             } finally {
-                try {
-                    clientSocket.close();
-                } catch (IOException e) {
-                }
-                clients.remove(username);
-                semaphore.release();
-                System.out.println("Client " + username + " disconnected");
+                close();
+                finish();
             }
         }
     }
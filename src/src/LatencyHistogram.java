@@ -0,0 +1,108 @@
+import java.io.PrintStream;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+// a fixed size log-linear histogram in the style of HdrHistogram, for recording latencies from many threads
+// at once. values under 128 are exact and bigger ones fall into 64 buckets per power of two, under 1.6% apart.
+// the totals are striped and the max is only written when it grows, so recording on a hot path stays cheap
+public class LatencyHistogram {
+    private static final int LINEAR = 128;
+    private static final int SUB_BUCKETS = 64;
+
+    private final AtomicLongArray counts = new AtomicLongArray(LINEAR + 64 * SUB_BUCKETS);
+    private final LongAdder total = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+    private final AtomicLong max = new AtomicLong();
+
+    public void record(long value) {
+        if (value < 0) value = 0;
+        counts.incrementAndGet(index(value));
+        total.increment();
+        sum.add(value);
+        if (value > max.get()) {
+            max.accumulateAndGet(value, Math::max);
+        }
+    }
+
+    public long count() {
+        return total.sum();
+    }
+
+    public long sum() {
+        return sum.sum();
+    }
+
+    public long max() {
+        return max.get();
+    }
+
+    public double mean() {
+        long count = total.sum();
+        return count == 0 ? 0 : (double) sum.sum() / count;
+    }
+
+    // the highest value that shares a bucket with the value at this percentile, never more than the max
+    public long percentile(double percentile) {
+        long count = total.sum();
+        if (count == 0) return 0;
+        long wanted = Math.max(1, (long) Math.ceil(percentile / 100 * count));
+        long seen = 0;
+        for (int i = 0; i < counts.length(); i++) {
+            seen += counts.get(i);
+            if (seen >= wanted) {
+                return Math.min(highestValue(i), max.get());
+            }
+        }
+        return max.get();
+    }
+
+    private static int index(long value) {
+        if (value < LINEAR) return (int) value;
+        int shift = 63 - Long.numberOfLeadingZeros(value) - 6;
+        return LINEAR + (shift - 1) * SUB_BUCKETS + (int) (value >>> shift) - SUB_BUCKETS;
+    }
+
+    private static long highestValue(int index) {
+        if (index < LINEAR) return index;
+        int shift = (index - LINEAR) / SUB_BUCKETS + 1;
+        long sub = (index - LINEAR) % SUB_BUCKETS + SUB_BUCKETS;
+        return ((sub + 1) << shift) - 1;
+    }
+
+    // the percentile distribution the way HdrHistogram prints it, ticking towards 100% by halving the distance,
+    // values divided by scale e.g. 1000 to print microseconds recorded as nanoseconds
+    public void print(PrintStream out, String title, double scale) {
+        out.println(title);
+        out.printf("%12s %14s %10s %14s%n", "Value", "Percentile", "TotalCount", "1/(1-Percentile)");
+        long count = total.sum();
+        if (count == 0) {
+            out.println("#[no values recorded]");
+            return;
+        }
+        double percentile = 0;
+        double step = 50;
+        while (true) {
+            long value = percentile(Math.max(percentile, 100.0 / count));
+            long below = countAtOrBelow(value);
+            out.printf("%12.3f %14.12f %10d %14.2f%n", value / scale, percentile / 100, below,
+                    1 / (1 - percentile / 100));
+            if (below >= count || step < 0.0005) break;
+            percentile += step;
+            step /= 2;
+        }
+        out.printf("%12.3f %14.12f %10d %14s%n", max.get() / scale, 1.0, count, "Infinity");
+        out.printf("#[Mean    = %12.3f, Total count    = %12d]%n", mean() / scale, count);
+        out.printf("#[Max     = %12.3f, p50 = %.3f, p99 = %.3f, p99.9 = %.3f]%n", max.get() / scale,
+                percentile(50) / scale, percentile(99) / scale, percentile(99.9) / scale);
+    }
+
+    private long countAtOrBelow(long value) {
+        long seen = 0;
+        int last = index(value);
+        for (int i = 0; i <= last; i++) {
+            seen += counts.get(i);
+        }
+        return seen;
+    }
+}
@@ -0,0 +1,267 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+// simulates many users against a running server with HeadlessClients: paced chat messages between random pairs,
+// chunked file transfers and connection churn, then prints throughput and HdrHistogram style distributions of
+// admission wait, end to end message latency and file transfer time
+// users sign in with the plain USER line, so the server needs -Dluconnect.allowUserLogin=true
+// and above 500 messages a second per user, or with large files, a higher -Dluconnect.rateMessages or rateBytes
+// usage: java LoadGenerator
+//   -Dluconnect.load.host=localhost -Dluconnect.load.port=12345
+//   -Dluconnect.load.users=100           simulated users, all connecting at the start
+//   -Dluconnect.load.rate=1              messages per second sent by each user
+//   -Dluconnect.load.size=100            message size in bytes before encryption
+//   -Dluconnect.load.warmup=5            seconds run before anything is measured, admission waits are always recorded
+//   -Dluconnect.load.duration=30         seconds measured after the warmup
+//   -Dluconnect.load.fileInterval=0      seconds between files sent by each user, 0 sends none
+//   -Dluconnect.load.fileSize=1048576    bytes per file
+//   -Dluconnect.load.churn=0             users disconnected and reconnected per second
+public class LoadGenerator {
+    private static final String HOST = System.getProperty("luconnect.load.host", "localhost");
+    private static final int PORT = Integer.getInteger("luconnect.load.port", 12345);
+    private static final int USERS = Integer.getInteger("luconnect.load.users", 100);
+    private static final double RATE = Double.parseDouble(System.getProperty("luconnect.load.rate", "1"));
+    private static final int SIZE = Math.max(8, Integer.getInteger("luconnect.load.size", 100));
+    private static final int WARMUP = Integer.getInteger("luconnect.load.warmup", 5);
+    private static final int DURATION = Integer.getInteger("luconnect.load.duration", 30);
+    private static final double FILE_INTERVAL = Double.parseDouble(System.getProperty("luconnect.load.fileInterval", "0"));
+    private static final long FILE_SIZE = Long.getLong("luconnect.load.fileSize", 1024 * 1024);
+    private static final double CHURN = Double.parseDouble(System.getProperty("luconnect.load.churn", "0"));
+
+    private static final LatencyHistogram admissionWait = new LatencyHistogram();
+    private static final LatencyHistogram messageLatency = new LatencyHistogram();
+    private static final LatencyHistogram fileTime = new LatencyHistogram();
+    private static final LongAdder sent = new LongAdder();
+    private static final LongAdder received = new LongAdder();
+    private static final LongAdder filesDone = new LongAdder();
+    private static final LongAdder fileBytes = new LongAdder();
+    private static final LongAdder reconnects = new LongAdder();
+    private static final LongAdder failedConnects = new LongAdder();
+    // random bytes every file chunk is cut from, the content doesn't matter
+    private static final byte[] chunkData = new byte[FileTransfers.CHUNK_SIZE];
+
+    private static LoadUser[] users;
+    private static volatile boolean running = true;
+    // messages and files started before this are left out of the results
+    private static long measureFrom;
+
+    // one simulated user, it reconnects under the same name after churn
+    private static class LoadUser implements HeadlessClient.Listener {
+        final String name;
+        volatile HeadlessClient client;
+        // intended send time of the next message, latency is measured from it so a stalled
+        // sender can't hide the delay it caused
+        long nextDue;
+        // files this user is sending, id to start time and to recipient
+        final Map<String, Long> outgoingStarted = new ConcurrentHashMap<>();
+        final Map<String, String> outgoingTo = new ConcurrentHashMap<>();
+
+        LoadUser(String name) {
+            this.name = name;
+        }
+
+        boolean connected() {
+            HeadlessClient current = client;
+            return current != null && !current.isClosed();
+        }
+
+        void connect() {
+            HeadlessClient next = new HeadlessClient(HOST, PORT, name, this);
+            try {
+                next.connect();
+                admissionWait.record(next.admissionWaitNanos());
+                client = next;
+            } catch (IOException e) {
+                failedConnects.increment();
+            }
+        }
+
+        void sendMessage(long interval) {
+            long due = nextDue;
+            nextDue += interval;
+            LoadUser peer = randomPeer(this);
+            if (peer == null || !connected()) return;
+            byte[] message = new byte[SIZE];
+            ByteBuffer.wrap(message).putLong(due);
+            if (client.sendMessage(peer.name, message) && due >= measureFrom) {
+                sent.increment();
+            }
+        }
+
+        void sendFile() {
+            LoadUser peer = randomPeer(this);
+            if (peer == null || !connected() || !outgoingStarted.isEmpty()) return;
+            String id = Long.toHexString(ThreadLocalRandom.current().nextLong());
+            outgoingStarted.put(id, System.nanoTime());
+            outgoingTo.put(id, peer.name);
+            client.send(new Frame(Frame.Type.FILE_BEGIN, new String[]{peer.name, id, Long.toString(FILE_SIZE), "load.bin"}, null, null));
+        }
+
+        // answers the other side of the chunked transfer protocol the way FileTransfers does, without touching disk
+        public void onFrame(HeadlessClient from, Frame frame) {
+            String[] fields = frame.fields;
+            switch (frame.type) {
+                case FROM:
+                    byte[] plain = EncryptionUtils.open(frame.payloadBytes(), null);
+                    long due = plain != null && plain.length >= 8 ? ByteBuffer.wrap(plain).getLong() : Long.MIN_VALUE;
+                    if (due >= measureFrom) {
+                        messageLatency.record(System.nanoTime() - due);
+                        received.increment();
+                    }
+                    break;
+                case FILE_BEGIN_FROM:
+                    from.send(new Frame(Frame.Type.FILE_RESUME, new String[]{fields[0], fields[1], "0"}, null, null));
+                    break;
+                case FILE_CHUNK_FROM:
+                    byte[] chunk = EncryptionUtils.open(frame.payloadBytes(), chunkAad(fields[1], Long.parseLong(fields[2])));
+                    if (chunk != null && System.nanoTime() >= measureFrom) fileBytes.add(chunk.length);
+                    break;
+                case FILE_END_FROM:
+                    from.send(new Frame(Frame.Type.FILE_DONE, new String[]{fields[0], fields[1]}, null, null));
+                    break;
+                case FILE_RESUME_FROM:
+                    String id = fields[1];
+                    if (outgoingTo.containsKey(id)) {
+                        Thread.ofVirtual().start(() -> streamFile(from, id, Long.parseLong(fields[2])));
+                    }
+                    break;
+                case FILE_DONE_FROM:
+                    Long started = outgoingStarted.remove(fields[1]);
+                    outgoingTo.remove(fields[1]);
+                    if (started != null && started >= measureFrom) {
+                        fileTime.record(System.nanoTime() - started);
+                        filesDone.increment();
+                    }
+                    break;
+                default:
+                    break;
+            }
+        }
+
+        private void streamFile(HeadlessClient from, String id, long fromChunk) {
+            String recipient = outgoingTo.get(id);
+            if (recipient == null) return;
+            long chunks = (FILE_SIZE + FileTransfers.CHUNK_SIZE - 1) / FileTransfers.CHUNK_SIZE;
+            for (long index = fromChunk; index < chunks && running; index++) {
+                int length = (int) Math.min(FileTransfers.CHUNK_SIZE, FILE_SIZE - index * FileTransfers.CHUNK_SIZE);
+                byte[] sealed = EncryptionUtils.seal(chunkData, 0, length, chunkAad(id, index));
+                if (!from.send(new Frame(Frame.Type.FILE_CHUNK, new String[]{recipient, id, Long.toString(index)}, null, sealed))) {
+                    return;
+                }
+            }
+            from.send(new Frame(Frame.Type.FILE_END, new String[]{recipient, id}, null, null));
+        }
+
+        public void onClosed(HeadlessClient closed) {
+            // a transfer cut off by churn is abandoned rather than resumed
+            if (closed == client) {
+                outgoingStarted.clear();
+                outgoingTo.clear();
+            }
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        ThreadLocalRandom.current().nextBytes(chunkData);
+        users = new LoadUser[USERS];
+        for (int i = 0; i < USERS; i++) {
+            users[i] = new LoadUser("load-" + i);
+        }
+        System.out.println("connecting " + USERS + " users to " + HOST + ":" + PORT);
+        long start = System.nanoTime();
+        measureFrom = start + WARMUP * 1_000_000_000L;
+        for (LoadUser user : users) {
+            // each one waits for admission on its own virtual thread, so a full server doesn't hold up the rest
+            Thread.ofVirtual().start(user::connect);
+        }
+
+        ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(Runtime.getRuntime().availableProcessors());
+        long interval = RATE > 0 ? (long) (1e9 / RATE) : 0;
+        for (LoadUser user : users) {
+            if (interval > 0) {
+                // spread the users' first sends over one interval so they don't all fire together
+                long offset = ThreadLocalRandom.current().nextLong(interval);
+                user.nextDue = System.nanoTime() + offset;
+                scheduler.scheduleAtFixedRate(() -> user.sendMessage(interval), offset, interval, TimeUnit.NANOSECONDS);
+            }
+            if (FILE_INTERVAL > 0) {
+                long fileInterval = (long) (FILE_INTERVAL * 1e9);
+                scheduler.scheduleAtFixedRate(user::sendFile, ThreadLocalRandom.current().nextLong(fileInterval),
+                        fileInterval, TimeUnit.NANOSECONDS);
+            }
+        }
+        if (CHURN > 0) {
+            scheduler.scheduleAtFixedRate(() -> {
+                LoadUser user = users[ThreadLocalRandom.current().nextInt(USERS)];
+                HeadlessClient client = user.client;
+                if (client == null || client.isClosed()) return;
+                client.close();
+                reconnects.increment();
+                Thread.ofVirtual().start(user::connect);
+            }, (long) (1e9 / CHURN), (long) (1e9 / CHURN), TimeUnit.NANOSECONDS);
+        }
+
+        AtomicLong lastSent = new AtomicLong();
+        AtomicLong lastReceived = new AtomicLong();
+        scheduler.scheduleAtFixedRate(() -> {
+            int connected = 0;
+            for (LoadUser user : users) {
+                if (user.connected()) connected++;
+            }
+            long s = sent.sum();
+            long r = received.sum();
+            System.out.printf("%4ds connected=%d sent/s=%d received/s=%d files=%d%n",
+                    (System.nanoTime() - start) / 1_000_000_000, connected,
+                    s - lastSent.getAndSet(s), r - lastReceived.getAndSet(r), filesDone.sum());
+        }, 1, 1, TimeUnit.SECONDS);
+
+        Thread.sleep((WARMUP + DURATION) * 1000L);
+        scheduler.shutdownNow();
+        // let messages already on their way arrive
+        Thread.sleep(2000);
+        running = false;
+        report(DURATION);
+        for (LoadUser user : users) {
+            HeadlessClient client = user.client;
+            if (client != null) client.close();
+        }
+        System.exit(0);
+    }
+
+    private static LoadUser randomPeer(LoadUser self) {
+        if (USERS < 2) return null;
+        // a few tries for one that is connected, the rest may still be waiting for admission
+        for (int attempt = 0; attempt < 4; attempt++) {
+            LoadUser peer = users[ThreadLocalRandom.current().nextInt(USERS)];
+            if (peer != self && peer.connected()) return peer;
+        }
+        return null;
+    }
+
+    private static byte[] chunkAad(String id, long index) {
+        return (id + ":" + index).getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static void report(double seconds) {
+        long s = sent.sum();
+        long r = received.sum();
+        System.out.println();
+        System.out.printf("sent %d messages, received %d (%.2f%% lost) in %.1fs, %.0f msg/s delivered%n",
+                s, r, s == 0 ? 0 : 100.0 * (s - r) / s, seconds, r / seconds);
+        System.out.printf("files %d, %.1f MB/s received, reconnects %d, failed connects %d%n",
+                filesDone.sum(), fileBytes.sum() / seconds / 1e6, reconnects.sum(), failedConnects.sum());
+        System.out.println();
+        admissionWait.print(System.out, "admission wait (ms)", 1e6);
+        System.out.println();
+        messageLatency.print(System.out, "end to end message latency (us)", 1e3);
+        if (fileTime.count() > 0) {
+            System.out.println();
+            fileTime.print(System.out, "file transfer time (ms)", 1e6);
+        }
+    }
+}
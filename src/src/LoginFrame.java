@@ -36,21 +36,19 @@ public class LoginFrame extends JFrame {
             public void actionPerformed(ActionEvent e) {
                 String username = usernameField.getText().trim();
                 String password = new String(passwordField.getPassword());
-                String hashedPassword = EncryptionUtils.sha256(password);
-                if(DatabaseManager.verifyUser(username, hashedPassword)) {
-                    JOptionPane.showMessageDialog(null, "Logged in successfuly, welcome!");
-                    dispose();
-                    new ChatFrame(username).setVisible(true);
-                } else {
-                    JOptionPane.showMessageDialog(null, "Invalid credentials.");
-
+                if(username.equals("") || password.equals("")) {
+                    JOptionPane.showMessageDialog(LoginFrame.this, "Please fill all the fields correctly.");
+                    return;
                 }
+                // the server checks the password once the chat has connected
+                dispose();
+                new ChatFrame(username, password, false).setVisible(true);
             }
         });
 
         signUpButton.addActionListener(new ActionListener(){
             public void actionPerformed(ActionEvent e) {
-                new SignUpFrame().setVisible(true);
+                new SignUpFrame(LoginFrame.this).setVisible(true);
             }
         });
     }
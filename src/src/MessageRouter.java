@@ -0,0 +1,336 @@
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+// protocol handling shared by every server engine, the engines only deal with cutting the stream into frames
+public class MessageRouter {
+    // everyone connected, in a cluster including a Cluster.RemoteSession for each user on another node.
+    // a user connected here is always mapped to their own session rather than a remote one
+    private static final Map<String, ClientSession> clients = new ConcurrentHashMap<>();
+    // null when the store is turned off, then messages for users who aren't connected are dropped as before
+    private static MessageStore store;
+    // null when the blob store is turned off, then clients are told to send files directly
+    private static BlobStore blobs;
+    // most chunks sent for one BLOB_GET
+    private static final int MAX_BLOB_WINDOW = 64;
+
+    public static void openStore() {
+        if (ServerConfig.STORE_DIR.isEmpty()) return;
+        try {
+            store = new MessageStore(new File(ServerConfig.STORE_DIR), ServerConfig.STORE_SEGMENT_SIZE,
+                    ServerConfig.STORE_MAX_SEGMENTS);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    public static void openBlobs() {
+        if (ServerConfig.BLOB_DIR.isEmpty()) return;
+        blobs = new BlobStore(new File(ServerConfig.BLOB_DIR), ServerConfig.BLOB_CACHE_BYTES);
+    }
+
+    // everyone connected, for the queue depth metrics
+    public static Collection<ClientSession> sessions() {
+        return clients.values();
+    }
+
+    public static boolean isLocal(String username) {
+        ClientSession session = clients.get(username);
+        return session != null && !(session instanceof Cluster.RemoteSession);
+    }
+
+    // users connected to this node, what it announces to a node that has just connected
+    public static List<String> localUsers() {
+        List<String> users = new ArrayList<>();
+        for (ClientSession session : clients.values()) {
+            if (!(session instanceof Cluster.RemoteSession)) users.add(session.username);
+        }
+        return users;
+    }
+
+    // the first frame signs in through Auth, or is the old unauthenticated "USER:username" where that is allowed
+    public static void register(ClientSession session, Frame first) {
+        if (first == null) return;
+        if (first.type != Frame.Type.USER) {
+            route(session, first);
+        } else if (ServerConfig.ALLOW_USER_LOGIN) {
+            signIn(session, first.fields[0].trim());
+        } else {
+            // left open, closing now would drop the answer before the writer sends it
+            session.send(new Frame(Frame.Type.AUTH_FAIL, new String[]{"sign in with AUTH"}, null, null));
+        }
+    }
+
+    // the session's user is known from here on
+    public static void signIn(ClientSession session, String username) {
+        session.username = username;
+        session.limiter = RateLimits.of(username);
+        // place the username and its corresponding session in hashmap
+        clients.put(session.username, session);
+        System.out.println("Client " + session.username + " connected");
+        Roster.joined(session.username);
+        Cluster.announce(session.username);
+        // anything sent while they were away
+        if (store != null) store.deliver(session);
+    }
+
+    public static void route(ClientSession session, Frame frame) {
+        session.lastHeard = System.nanoTime();
+        if (frame.type == Frame.Type.PING) {
+            // a client checking the connection, answered whether or not it has signed in
+            session.send(new Frame(Frame.Type.PONG, frame.fields, null, null));
+            return;
+        }
+        if (frame.type == Frame.Type.PONG) {
+            // the answer to Heartbeats' PING, hearing it was all that mattered
+            return;
+        }
+        if (session.username == null) {
+            // nothing else is handled until the client has signed in
+            if (frame.type == Frame.Type.AUTH || frame.type == Frame.Type.REGISTER || frame.type == Frame.Type.RESUME
+                    || frame.type == Frame.Type.KEY) {
+                Auth.handle(session, frame);
+            }
+            return;
+        }
+        if (frame.type == Frame.Type.PROTO) {
+            // "PROTO:BIN1" right after USER asks for the binary protocol, older clients never send it and stay on text
+            if (frame.fields[0].equals("BIN1")) {
+                session.upgrade(FrameCodec.BINARY, "PROTO:BIN1");
+            } else if (frame.fields[0].equals("ACK1")) {
+                // sent just before BIN1 by clients that number their messages, see routeMessage. WINDOW:0 tells
+                // them confirmations are off and they send TO as before
+                session.confirms = ServerConfig.SEND_WINDOW > 0;
+                session.send(new Frame(Frame.Type.WINDOW, new String[]{Integer.toString(ServerConfig.SEND_WINDOW)}, null, null));
+            }
+            return;
+        }
+        if (frame.type == Frame.Type.PRESENCE) {
+            // "PRESENCE:on" asks for the roster snapshot and every JOIN/LEAVE/REGISTERED after it
+            if (frame.fields[0].equals("on")) {
+                Roster.subscribe(session, clients.keySet());
+            }
+            return;
+        }
+        if (frame.type == Frame.Type.GROUP_JOIN) {
+            Groups.join(session, frame.fields[0]);
+            return;
+        }
+        if (frame.type == Frame.Type.GROUP_LEAVE) {
+            Groups.leave(session, frame.fields[0]);
+            return;
+        }
+        if (frame.type == Frame.Type.TO_GROUP) {
+            long start = System.nanoTime();
+            Groups.send(session, frame);
+            ServerMetrics.messageRouted(frame, start);
+            return;
+        }
+        if (frame.type == Frame.Type.BLOB_QUERY || frame.type == Frame.Type.BLOB_CHUNK || frame.type == Frame.Type.BLOB_END
+                || frame.type == Frame.Type.BLOB_GET || frame.type == Frame.Type.FILE_REF) {
+            try {
+                routeBlob(session, frame);
+            } catch (IllegalArgumentException e) {
+                // a malformed number or chunk only affects its own transfer
+            }
+            return;
+        }
+        if (frame.type == Frame.Type.MSG) {
+            routeMessage(session, frame);
+            return;
+        }
+        // TO:recipient:message becomes FROM:sender:message, FILE becomes FILEFROM and the chunked
+        // FILE_BEGIN|CHUNK|END|RESUME|DONE frames become <TYPE>_FROM, one chunk at a time
+        Frame.Type relayed = frame.type.relayedAs();
+        if (relayed == null) return;
+        long start = System.nanoTime();
+        ClientSession recipientSession = clients.get(frame.fields[0]);
+        if (recipientSession != null) {
+            recipientSession.send(frame.relay(relayed, session.username));
+            ServerMetrics.messageRouted(frame, start);
+        } else if (keep(frame.fields[0], frame.relay(relayed, session.username))) {
+            // they may have logged in since the lookup, in which case their login delivery has already run
+            recipientSession = clients.get(frame.fields[0]);
+            if (recipientSession != null) store.deliver(recipientSession);
+        }
+    }
+
+    // a chat message the sender wants to hear about. MSG:recipient:id:message reaches the recipient as
+    // MSG_FROM:sender:id:message, who answers RECEIVED:sender:id, or a comma separated list of ids, relayed to the
+    // sender as DELIVERED:recipient:ids like any other relayed frame. when it can't be passed on the server answers ACK:id:status instead, one of
+    //   stored    the recipient isn't connected, it is delivered when they log in
+    //   dropped   the recipient's queue was full
+    //   unknown   there is no such user to keep it for
+    // a message on its way gets no ACK, DELIVERED follows soon enough and it would be a third frame per message.
+    // a client may have up to luconnect.sendWindow messages that are neither confirmed nor failed, and sends them
+    // again with the same id after reconnecting, recipients drop the ones they already have
+    private static void routeMessage(ClientSession session, Frame frame) {
+        long start = System.nanoTime();
+        String recipient = frame.fields[0];
+        Frame relayed = frame.relay(Frame.Type.MSG_FROM, session.username);
+        ClientSession recipientSession = clients.get(recipient);
+        String status;
+        if (recipientSession != null) {
+            boolean queued = deliver(recipientSession, relayed);
+            ServerMetrics.messageRouted(frame, start);
+            if (queued) return;
+            status = "dropped";
+        } else if (keep(recipient, relayed)) {
+            status = "stored";
+            recipientSession = clients.get(recipient);
+            if (recipientSession != null) store.deliver(recipientSession);
+        } else {
+            status = "unknown";
+        }
+        session.send(new Frame(Frame.Type.ACK, new String[]{frame.fields[1], status}, null, null));
+    }
+
+    // a relayed frame for a connected user. a MSG_FROM for a client that doesn't confirm messages goes as a plain
+    // FROM and is confirmed here for it as soon as it is queued
+    public static boolean deliver(ClientSession recipient, Frame relayed) {
+        if (relayed.type != Frame.Type.MSG_FROM || recipient.confirms) return recipient.send(relayed);
+        if (!recipient.send(relayed.relay(Frame.Type.FROM, new String[]{relayed.fields[0]}))) return false;
+        Frame delivered = new Frame(Frame.Type.DELIVERED, new String[]{recipient.username, relayed.fields[1]}, null, null);
+        ClientSession sender = clients.get(relayed.fields[0]);
+        if (sender != null) {
+            sender.send(delivered);
+        } else {
+            keep(relayed.fields[0], delivered);
+        }
+        return true;
+    }
+
+    // files sent by reference to a blob kept here. BLOB_QUERY:hash:size and BLOB_END:hash:size are answered with
+    // BLOB_STATUS:hash:chunks, the chunks already here, and the sender uploads the rest as BLOB_CHUNK:hash:index:chunk.
+    // FILE_REF:recipient:id:size:hash:name then reaches the recipient as FILE_REF_FROM:sender:id:size:hash:name and
+    // they fetch it with BLOB_GET:sender:id:hash:from:count as the usual FILE_CHUNK_FROM and FILE_END_FROM frames,
+    // which only works for a FILE_REF they were sent.
+    // BLOB_STATUS with -1 tells the sender to send the file directly instead
+    private static void routeBlob(ClientSession session, Frame frame) {
+        String[] fields = frame.fields;
+        String hash = frame.type == Frame.Type.BLOB_GET ? fields[2] : frame.type == Frame.Type.FILE_REF ? fields[3] : fields[0];
+        if (blobs == null || !BlobStore.validHash(hash)) {
+            if (frame.type == Frame.Type.BLOB_QUERY || frame.type == Frame.Type.FILE_REF) blobStatus(session, hash, -1);
+            return;
+        }
+        switch (frame.type) {
+            case BLOB_QUERY:
+                blobStatus(session, hash, blobs.query(hash, Long.parseLong(fields[1])));
+                break;
+            case BLOB_CHUNK:
+                blobs.chunk(hash, Long.parseLong(fields[1]), frame.bytesPayload());
+                break;
+            case BLOB_END:
+                blobStatus(session, hash, blobs.end(hash, Long.parseLong(fields[1])));
+                break;
+            case FILE_REF:
+                long start = System.nanoTime();
+                ClientSession recipient = clients.get(fields[0]);
+                if (recipient instanceof Cluster.RemoteSession) {
+                    // the blob is only on this node
+                    blobStatus(session, hash, -1);
+                } else if (recipient == null) {
+                    // offered again once they are back, like any other file
+                    ServerMetrics.unknownRecipient();
+                } else if (!blobs.touch(hash)) {
+                    // evicted since the sender asked, it uploads it again
+                    blobStatus(session, hash, blobs.query(hash, Long.parseLong(fields[2])));
+                } else {
+                    blobs.refer(fields[0], session.username, fields[1], hash);
+                    recipient.send(frame.relay(Frame.Type.FILE_REF_FROM, session.username));
+                    ServerMetrics.messageRouted(frame, start);
+                }
+                break;
+            case BLOB_GET:
+                // only a file referred to this user, the blob and sender come from that FILE_REF
+                blobs.fetch(session, fields[0], fields[1], Long.parseLong(fields[3]),
+                        Math.min(Integer.parseInt(fields[4]), MAX_BLOB_WINDOW));
+                break;
+        }
+    }
+
+    private static void blobStatus(ClientSession session, String hash, long chunks) {
+        session.send(new Frame(Frame.Type.BLOB_STATUS, new String[]{hash, Long.toString(chunks)}, null, null));
+    }
+
+    // a relayed frame for a user who can't be reached right now. chat messages and confirmations of them wait
+    // for a registered user to log in, file transfers already resume on their own. returns true if it was stored
+    public static boolean keep(String recipient, Frame relayed) {
+        boolean chat = relayed.type == Frame.Type.FROM || relayed.type == Frame.Type.MSG_FROM
+                || relayed.type == Frame.Type.DELIVERED;
+        if (chat && store != null && Roster.isRegistered(recipient)) {
+            if (store.store(recipient, relayed)) {
+                ServerMetrics.messageStored();
+                return true;
+            }
+        }
+        ServerMetrics.unknownRecipient();
+        return false;
+    }
+
+    // a frame another node forwarded to a user it believes is connected here
+    public static void deliverLocal(String recipient, Frame relayed) {
+        ClientSession session = clients.get(recipient);
+        if (session != null && !(session instanceof Cluster.RemoteSession)) {
+            deliver(session, relayed);
+        } else if (keep(recipient, relayed) && isLocal(recipient)) {
+            store.deliver(clients.get(recipient));
+        }
+    }
+
+    // a user connected to another node, unless they are connected here as well
+    public static void remoteOnline(Cluster.RemoteSession session) {
+        ClientSession previous = clients.get(session.username);
+        if (previous != null && !(previous instanceof Cluster.RemoteSession)) return;
+        // fails if they have just logged in here
+        boolean mapped = previous == null ? clients.putIfAbsent(session.username, session) == null
+                : clients.replace(session.username, previous, session);
+        if (!mapped) return;
+        if (previous == null) Roster.joined(session.username);
+        if (store != null) store.deliver(session);
+    }
+
+    // hands over what was kept for the users on a node while there was no link to it
+    public static void deliverStored(String node) {
+        if (store == null) return;
+        for (ClientSession session : clients.values()) {
+            if (session instanceof Cluster.RemoteSession && ((Cluster.RemoteSession) session).node.equals(node)) {
+                store.deliver(session);
+            }
+        }
+    }
+
+    public static void remoteOffline(Cluster.RemoteSession session) {
+        if (clients.remove(session.username, session)) {
+            userGone(session.username);
+        }
+    }
+
+    // still online if another node has them
+    private static void userGone(String username) {
+        Cluster.RemoteSession elsewhere = Cluster.find(username);
+        if (elsewhere != null) clients.putIfAbsent(username, elsewhere);
+        if (!clients.containsKey(username)) Roster.left(username);
+    }
+
+    public static void unregister(ClientSession session) {
+        synchronized (session.signInLock) {
+            session.signedOut = true;
+        }
+        Auth.forget(session);
+        Heartbeats.forget(session);
+        Roster.unsubscribe(session);
+        Groups.leaveAll(session);
+        // only remove the mapping if a newer login hasn't replaced it
+        if (session.username != null && clients.remove(session.username, session)) {
+            userGone(session.username);
+            Cluster.announce(session.username);
+            RateLimits.release(session.username, session.limiter);
+        }
+        System.out.println("Client " + session.username + " disconnected");
+    }
+}
@@ -0,0 +1,482 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.zip.CRC32;
+
+// messages for users who aren't connected, kept in an append-only log and handed over when they log in.
+// the log is a series of segment files of records "int length, int crc, kind byte, long seq, recipient, frame".
+// a message record holds the relayed frame in the binary protocol, a delivered record says every message for
+// the recipient up to seq has been handed over. routing threads only add records to an in-memory batch, a
+// single writer thread appends each batch and syncs it to disk once, so many messages share one fsync.
+// once a message is on disk only where its record is stays in memory, it is read back when it is delivered
+public class MessageStore {
+    private static final byte MESSAGE = 1;
+    private static final byte DELIVERED = 2;
+    private static final String SUFFIX = ".log";
+
+    private static class Pending {
+        final long seq;
+        final String recipient;
+        long segment;
+        long offset;
+        int recordLength;
+        // until the writer has the record on disk, null after that
+        byte[] frame;
+
+        Pending(long seq, String recipient) {
+            this.seq = seq;
+            this.recipient = recipient;
+        }
+    }
+
+    // a record for the writer to append to a segment at offset, or a segment to delete when record is null.
+    // message is the one a message record holds
+    private static class Op {
+        final long segment;
+        final long offset;
+        final byte[] record;
+        final Pending message;
+
+        Op(long segment, long offset, byte[] record, Pending message) {
+            this.segment = segment;
+            this.offset = offset;
+            this.record = record;
+            this.message = message;
+        }
+    }
+
+    private final File dir;
+    private final long segmentSize;
+    private final int maxSegments;
+
+    // everything below is guarded by this
+    private final Map<String, LinkedHashMap<Long, Pending>> undelivered = new HashMap<>();
+    // bytes of undelivered messages per segment, oldest segment first
+    private final TreeMap<Long, Long> liveBytes = new TreeMap<>();
+    private List<Op> batch = new ArrayList<>();
+    private long nextSeq = 1;
+    private long activeSegment;
+    private long activeBytes;
+    private boolean compacting;
+    // users whose messages a deliver() is sending right now, true once another call has asked it to look again
+    private final Map<String, Boolean> delivering = new HashMap<>();
+
+    public MessageStore(File dir, long segmentSize, int maxSegments) throws IOException {
+        this.dir = dir;
+        this.segmentSize = segmentSize;
+        this.maxSegments = maxSegments;
+        dir.mkdirs();
+        long started = System.nanoTime();
+        int pending = recover();
+        System.out.println("Message store recovered " + pending + " undelivered messages from " + liveBytes.size()
+                + " segments in " + (System.nanoTime() - started) / 1_000_000 + "ms");
+        Thread writer = new Thread(this::writeLoop, "message-store-writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    // keeps a relayed message for a recipient who isn't connected, it is on disk within one writer batch.
+    // false if it can't be kept
+    public synchronized boolean store(String recipient, Frame relayed) {
+        byte[] frame;
+        try {
+            frame = FrameCodec.BINARY.encode(relayed);
+        } catch (IllegalArgumentException e) {
+            // e.g. a text client's payload that isn't valid Base64, it couldn't be delivered either
+            return false;
+        }
+        Pending message = new Pending(nextSeq++, recipient);
+        append(message, frame);
+        undelivered.computeIfAbsent(recipient, k -> new LinkedHashMap<>()).put(message.seq, message);
+        notifyAll();
+        return true;
+    }
+
+    // sends everything waiting for the session's user in order, safe to call again when there's nothing left.
+    // the sends happen outside the lock, under the block policy they wait for a slow recipient, and stop at the
+    // first one the session drops. only what was queued is recorded as delivered, the rest waits for the next call
+    public void deliver(ClientSession session) {
+        String username = session.getUsername();
+        synchronized (this) {
+            // one delivery at a time per user, or two could send the same messages
+            if (delivering.containsKey(username)) {
+                delivering.put(username, true);
+                return;
+            }
+            delivering.put(username, false);
+        }
+        while (true) {
+            List<Pending> messages;
+            synchronized (this) {
+                LinkedHashMap<Long, Pending> waiting = undelivered.get(username);
+                if (waiting == null) {
+                    delivering.remove(username);
+                    return;
+                }
+                messages = new ArrayList<>(waiting.values());
+                delivering.put(username, false);
+            }
+            // compaction can reorder a recovered user's messages, the delivered record covers everything up to a seq
+            messages.sort(Comparator.comparingLong(message -> message.seq));
+            long upTo = 0;
+            try (SegmentReader reader = new SegmentReader()) {
+                for (Pending message : messages) {
+                    byte[] frame = frame(message, reader);
+                    if (frame != null && !MessageRouter.deliver(session, FrameCodec.BINARY.decode(frame, 0, frame.length))) break;
+                    upTo = message.seq;
+                }
+            }
+            synchronized (this) {
+                if (upTo > 0) {
+                    LinkedHashMap<Long, Pending> waiting = undelivered.get(username);
+                    Iterator<Pending> it = waiting.values().iterator();
+                    while (it.hasNext()) {
+                        Pending message = it.next();
+                        if (message.seq <= upTo) {
+                            release(message);
+                            it.remove();
+                        }
+                    }
+                    if (waiting.isEmpty()) undelivered.remove(username);
+                    appendRecord(record(DELIVERED, upTo, username, null), null);
+                    deleteDeadSegments();
+                    notifyAll();
+                }
+                // stopped by a dropped send, or done unless more was stored and delivery asked for meanwhile
+                boolean complete = upTo == messages.get(messages.size() - 1).seq;
+                if (!complete || !delivering.get(username)) {
+                    delivering.remove(username);
+                    return;
+                }
+            }
+        }
+    }
+
+    // the frame stays with the message until the writer has its record on disk
+    private void append(Pending message, byte[] frame) {
+        byte[] record = record(MESSAGE, message.seq, message.recipient, frame);
+        message.frame = frame;
+        Op op = appendRecord(record, message);
+        message.segment = op.segment;
+        message.offset = op.offset;
+        message.recordLength = record.length;
+        liveBytes.merge(message.segment, (long) record.length, Long::sum);
+    }
+
+    // starts a new segment once the active one is full
+    private Op appendRecord(byte[] record, Pending message) {
+        if (activeBytes > 0 && activeBytes + record.length > segmentSize) {
+            activeSegment++;
+            activeBytes = 0;
+            liveBytes.putIfAbsent(activeSegment, 0L);
+            compact();
+        }
+        Op op = new Op(activeSegment, activeBytes, record, message);
+        batch.add(op);
+        activeBytes += record.length;
+        return op;
+    }
+
+    // a message's frame, read back from its segment once it is on disk. null if the record can't be read
+    private byte[] frame(Pending message, SegmentReader reader) {
+        while (true) {
+            long segment;
+            long offset;
+            int length;
+            synchronized (this) {
+                if (message.frame != null) return message.frame;
+                segment = message.segment;
+                offset = message.offset;
+                length = message.recordLength;
+            }
+            byte[] frame = reader.read(segment, offset, length);
+            if (frame != null) return frame;
+            synchronized (this) {
+                // compaction copied it forward and deleted the segment meanwhile
+                if (message.segment != segment || message.offset != offset) continue;
+            }
+            System.out.println("Message store: can't read message " + message.seq + " for " + message.recipient
+                    + " from " + segmentFile(segment).getName() + ", skipping it");
+            return null;
+        }
+    }
+
+    // once there are too many segments a mostly delivered oldest one has its undelivered messages copied forward
+    // and is deleted, so a few old messages can't keep the whole log alive. startup then replays at most
+    // maxSegments of log plus whatever is genuinely still waiting to be delivered
+    private void compact() {
+        // copying forward can fill the new segment too, that roll leaves the rest to this pass
+        if (compacting) return;
+        compacting = true;
+        try {
+            // read under the lock, compaction is rare and only copies the little left in a segment
+            try (SegmentReader reader = new SegmentReader()) {
+                while (liveBytes.size() > maxSegments) {
+                    Map.Entry<Long, Long> oldest = liveBytes.firstEntry();
+                    // copying a segment that is still mostly undelivered wouldn't free anything
+                    if (oldest.getKey() == activeSegment || oldest.getValue() > segmentSize / 2) return;
+                    for (LinkedHashMap<Long, Pending> messages : undelivered.values()) {
+                        Iterator<Pending> it = messages.values().iterator();
+                        while (it.hasNext()) {
+                            Pending message = it.next();
+                            if (message.segment != oldest.getKey()) continue;
+                            byte[] frame = message.frame != null ? message.frame
+                                    : reader.read(message.segment, message.offset, message.recordLength);
+                            release(message);
+                            if (frame != null) {
+                                append(message, frame);
+                            } else {
+                                System.out.println("Message store: can't read message " + message.seq + " for "
+                                        + message.recipient + " to copy it forward, dropping it");
+                                it.remove();
+                            }
+                        }
+                    }
+                    undelivered.values().removeIf(Map::isEmpty);
+                    deleteDeadSegments();
+                }
+            }
+        } finally {
+            compacting = false;
+        }
+    }
+
+    private void release(Pending message) {
+        liveBytes.merge(message.segment, (long) -message.recordLength, Long::sum);
+    }
+
+    // a segment is only deleted once every older one is, so the delivered records in it never
+    // outlive messages they cover in an earlier segment
+    private void deleteDeadSegments() {
+        while (!liveBytes.isEmpty()) {
+            Map.Entry<Long, Long> oldest = liveBytes.firstEntry();
+            if (oldest.getKey() == activeSegment || oldest.getValue() > 0) return;
+            liveBytes.remove(oldest.getKey());
+            batch.add(new Op(oldest.getKey(), 0, null, null));
+        }
+    }
+
+    private static byte[] record(byte kind, long seq, String recipient, byte[] frame) {
+        byte[] name = recipient.getBytes(StandardCharsets.UTF_8);
+        int bodyLength = 1 + 8 + 2 + name.length + (frame == null ? 0 : frame.length);
+        ByteBuffer buffer = ByteBuffer.allocate(8 + bodyLength);
+        buffer.putInt(bodyLength).putInt(0);
+        buffer.put(kind).putLong(seq).putShort((short) name.length).put(name);
+        if (frame != null) buffer.put(frame);
+        CRC32 crc = new CRC32();
+        crc.update(buffer.array(), 8, bodyLength);
+        buffer.putInt(4, (int) crc.getValue());
+        return buffer.array();
+    }
+
+    // the group commit, each pass writes everything queued since the last one and syncs it with a single force
+    private void writeLoop() {
+        FileChannel channel = null;
+        long channelSegment = -1;
+        while (true) {
+            List<Op> ops;
+            synchronized (this) {
+                while (batch.isEmpty()) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                ops = batch;
+                batch = new ArrayList<>();
+            }
+            try {
+                for (Op op : ops) {
+                    if (op.record == null) {
+                        // messages copied out of the segment have to be on disk before it goes
+                        if (channel != null) channel.force(false);
+                        if (op.segment == channelSegment) {
+                            channel.close();
+                            channel = null;
+                            channelSegment = -1;
+                        }
+                        segmentFile(op.segment).delete();
+                        continue;
+                    }
+                    if (op.segment != channelSegment) {
+                        if (channel != null) {
+                            channel.force(false);
+                            channel.close();
+                        }
+                        channel = FileChannel.open(segmentFile(op.segment).toPath(),
+                                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+                        channelSegment = op.segment;
+                    }
+                    ByteBuffer record = ByteBuffer.wrap(op.record);
+                    while (record.hasRemaining()) {
+                        channel.write(record);
+                    }
+                }
+                if (channel != null) {
+                    channel.force(false);
+                }
+            } catch (IOException e) {
+                // the messages are still held in memory and delivered, they just won't survive a restart
+                e.printStackTrace();
+                continue;
+            }
+            synchronized (this) {
+                for (Op op : ops) {
+                    // unless compaction has copied it forward into a record that isn't written yet
+                    if (op.message != null && op.message.segment == op.segment && op.message.offset == op.offset) {
+                        op.message.frame = null;
+                    }
+                }
+            }
+        }
+    }
+
+    private File segmentFile(long segment) {
+        return new File(dir, String.format("%016d", segment) + SUFFIX);
+    }
+
+    // replays the log into memory, a torn record at the end of the last segment is cut off
+    private int recover() throws IOException {
+        File[] files = dir.listFiles((d, name) -> name.endsWith(SUFFIX));
+        long[] segments = new long[files == null ? 0 : files.length];
+        for (int i = 0; i < segments.length; i++) {
+            segments[i] = Long.parseLong(files[i].getName().substring(0, files[i].getName().length() - SUFFIX.length()));
+        }
+        Arrays.sort(segments);
+        for (int i = 0; i < segments.length; i++) {
+            liveBytes.put(segments[i], 0L);
+            long valid = replay(segments[i]);
+            File file = segmentFile(segments[i]);
+            if (valid < file.length()) {
+                System.out.println("Message store: dropping " + (file.length() - valid) + " bytes of a torn write in " + file.getName());
+                try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+                    raf.setLength(valid);
+                }
+            }
+        }
+        if (segments.length > 0) {
+            activeSegment = segments[segments.length - 1];
+            activeBytes = segmentFile(activeSegment).length();
+        } else {
+            activeSegment = 1;
+            liveBytes.put(activeSegment, 0L);
+        }
+        deleteDeadSegments();
+        int pending = 0;
+        for (LinkedHashMap<Long, Pending> messages : undelivered.values()) {
+            pending += messages.size();
+        }
+        return pending;
+    }
+
+    // returns how many bytes of the segment held whole records
+    private long replay(long segment) throws IOException {
+        long valid = 0;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(segmentFile(segment))))) {
+            while (true) {
+                int bodyLength;
+                try {
+                    bodyLength = in.readInt();
+                } catch (EOFException e) {
+                    return valid;
+                }
+                if (bodyLength < 11) return valid;
+                int crc;
+                byte[] body = new byte[bodyLength];
+                try {
+                    crc = in.readInt();
+                    in.readFully(body);
+                } catch (EOFException e) {
+                    return valid;
+                }
+                CRC32 check = new CRC32();
+                check.update(body);
+                if ((int) check.getValue() != crc) return valid;
+                apply(segment, valid, ByteBuffer.wrap(body), 8 + bodyLength);
+                valid += 8 + bodyLength;
+            }
+        }
+    }
+
+    private void apply(long segment, long offset, ByteBuffer body, int recordLength) {
+        byte kind = body.get();
+        long seq = body.getLong();
+        byte[] name = new byte[body.getShort() & 0xffff];
+        body.get(name);
+        String recipient = new String(name, StandardCharsets.UTF_8);
+        nextSeq = Math.max(nextSeq, seq + 1);
+        if (kind == MESSAGE) {
+            LinkedHashMap<Long, Pending> messages = undelivered.computeIfAbsent(recipient, k -> new LinkedHashMap<>());
+            // a message copied forward by compaction shows up again, the later copy wins
+            Pending previous = messages.remove(seq);
+            if (previous != null) release(previous);
+            Pending message = new Pending(seq, recipient);
+            message.segment = segment;
+            message.offset = offset;
+            message.recordLength = recordLength;
+            messages.put(seq, message);
+            liveBytes.merge(segment, (long) recordLength, Long::sum);
+        } else if (kind == DELIVERED) {
+            LinkedHashMap<Long, Pending> messages = undelivered.get(recipient);
+            if (messages == null) return;
+            Iterator<Pending> it = messages.values().iterator();
+            while (it.hasNext()) {
+                Pending message = it.next();
+                if (message.seq <= seq) {
+                    release(message);
+                    it.remove();
+                }
+            }
+            if (messages.isEmpty()) undelivered.remove(recipient);
+        }
+    }
+
+    // reads message records back from the segments, keeping the last one open. a segment deleted after it was
+    // opened can still be read through it
+    private class SegmentReader implements AutoCloseable {
+        private long segment = -1;
+        private RandomAccessFile file;
+
+        // the frame in the record at offset, null if it isn't there or doesn't pass its crc
+        byte[] read(long segment, long offset, int length) {
+            try {
+                if (segment != this.segment) {
+                    close();
+                    file = new RandomAccessFile(segmentFile(segment), "r");
+                    this.segment = segment;
+                }
+                byte[] record = new byte[length];
+                file.seek(offset);
+                file.readFully(record);
+                ByteBuffer buffer = ByteBuffer.wrap(record);
+                int bodyLength = buffer.getInt();
+                int crc = buffer.getInt();
+                if (bodyLength != length - 8) return null;
+                CRC32 check = new CRC32();
+                check.update(record, 8, bodyLength);
+                if ((int) check.getValue() != crc || buffer.get() != MESSAGE) return null;
+                buffer.getLong();
+                int nameLength = buffer.getShort() & 0xffff;
+                buffer.position(buffer.position() + nameLength);
+                return Arrays.copyOfRange(record, buffer.position(), record.length);
+            } catch (IOException e) {
+                return null;
+            }
+        }
+
+        @Override
+        public void close() {
+            if (file == null) return;
+            try {
+                file.close();
+            } catch (IOException e) {
+            }
+            file = null;
+            segment = -1;
+        }
+    }
+}
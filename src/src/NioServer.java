@@ -0,0 +1,428 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+// non-blocking engine, a fixed set of selector threads serve every connection instead of a thread each
+public class NioServer {
+    private final int port;
+    private final EventLoop[] loops;
+    // the session whose line is being routed on this loop thread, it is the one to pause for backpressure
+    private static final ThreadLocal<NioSession> currentSender = new ThreadLocal<>();
+    // set on the loop threads, which must never wait
+    private static final ThreadLocal<EventLoop> currentLoop = new ThreadLocal<>();
+
+    public NioServer(int port, int eventLoops) {
+        this.port = port;
+        this.loops = new EventLoop[Math.max(1, eventLoops)];
+    }
+
+    public void run() throws IOException {
+        for (int i = 0; i < loops.length; i++) {
+            loops[i] = new EventLoop(Selector.open());
+            new Thread(loops[i], "nio-loop-" + i).start();
+        }
+        try (ServerSocketChannel serverChannel = ServerSocketChannel.open()) {
+            serverChannel.bind(new InetSocketAddress(port));
+            System.out.println("Server started on port " + port + " (nio, " + loops.length + " event loops)");
+            int next = 0;
+            while (true) {
+                SocketChannel channel = serverChannel.accept();
+                channel.configureBlocking(false);
+                // flush already batches, small ACKs and DELIVEREDs shouldn't wait for Nagle
+                channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                ServerMetrics.connectionOpened();
+                EventLoop loop = loops[next++ % loops.length];
+                NioSession session = new NioSession(channel, loop);
+                loop.execute(session::open);
+            }
+        }
+    }
+
+    static class EventLoop implements Runnable {
+        private final Selector selector;
+        private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+        private Thread thread;
+
+        EventLoop(Selector selector) {
+            this.selector = selector;
+        }
+
+        // run a task on this loop's thread, used for anything that touches keys or channels
+        void execute(Runnable task) {
+            tasks.add(task);
+            if (Thread.currentThread() != thread) {
+                selector.wakeup();
+            }
+        }
+
+        public void run() {
+            thread = Thread.currentThread();
+            currentLoop.set(this);
+            while (true) {
+                try {
+                    Runnable task;
+                    while ((task = tasks.poll()) != null) {
+                        task.run();
+                    }
+                    // tasks queued by this thread don't wake the selector, so don't block while any are left
+                    if (tasks.isEmpty()) {
+                        selector.select();
+                    } else {
+                        selector.selectNow();
+                    }
+                    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        NioSession session = (NioSession) key.attachment();
+                        if (!key.isValid()) {
+                            session.close();
+                            continue;
+                        }
+                        if (key.isReadable()) {
+                            session.onReadable();
+                        }
+                        if (key.isValid() && key.isWritable()) {
+                            session.flush();
+                        }
+                    }
+                } catch (Exception e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    class NioSession extends ClientSession implements AdmissionQueue.Waiter {
+        private final SocketChannel channel;
+        private final EventLoop loop;
+        private final ByteBuffer readBuffer = ByteBuffer.allocate(8192);
+        // the limit is applied here rather than by the queue, so it never makes a sender wait
+        private final OutboundQueue outbound = new OutboundQueue(Long.MAX_VALUE);
+        // the batch taken from outbound being written, only touched on the loop thread
+        private final ArrayDeque<ByteBuffer> writing = new ArrayDeque<>();
+        private final ByteBuffer[] writeBatch = new ByteBuffer[64];
+        private final AtomicBoolean flushPending = new AtomicBoolean();
+        private final AtomicBoolean closed = new AtomicBoolean();
+        private final AtomicLong queuedBytes = new AtomicLong();
+        // senders whose reads are paused until this session's queue drains
+        private final List<NioSession> pausedSenders = new ArrayList<>();
+        // threads other than the loops wait on this for room in the queue, like senders do on the blocking engines
+        private final Object room = new Object();
+        private SelectionKey key;
+        private final FrameReader reader = new FrameReader();
+        private boolean admitted;
+        private boolean registered;
+        private boolean granted;
+        // a frame read while the client was over its rate limit, routed when RateLimits says so
+        private Frame throttled;
+        // pauses of this session's reads for full recipient queues not yet resumed, only touched on its loop.
+        // reading resumes once there are none and nothing is throttled
+        private int backpressured;
+
+        NioSession(SocketChannel channel, EventLoop loop) {
+            this.channel = channel;
+            this.loop = loop;
+        }
+
+        // runs on the loop thread once the channel has been handed over by the acceptor
+        void open() {
+            try {
+                key = channel.register(loop.selector, 0, this);
+            } catch (IOException e) {
+                close();
+                return;
+            }
+            // input isn't read until admitted, same as the thread engine leaving it in the socket
+            LUConnectServer.admission.request(this);
+        }
+
+        // called from whichever thread freed the slot
+        public void admit() {
+            synchronized (this) {
+                granted = true;
+            }
+            loop.execute(this::start);
+        }
+
+        public synchronized void update(long waitSeconds, int position) {
+            // on the admission ticker, which can't wait for room, and the next update says the same
+            if (granted || queuedBytes.get() > ServerConfig.OUTBOUND_LIMIT) return;
+            sendLine("WAIT: " + waitSeconds);
+            sendLine("QUEUE: " + position);
+        }
+
+        public void reject() {
+            sendLine("FULL");
+            // runs after the flush queued by send
+            loop.execute(this::close);
+        }
+
+        private void start() {
+            if (closed.get()) {
+                LUConnectServer.admission.release();
+                return;
+            }
+            admitted = true;
+            ServerMetrics.sessionAdmitted();
+            sendLine("START");
+            Heartbeats.watch(this);
+            key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+        }
+
+        @Override
+        public long queuedBytes() {
+            return queuedBytes.get();
+        }
+
+        // on the session's own loop like every other close
+        @Override
+        public void evict() {
+            loop.execute(this::close);
+        }
+
+        @Override
+        protected boolean enqueue(String sender, ByteBuffer... parts) {
+            if (closed.get()) return false;
+            long length = 0;
+            for (ByteBuffer part : parts) {
+                length += part.remaining();
+            }
+            long queued = queuedBytes.get();
+            if (queued > 0 && queued + length > ServerConfig.OUTBOUND_LIMIT) {
+                if (ServerConfig.OVERFLOW_POLICY == OutboundQueue.OverflowPolicy.BLOCK) {
+                    // other threads have waited in awaitRoom and go over by at most a frame each. an event loop
+                    // can't wait, so the sender stops being read instead. outside a client's frame, e.g. START,
+                    // or for a client's answers to itself there is nobody to pause
+                    if (currentLoop.get() != null && !pauseSender()) ServerMetrics.overLimit();
+                } else {
+                    ServerMetrics.overflowDropped();
+                    if (ServerConfig.OVERFLOW_POLICY == OutboundQueue.OverflowPolicy.DISCONNECT) {
+                        loop.execute(this::close);
+                    }
+                    return false;
+                }
+            }
+            queuedBytes.addAndGet(length);
+            ByteBuffer[] slices = new ByteBuffer[parts.length];
+            for (int i = 0; i < parts.length; i++) {
+                slices[i] = parts[i].slice();
+            }
+            try {
+                outbound.offer(sender, slices, false);
+            } catch (InterruptedException e) {
+                // never waits without block
+            }
+            if (flushPending.compareAndSet(false, true)) {
+                loop.execute(this::flush);
+            }
+            return true;
+        }
+
+        // runs on a loop thread, false if it isn't inside another session's frame whose reads it could pause
+        private boolean pauseSender() {
+            NioSession sender = currentSender.get();
+            if (sender == null || sender == this || sender.key == null || !sender.key.isValid()) return false;
+            sender.key.interestOps(sender.key.interestOps() & ~SelectionKey.OP_READ);
+            sender.backpressured++;
+            synchronized (pausedSenders) {
+                pausedSenders.add(sender);
+            }
+            return true;
+        }
+
+        // logins, presence, cluster links and stored messages come from threads that can wait for the queue to go
+        // below the limit, before they take the session lock so the loops sending here aren't held up
+        @Override
+        protected void awaitRoom() {
+            if (ServerConfig.OVERFLOW_POLICY != OutboundQueue.OverflowPolicy.BLOCK || currentLoop.get() != null
+                    || Thread.holdsLock(this)) {
+                return;
+            }
+            synchronized (room) {
+                try {
+                    while (!closed.get() && queuedBytes.get() >= ServerConfig.OUTBOUND_LIMIT) {
+                        room.wait();
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+
+        private void roomMade() {
+            synchronized (room) {
+                room.notifyAll();
+            }
+        }
+
+        private void resumeSenders() {
+            List<NioSession> resumed;
+            synchronized (pausedSenders) {
+                if (pausedSenders.isEmpty()) return;
+                resumed = new ArrayList<>(pausedSenders);
+                pausedSenders.clear();
+            }
+            for (NioSession sender : resumed) {
+                sender.loop.execute(sender::resumeBackpressured);
+            }
+        }
+
+        private void resumeBackpressured() {
+            backpressured--;
+            resumeReading();
+        }
+
+        private void resumeReading() {
+            if (!closed.get() && admitted && throttled == null && backpressured == 0) {
+                key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+            }
+        }
+
+        // writes what has queued since the last flush, a batch at a time so each sender gets its turn,
+        // up to 64 buffers per gathering write
+        void flush() {
+            flushPending.set(false);
+            if (closed.get() || key == null) return;
+            try {
+                boolean drained = false;
+                while (!drained) {
+                    if (writing.isEmpty()) {
+                        writing.addAll(outbound.poll());
+                    }
+                    int count = 0;
+                    for (ByteBuffer buffer : writing) {
+                        writeBatch[count++] = buffer;
+                        if (count == writeBatch.length) break;
+                    }
+                    if (count == 0) {
+                        drained = true;
+                        break;
+                    }
+                    channel.write(writeBatch, 0, count);
+                    int written = 0;
+                    while (written < count && !writeBatch[written].hasRemaining()) {
+                        writing.poll();
+                        queuedBytes.addAndGet(-writeBatch[written++].capacity());
+                    }
+                    Arrays.fill(writeBatch, 0, count, null);
+                    if (written < count) {
+                        break;
+                    }
+                }
+                if (drained) {
+                    key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+                } else {
+                    // socket is full, wait for the selector to say it's writable again
+                    key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+                }
+                if (queuedBytes.get() <= ServerConfig.OUTBOUND_LIMIT / 2) {
+                    resumeSenders();
+                    roomMade();
+                }
+            } catch (IOException e) {
+                close();
+            }
+        }
+
+        void onReadable() {
+            int read;
+            try {
+                read = reader.read(channel, readBuffer);
+            } catch (IOException e) {
+                close();
+                return;
+            }
+            try {
+                if (read < 0) {
+                    // a trailing line without newline is still delivered, like BufferedReader.readLine
+                    Frame last = reader.finish(codec());
+                    if (last != null) onFrame(last);
+                    close();
+                    return;
+                }
+                routeFrames();
+            } catch (IOException e) {
+                // corrupt binary framing
+                close();
+            }
+        }
+
+        // the frames read so far, until one has to wait for the rate limits
+        private void routeFrames() throws IOException {
+            Frame frame;
+            // the codec is looked up per frame, the client may have switched protocol in the one before
+            while (!closed.get() && throttled == null && (frame = reader.poll(codec())) != null) {
+                long delay = RateLimits.delay(this, frame);
+                if (delay > 0) {
+                    // nothing more is read until it has gone, so the client's socket fills up
+                    throttled = frame;
+                    key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+                    RateLimits.later(() -> loop.execute(this::resumeThrottled), delay);
+                    return;
+                }
+                onFrame(frame);
+            }
+        }
+
+        private void resumeThrottled() {
+            if (closed.get()) return;
+            Frame frame = throttled;
+            throttled = null;
+            onFrame(frame);
+            try {
+                routeFrames();
+            } catch (IOException e) {
+                close();
+                return;
+            }
+            resumeReading();
+        }
+
+        private void onFrame(Frame frame) {
+            currentSender.set(this);
+            try {
+                if (!registered) {
+                    registered = true;
+                    MessageRouter.register(this, frame);
+                } else {
+                    MessageRouter.route(this, frame);
+                }
+            } finally {
+                currentSender.remove();
+            }
+        }
+
+        @Override
+        public void close() {
+            if (!closed.compareAndSet(false, true)) return;
+            if (key != null) key.cancel();
+            try {
+                channel.close();
+            } catch (IOException e) {
+            }
+            // nobody should stay paused or waiting behind a session that is gone
+            resumeSenders();
+            roomMade();
+            if (admitted) {
+                MessageRouter.unregister(this);
+                LUConnectServer.admission.release();
+                ServerMetrics.sessionClosed();
+            } else {
+                LUConnectServer.admission.cancel(this);
+            }
+            ServerMetrics.connectionClosed();
+        }
+    }
+}
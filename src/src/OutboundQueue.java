@@ -0,0 +1,160 @@
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+// bounded queue of encoded lines waiting to be written to one client, drained in batches by that client's writer.
+// a frame may be several buffers, e.g. a header and a payload still in the buffer it was read into.
+// frames are kept in a lane per sender and batches take turns between the lanes, deficit round robin by bytes, so
+// a chat message waits behind at most a quantum from each other sender rather than behind a whole file
+public class OutboundQueue {
+    // what happens to a send once the recipient has luconnect.outboundLimit bytes waiting
+    public enum OverflowPolicy { DROP, DISCONNECT, BLOCK }
+
+    // bytes a lane may send per turn, a little over one file chunk frame
+    private static final int QUANTUM = 72 * 1024;
+    // bytes per batch, so a message arriving while a batch is written gets its turn in the next one
+    private static final int BATCH = 256 * 1024;
+
+    private static class Lane {
+        final String sender;
+        final ArrayDeque<ByteBuffer[]> frames = new ArrayDeque<>();
+        final ArrayDeque<Long> lengths = new ArrayDeque<>();
+        long deficit;
+
+        Lane(String sender) {
+            this.sender = sender;
+        }
+    }
+
+    private final long limit;
+    // lanes with something queued, in the order they get their turns
+    private final ArrayDeque<Lane> active = new ArrayDeque<>();
+    private final Map<String, Lane> lanes = new HashMap<>();
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private final Condition notFull = lock.newCondition();
+    private long queuedBytes;
+    private boolean closed;
+
+    public OutboundQueue(long limit) {
+        this.limit = limit;
+    }
+
+    // returns false if the frame wasn't queued, because the queue is closed or it is full and block is false
+    public boolean offer(byte[] frame, boolean block) throws InterruptedException {
+        return offer(null, new ByteBuffer[]{ByteBuffer.wrap(frame)}, block);
+    }
+
+    // the parts of one frame, queued together or not at all. sender picks the lane, null for the server's own
+    public boolean offer(String sender, ByteBuffer[] parts, boolean block) throws InterruptedException {
+        long length = 0;
+        for (ByteBuffer part : parts) {
+            length += part.remaining();
+        }
+        lock.lock();
+        try {
+            // an empty queue always takes a frame, otherwise one large file could never be sent
+            while (!closed && queuedBytes > 0 && queuedBytes + length > limit) {
+                if (!block) return false;
+                notFull.await();
+            }
+            if (closed) return false;
+            String key = sender == null ? "" : sender;
+            Lane lane = lanes.get(key);
+            if (lane == null) {
+                lane = new Lane(key);
+                lanes.put(key, lane);
+                active.add(lane);
+            }
+            lane.frames.add(parts);
+            lane.lengths.add(length);
+            queuedBytes += length;
+            notEmpty.signal();
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long queuedBytes() {
+        lock.lock();
+        try {
+            return queuedBytes;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // waits for at least one frame and then takes a batch so the writer can flush once per batch. frames queued
+    // before close are still handed out, an empty list means the queue was closed and nothing is left in it
+    public List<ByteBuffer> drain() throws InterruptedException {
+        lock.lock();
+        try {
+            while (active.isEmpty() && !closed) {
+                notEmpty.await();
+            }
+            return batch();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // the next batch without waiting, empty if nothing is queued
+    public List<ByteBuffer> poll() {
+        lock.lock();
+        try {
+            return batch();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private List<ByteBuffer> batch() {
+        List<ByteBuffer> batch = new ArrayList<>();
+        long taken = 0;
+        while (!active.isEmpty() && taken < BATCH) {
+            Lane lane = active.poll();
+            lane.deficit += QUANTUM;
+            while (!lane.frames.isEmpty() && lane.lengths.peek() <= lane.deficit) {
+                long length = lane.lengths.poll();
+                lane.deficit -= length;
+                taken += length;
+                Collections.addAll(batch, lane.frames.poll());
+            }
+            if (lane.frames.isEmpty()) {
+                lanes.remove(lane.sender);
+            } else {
+                active.add(lane);
+            }
+        }
+        queuedBytes -= taken;
+        notFull.signalAll();
+        return batch;
+    }
+
+    public void close() {
+        lock.lock();
+        try {
+            closed = true;
+            notEmpty.signalAll();
+            notFull.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public boolean isClosed() {
+        lock.lock();
+        try {
+            return closed;
+        } finally {
+            lock.unlock();
+        }
+    }
+}
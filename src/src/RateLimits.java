@@ -0,0 +1,112 @@
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+// per user limits on what clients send, luconnect.rateMessages frames and luconnect.rateBytes bytes a second with
+// bursts of luconnect.rateMessagesBurst and luconnect.rateBytesBurst on top. a client over either limit isn't cut
+// off, the engine holds its next frame back until it is within the limit again and reads nothing more meanwhile, so
+// the client's own socket fills up and slows it down. the limits belong to the username, so reconnecting doesn't
+// reset them. each bucket is one AtomicLong, the time it would be empty again (GCRA), taking from it is a CAS
+public class RateLimits {
+    private static final Bucket.Rate MESSAGES = Bucket.Rate.of(ServerConfig.RATE_MESSAGES, ServerConfig.RATE_MESSAGES_BURST);
+    private static final Bucket.Rate BYTES = Bucket.Rate.of(ServerConfig.RATE_BYTES, ServerConfig.RATE_BYTES_BURST);
+
+    private static final Map<String, Limiter> limiters = new ConcurrentHashMap<>();
+    // wakes held back frames on the nio engine, finer than the heartbeats' wheel since the delays are short
+    private static final TimerWheel wheel = new TimerWheel("rate-limits", 10, TimeUnit.MILLISECONDS, 512);
+
+    static class Bucket {
+        // nanoseconds one unit costs and how far ahead of now a bucket may run before frames wait
+        static class Rate {
+            final long perSecond;
+            final long burstNanos;
+
+            Rate(long perSecond, long burst) {
+                this.perSecond = perSecond;
+                this.burstNanos = burst * TimeUnit.SECONDS.toNanos(1) / perSecond;
+            }
+
+            // null when perSecond is 0, no limit
+            static Rate of(long perSecond, long burst) {
+                return perSecond <= 0 ? null : new Rate(perSecond, Math.max(1, burst));
+            }
+
+            long cost(long units) {
+                return units * TimeUnit.SECONDS.toNanos(1) / perSecond;
+            }
+        }
+
+        private final Rate rate;
+        // System.nanoTime() at which everything taken so far has been paid for
+        private final AtomicLong paidUntil;
+
+        Bucket(Rate rate, long now) {
+            this.rate = rate;
+            this.paidUntil = new AtomicLong(now);
+        }
+
+        // takes units and returns how long the frame must wait, 0 if it is within the burst
+        long take(long units, long now) {
+            long cost = rate.cost(units);
+            while (true) {
+                long paid = paidUntil.get();
+                long next = Math.max(paid - now, 0) + now + cost;
+                if (paidUntil.compareAndSet(paid, next)) {
+                    return Math.max(next - now - rate.burstNanos, 0);
+                }
+            }
+        }
+
+        boolean idle(long now) {
+            return paidUntil.get() - now <= 0;
+        }
+    }
+
+    // one user's buckets, either may be null when that limit is off
+    public static class Limiter {
+        private final Bucket messages;
+        private final Bucket bytes;
+
+        Limiter(long now) {
+            messages = MESSAGES == null ? null : new Bucket(MESSAGES, now);
+            bytes = BYTES == null ? null : new Bucket(BYTES, now);
+        }
+
+        boolean idle(long now) {
+            return (messages == null || messages.idle(now)) && (bytes == null || bytes.idle(now));
+        }
+    }
+
+    // null when both limits are off
+    public static Limiter of(String username) {
+        if (MESSAGES == null && BYTES == null) return null;
+        return limiters.computeIfAbsent(username, name -> new Limiter(System.nanoTime()));
+    }
+
+    // the user's last session has gone, their buckets are dropped once they have refilled
+    public static void release(String username, Limiter limiter) {
+        if (limiter != null && limiter.idle(System.nanoTime())) {
+            limiters.remove(username, limiter);
+        }
+    }
+
+    // nanoseconds the session's frame must wait before it is routed, called by the engines as each frame is read.
+    // heartbeats and anything before sign in aren't limited
+    public static long delay(ClientSession session, Frame frame) {
+        Limiter limiter = session.limiter;
+        if (limiter == null || frame.type == Frame.Type.PING || frame.type == Frame.Type.PONG) return 0;
+        long now = System.nanoTime();
+        long delay = 0;
+        // confirmations come in as fast as others send, only their bytes count
+        if (limiter.messages != null && frame.type != Frame.Type.RECEIVED) delay = limiter.messages.take(1, now);
+        if (limiter.bytes != null) delay = Math.max(delay, limiter.bytes.take(frame.wireLength, now));
+        if (delay > 0) ServerMetrics.throttled(delay);
+        return delay;
+    }
+
+    // runs task after delayNanos on the wheel's thread, it must not block
+    public static void later(Runnable task, long delayNanos) {
+        wheel.schedule(task, delayNanos, TimeUnit.NANOSECONDS);
+    }
+}
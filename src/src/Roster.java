@@ -0,0 +1,103 @@
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+// who is registered and who is online, pushed to clients that ask for it with "PRESENCE:on".
+// they get a snapshot of "ROSTER:registered:a,b,..." and "ROSTER:online:a,b,..." frames followed by
+// "JOIN:user", "LEAVE:user" and "REGISTERED:user" as things change, so no client has to poll users.db
+public class Roster {
+    // names per ROSTER frame, keeps each one well inside the binary protocol's field limit
+    private static final int SNAPSHOT_BATCH = 500;
+
+    private static final Set<ClientSession> watchers = ConcurrentHashMap.newKeySet();
+    private static final Set<String> registered = new ConcurrentSkipListSet<>();
+    // snapshots and changes are sent in order on this thread, so a watcher never sees a change older than its
+    // snapshot. a watcher whose queue is full under the block policy holds up presence, not sign in and out
+    private static final ExecutorService presence = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "roster-presence");
+        t.setDaemon(true);
+        return t;
+    });
+
+    public static void subscribe(ClientSession session, Collection<String> online) {
+        presence.execute(() -> {
+            sendSnapshot(session, "registered", registered);
+            sendSnapshot(session, "online", online);
+            watchers.add(session);
+        });
+    }
+
+    public static boolean isRegistered(String username) {
+        return registered.contains(username);
+    }
+
+    // after any subscribe still waiting on the presence thread
+    public static void unsubscribe(ClientSession session) {
+        presence.execute(() -> watchers.remove(session));
+    }
+
+    public static void joined(String username) {
+        broadcast(new Frame(Frame.Type.JOIN, new String[]{username}, null, null));
+    }
+
+    public static void left(String username) {
+        broadcast(new Frame(Frame.Type.LEAVE, new String[]{username}, null, null));
+    }
+
+    // a signup through the server, announced straight away rather than at the next refresh
+    public static void registered(String username) {
+        if (registered.add(username)) {
+            broadcast(new Frame(Frame.Type.REGISTERED, new String[]{username}, null, null));
+        }
+    }
+
+    // reads the user list from users.db, which only rescans the table after a signup
+    private static void refresh() {
+        for (String user : DatabaseManager.getAllUsers()) {
+            if (registered.add(user)) {
+                broadcast(new Frame(Frame.Type.REGISTERED, new String[]{user}, null, null));
+            }
+        }
+    }
+
+    private static void broadcast(Frame frame) {
+        presence.execute(() -> {
+            for (ClientSession watcher : watchers) {
+                watcher.send(frame);
+            }
+        });
+    }
+
+    private static void sendSnapshot(ClientSession session, String kind, Collection<String> names) {
+        StringBuilder batch = new StringBuilder();
+        int count = 0;
+        for (String name : names) {
+            if (count > 0) batch.append(',');
+            batch.append(name);
+            if (++count == SNAPSHOT_BATCH) {
+                session.send(new Frame(Frame.Type.ROSTER, new String[]{kind, batch.toString()}, null, null));
+                batch.setLength(0);
+                count = 0;
+            }
+        }
+        if (count > 0) {
+            session.send(new Frame(Frame.Type.ROSTER, new String[]{kind, batch.toString()}, null, null));
+        }
+    }
+
+    // loads the registered users once and then keeps looking for new ones on a daemon thread
+    public static void start(int intervalSeconds) {
+        refresh();
+        if (intervalSeconds <= 0) return;
+        ScheduledExecutorService checker = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "roster-refresh");
+            t.setDaemon(true);
+            return t;
+        });
+        checker.scheduleWithFixedDelay(Roster::refresh, intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+    }
+}
@@ -0,0 +1,88 @@
+// server settings, read once from system properties e.g. java -Dluconnect.engine=nio LUConnectServer
+public class ServerConfig {
+    public static final int PORT = Integer.getInteger("luconnect.port", 12345);
+
+    // the maximum number of clients admitted at once, the rest wait in the admission queue
+    public static final int MAX_CLIENTS = Integer.getInteger("luconnect.maxClients", 3);
+
+    // how many clients may wait for a slot before new connections are turned away with FULL, 0 is unbounded
+    public static final int MAX_QUEUE = Integer.getInteger("luconnect.maxQueue", 0);
+
+    // "thread" is the original thread-per-connection engine, "virtual" runs the same code on virtual threads,
+    // "pool" on a fixed size executor and "nio" uses the selector based event loops
+    public static final String ENGINE = System.getProperty("luconnect.engine", "thread");
+
+    // number of selector threads used by the nio engine
+    public static final int EVENT_LOOPS = Integer.getInteger("luconnect.eventLoops",
+            Runtime.getRuntime().availableProcessors());
+
+    // size of the executors used by the pool engine, one for connections' readers and one for their writers
+    public static final int POOL_SIZE = Integer.getInteger("luconnect.poolSize", 200);
+
+    // bytes that may wait in one client's outbound queue before the overflow policy applies
+    public static final long OUTBOUND_LIMIT = Long.getLong("luconnect.outboundLimit", 8L * 1024 * 1024);
+
+    // "block" holds up the sender until there's room, "drop" discards the message and "disconnect" closes the slow client
+    public static final OutboundQueue.OverflowPolicy OVERFLOW_POLICY = OutboundQueue.OverflowPolicy.valueOf(
+            System.getProperty("luconnect.overflowPolicy", "block").toUpperCase());
+
+    // seconds between connection metrics lines on stdout, 0 turns them off
+    public static final int METRICS_INTERVAL = Integer.getInteger("luconnect.metricsInterval", 0);
+
+    // port on 127.0.0.1 serving the metrics as text at /metrics for Prometheus and curl, 0 turns it off.
+    // they are always on JMX as luconnect:type=ServerMetrics
+    public static final int METRICS_PORT = Integer.getInteger("luconnect.metricsPort", 0);
+
+    // lets clients sign in with a bare "USER:name" and no password, only for load tests with made up users
+    public static final boolean ALLOW_USER_LOGIN = Boolean.getBoolean("luconnect.allowUserLogin");
+
+    // failed AUTH, REGISTER and RESUME frames one connection gets before the rest are refused unchecked
+    public static final int SIGN_IN_ATTEMPTS = Integer.getInteger("luconnect.signInAttempts", 5);
+
+    // how long a session token from AUTH_OK can be used to sign in again with RESUME
+    public static final int TOKEN_HOURS = Integer.getInteger("luconnect.tokenHours", 24);
+
+    // seconds a client may send nothing before it is sent a PING, 0 never pings or times anyone out
+    public static final int IDLE_TIMEOUT = Integer.getInteger("luconnect.idleTimeout", 30);
+
+    // seconds a client has to answer that PING with anything before it is disconnected and its slot freed
+    public static final int READ_TIMEOUT = Integer.getInteger("luconnect.readTimeout", 15);
+
+    // frames a second each user may send, past a burst of rateMessagesBurst their frames are held back. 0 is no limit
+    public static final long RATE_MESSAGES = Long.getLong("luconnect.rateMessages", 500);
+    public static final long RATE_MESSAGES_BURST = Long.getLong("luconnect.rateMessagesBurst", 1000);
+
+    // bytes a second each user may send, as they arrive on the wire, and how many may come at once. 0 is no limit
+    public static final long RATE_BYTES = Long.getLong("luconnect.rateBytes", 16L * 1024 * 1024);
+    public static final long RATE_BYTES_BURST = Long.getLong("luconnect.rateBytesBurst", 4L * 1024 * 1024);
+
+    // messages a client that confirms them may have sent and not yet had confirmed, told to it in "WINDOW:n"
+    public static final int SEND_WINDOW = Integer.getInteger("luconnect.sendWindow", 64);
+
+    // seconds between checks of users.db for newly registered users, which are then announced with REGISTERED
+    public static final int ROSTER_INTERVAL = Integer.getInteger("luconnect.rosterInterval", 10);
+
+    // where messages for users who aren't connected are kept until they log in, empty turns the store off
+    public static final String STORE_DIR = System.getProperty("luconnect.storeDir", "messages");
+
+    // size at which the message log starts a new segment file
+    public static final long STORE_SEGMENT_SIZE = Long.getLong("luconnect.storeSegmentSize", 64L * 1024 * 1024);
+
+    // segments kept before the oldest one's undelivered messages are copied forward, bounds startup replay
+    public static final int STORE_MAX_SEGMENTS = Integer.getInteger("luconnect.storeMaxSegments", 8);
+
+    // where files are kept by content so one sent again or to many users is only uploaded once, empty turns it off
+    public static final String BLOB_DIR = System.getProperty("luconnect.blobDir", "blobs");
+
+    // bytes of kept files, the least recently used ones are deleted past it
+    public static final long BLOB_CACHE_BYTES = Long.getLong("luconnect.blobCacheBytes", 1024L * 1024 * 1024);
+
+    // host:port other cluster nodes reach this one on, it listens on that port. empty runs a single server
+    public static final String CLUSTER_NODE = System.getProperty("luconnect.node", "");
+
+    // comma separated host:port of nodes to connect to, others are found when they connect to this one
+    public static final String CLUSTER_PEERS = System.getProperty("luconnect.peers", "");
+
+    // shared by every node of a cluster, a node has to prove it knows it before its links are trusted
+    public static final String CLUSTER_SECRET = System.getProperty("luconnect.clusterSecret", "");
+}
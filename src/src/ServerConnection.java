@@ -0,0 +1,211 @@
+import javax.crypto.spec.SecretKeySpec;
+import java.io.*;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.security.KeyPair;
+import java.util.ArrayDeque;
+import java.util.Queue;
+
+// the client's end of the connection. the rest of the client works with text protocol lines or frames, once the
+// server agrees to "PROTO:BIN1" they travel as binary frames and are converted here
+public class ServerConnection {
+    // how long login waits for the server to accept the binary protocol before assuming an older server
+    private static final int NEGOTIATION_TIMEOUT = 2000;
+
+    private final Socket socket;
+    private final InputStream in;
+    private final OutputStream out;
+    private final FrameReader reader = new FrameReader();
+    // frames that arrived while negotiating, handed out before anything else
+    private final Queue<Frame> early = new ArrayDeque<>();
+    private volatile FrameCodec codec = FrameCodec.TEXT;
+    // from the server's "WINDOW:n", 0 for a server that doesn't confirm messages
+    private volatile int window;
+    // written by sendLater and not flushed yet, guarded by this
+    private boolean unflushed;
+    // what passwords are sealed with on this connection, from the first sign in's KEY exchange
+    private SecretKeySpec signInKey;
+    // run on the reader's thread whenever it has nothing buffered left, before it waits for more
+    private volatile Runnable idle;
+
+    public ServerConnection(String host, int port) throws IOException {
+        socket = new Socket(host, port);
+        // every send is flushed on its own, and with confirmations the next ones wait for the server's answer to
+        // small frames, which Nagle's algorithm would hold back until the server's delayed ACK
+        socket.setTcpNoDelay(true);
+        in = socket.getInputStream();
+        out = new BufferedOutputStream(socket.getOutputStream());
+    }
+
+    // next line from the server, null once the connection is closed
+    public String readLine() throws IOException {
+        Frame frame = readFrame();
+        return frame == null ? null : TextCodec.format(frame);
+    }
+
+    // next frame from the server, payloads stay as raw bytes on the binary protocol
+    public Frame readFrame() throws IOException {
+        while (true) {
+            Frame frame;
+            synchronized (early) {
+                frame = early.poll();
+            }
+            if (frame == null) frame = reader.poll(codec);
+            if (frame == null) {
+                // nothing left to read without waiting, confirmations of what has been read go out now
+                Runnable beforeWaiting = idle;
+                if (beforeWaiting != null) beforeWaiting.run();
+                flushLater();
+                frame = reader.read(in, codec);
+            }
+            // the server checking the client is still there, answered without bothering the rest of the client
+            if (frame == null || frame.type != Frame.Type.PING) return frame;
+            send(new Frame(Frame.Type.PONG, frame.fields, null, null));
+        }
+    }
+
+    // returns false if the line couldn't be sent, e.g. the connection is gone
+    public synchronized boolean send(String line) {
+        try {
+            if (codec == FrameCodec.TEXT) {
+                out.write((line + "\n").getBytes(StandardCharsets.UTF_8));
+            } else {
+                out.write(codec.encode(TextCodec.parse(line)));
+            }
+            out.flush();
+            return true;
+        } catch (IOException | IllegalArgumentException e) {
+            return false;
+        }
+    }
+
+    // same as send(String) for a message that is already a frame, a raw payload is only Base64 encoded on text
+    public synchronized boolean send(Frame frame) {
+        try {
+            out.write(codec.encode(frame));
+            out.flush();
+            return true;
+        } catch (IOException | IllegalArgumentException e) {
+            return false;
+        }
+    }
+
+    // see Delivery
+    public void onIdle(Runnable idle) {
+        this.idle = idle;
+    }
+
+    // like send(Frame) but only flushed by the next send or once the reader has nothing buffered
+    public synchronized boolean sendLater(Frame frame) {
+        try {
+            out.write(codec.encode(frame));
+            unflushed = true;
+            return true;
+        } catch (IOException | IllegalArgumentException e) {
+            return false;
+        }
+    }
+
+    private synchronized void flushLater() {
+        if (!unflushed) return;
+        unflushed = false;
+        try {
+            out.flush();
+        } catch (IOException e) {
+            // the reader finds out
+        }
+    }
+
+    // sends the old USER handshake and asks for the binary protocol, for servers started with luconnect.allowUserLogin
+    public synchronized void login(String username) throws IOException {
+        send("USER:" + username);
+        negotiate();
+    }
+
+    // signs in with AUTH or REGISTER and a password, or RESUME and the token from an earlier AUTH_OK, and
+    // returns the server's AUTH_OK or AUTH_FAIL. once signed in it asks for the binary protocol like login
+    public synchronized Frame signIn(Frame.Type type, String username, String secret) throws IOException {
+        if (type == Frame.Type.RESUME) {
+            send(new Frame(type, new String[]{username, secret}, null, null));
+        } else {
+            if (signInKey == null) {
+                KeyPair ours = EncryptionUtils.keyPair();
+                send(new Frame(Frame.Type.KEY, new String[]{EncryptionUtils.publicKey(ours)}, null, null));
+                Frame reply = answer(Frame.Type.KEY);
+                if (reply.type == Frame.Type.AUTH_FAIL) return reply;
+                signInKey = EncryptionUtils.agree(ours, reply.fields[0]);
+                if (signInKey == null) throw new IOException("the server sent a bad KEY");
+            }
+            byte[] password = secret.getBytes(StandardCharsets.UTF_8);
+            byte[] sealed = EncryptionUtils.seal(signInKey, password, 0, password.length,
+                    username.getBytes(StandardCharsets.UTF_8));
+            send(new Frame(type, new String[]{username}, null, sealed));
+        }
+        Frame reply = answer(Frame.Type.AUTH_OK);
+        if (reply.type == Frame.Type.AUTH_OK) negotiate();
+        return reply;
+    }
+
+    // the next frame of type expected or AUTH_FAIL, anything else that comes first is kept for readLine
+    private Frame answer(Frame.Type expected) throws IOException {
+        Frame reply;
+        while ((reply = reader.read(in, FrameCodec.TEXT)) != null) {
+            if (reply.type == expected || reply.type == Frame.Type.AUTH_FAIL) return reply;
+            synchronized (early) {
+                early.add(reply);
+            }
+        }
+        throw new EOFException("connection closed while signing in");
+    }
+
+    // messages that may be waiting for confirmation at once, see Delivery
+    public int window() {
+        return window;
+    }
+
+    // asks for message confirmations and the binary protocol. the server answers the first with "WINDOW:n" before
+    // it answers the second. nothing else may be sent until it does, so this holds the send lock; an older server
+    // never answers and the connection stays on text without confirmations
+    private void negotiate() throws IOException {
+        send("PROTO:ACK1");
+        send("PROTO:BIN1");
+        socket.setSoTimeout(NEGOTIATION_TIMEOUT);
+        try {
+            Frame reply;
+            // anything sent to us before the answer is still text, keep it for readLine
+            while ((reply = reader.read(in, FrameCodec.TEXT)) != null) {
+                if (reply.type == Frame.Type.PROTO && reply.fields[0].equals("BIN1")) {
+                    codec = FrameCodec.BINARY;
+                    break;
+                }
+                if (reply.type == Frame.Type.WINDOW) {
+                    try {
+                        window = Math.max(0, Integer.parseInt(reply.fields[0]));
+                    } catch (NumberFormatException e) {
+                        window = 0;
+                    }
+                    continue;
+                }
+                // a server that only takes AUTH answers USER with this and closes the connection
+                if (reply.type == Frame.Type.AUTH_FAIL) {
+                    throw new IOException("sign in refused: " + reply.fields[0]);
+                }
+                synchronized (early) {
+                    early.add(reply);
+                }
+            }
+        } catch (SocketTimeoutException e) {
+            // older server, carry on with text
+        } finally {
+            socket.setSoTimeout(0);
+        }
+    }
+
+    public void close() {
+        try {
+            socket.close();
+        } catch (IOException e) {
+        }
+    }
+}
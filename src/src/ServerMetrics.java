@@ -0,0 +1,384 @@
+import com.sun.net.httpserver.HttpServer;
+
+import javax.management.ObjectName;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+// counters shared by every engine. the hot ones are striped LongAdders so routing threads never contend on them,
+// and they are read three ways: a line on stdout every luconnect.metricsInterval seconds, JMX, and a plain text
+// page in the Prometheus format at http://127.0.0.1:<luconnect.metricsPort>/metrics
+public class ServerMetrics implements ServerMetricsMXBean {
+    private static final Frame.Type[] TYPES = Frame.Type.values();
+    // recipients listed by name in the queue depth output, the rest only count towards the total
+    private static final int DEEPEST_QUEUES = 10;
+
+    private static final LongAdder accepted = new LongAdder();
+    private static final LongAdder[] routed = adders();
+    private static final LongAdder[] routedBytes = adders();
+    private static final LongAdder unknownRecipient = new LongAdder();
+    private static final LongAdder overflowDropped = new LongAdder();
+    private static final LongAdder overLimit = new LongAdder();
+    private static final LongAdder stored = new LongAdder();
+    private static final LongAdder idleEvicted = new LongAdder();
+    private static final LongAdder throttled = new LongAdder();
+    private static final LongAdder throttledNanos = new LongAdder();
+    private static final AtomicInteger open = new AtomicInteger();
+    private static final AtomicInteger peakOpen = new AtomicInteger();
+    private static final AtomicInteger admitted = new AtomicInteger();
+    // all in nanoseconds
+    private static final LatencyHistogram routingLatency = new LatencyHistogram();
+    private static final LatencyHistogram admissionWait = new LatencyHistogram();
+
+    private static final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "metrics");
+        t.setDaemon(true);
+        return t;
+    });
+    // per second rates, worked out once a second by the scheduler
+    private static volatile double messagesPerSecond;
+    private static volatile double bytesPerSecond;
+    private static long lastMessages;
+    private static long lastBytes;
+
+    private static LongAdder[] adders() {
+        LongAdder[] adders = new LongAdder[TYPES.length];
+        for (int i = 0; i < adders.length; i++) {
+            adders[i] = new LongAdder();
+        }
+        return adders;
+    }
+
+    public static void connectionOpened() {
+        accepted.increment();
+        int now = open.incrementAndGet();
+        if (now > peakOpen.get()) {
+            peakOpen.accumulateAndGet(now, Math::max);
+        }
+    }
+
+    public static void connectionClosed() {
+        open.decrementAndGet();
+    }
+
+    public static void sessionAdmitted() {
+        admitted.incrementAndGet();
+    }
+
+    public static void sessionClosed() {
+        admitted.decrementAndGet();
+    }
+
+    // time from asking for a slot to getting one, 0 when one was free
+    public static void admissionWait(long nanos) {
+        admissionWait.record(nanos);
+    }
+
+    // a frame relayed to its recipient, timed from when the router picked it up
+    public static void messageRouted(Frame frame, long startNanos) {
+        int type = frame.type.ordinal();
+        routed[type].increment();
+        routedBytes[type].add(frame.wireLength);
+        routingLatency.record(System.nanoTime() - startNanos);
+    }
+
+    // a message for a user who isn't connected and couldn't be stored for them
+    public static void unknownRecipient() {
+        unknownRecipient.increment();
+    }
+
+    public static void messageStored() {
+        stored.increment();
+    }
+
+    // a session closed by Heartbeats for not answering a PING
+    public static void idleEvicted() {
+        idleEvicted.increment();
+    }
+
+    // a frame held back by RateLimits for delayNanos before it was routed
+    public static void throttled(long delayNanos) {
+        throttled.increment();
+        throttledNanos.add(delayNanos);
+    }
+
+    // a message discarded because the recipient's outbound queue was full
+    public static void overflowDropped() {
+        overflowDropped.increment();
+    }
+
+    // a frame queued past the outbound limit under the block policy with nobody to hold back, the nio engine's
+    // loop threads can neither wait for room nor pause a sender outside a client's frames
+    public static void overLimit() {
+        overLimit.increment();
+    }
+
+    private static long sum(LongAdder[] adders) {
+        long total = 0;
+        for (LongAdder adder : adders) {
+            total += adder.sum();
+        }
+        return total;
+    }
+
+    private static Map<String, Long> byType(LongAdder[] adders) {
+        Map<String, Long> counts = new TreeMap<>();
+        for (Frame.Type type : TYPES) {
+            long count = adders[type.ordinal()].sum();
+            if (count > 0) counts.put(type.name(), count);
+        }
+        return counts;
+    }
+
+    // recipient to bytes waiting for the deepest queues, read once each as they keep changing
+    private static Map<String, Long> deepestQueues() {
+        List<Map.Entry<String, Long>> queues = new ArrayList<>();
+        for (ClientSession session : MessageRouter.sessions()) {
+            long queued = session.queuedBytes();
+            if (queued > 0) queues.add(Map.entry(session.username, queued));
+        }
+        queues.sort(Map.Entry.<String, Long>comparingByValue().reversed());
+        Map<String, Long> deepest = new LinkedHashMap<>();
+        for (Map.Entry<String, Long> queue : queues.subList(0, Math.min(DEEPEST_QUEUES, queues.size()))) {
+            deepest.put(queue.getKey(), queue.getValue());
+        }
+        return deepest;
+    }
+
+    private static long totalQueuedBytes() {
+        long total = 0;
+        for (ClientSession session : MessageRouter.sessions()) {
+            total += session.queuedBytes();
+        }
+        return total;
+    }
+
+    public static String snapshot() {
+        MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+        int openNow = open.get();
+        int admittedNow = admitted.get();
+        return "connections open=" + openNow
+                + " admitted=" + admittedNow
+                + " waiting=" + LUConnectServer.admission.queued()
+                + " peak=" + peakOpen.get()
+                + " accepted=" + accepted.sum()
+                + " routed=" + byType(routed)
+                + String.format(" msg/s=%.0f MB/s=%.2f", messagesPerSecond, bytesPerSecond / 1e6)
+                + " unknownRecipient=" + unknownRecipient.sum()
+                + " stored=" + stored.sum()
+                + " overflowDropped=" + overflowDropped.sum()
+                + " overLimit=" + overLimit.sum()
+                + " idleEvicted=" + idleEvicted.sum()
+                + String.format(" throttled=%d throttledMs=%.0f", throttled.sum(), throttledNanos.sum() / 1e6)
+                + " queuedBytes=" + totalQueuedBytes()
+                + String.format(" routeP99us=%.1f admissionP99ms=%.1f dbP99us=%.1f",
+                        routingLatency.percentile(99) / 1e3, admissionWait.percentile(99) / 1e6,
+                        DatabaseManager.callLatency.percentile(99) / 1e3)
+                + " threads=" + ManagementFactory.getThreadMXBean().getThreadCount()
+                + " heapMB=" + memory.getHeapMemoryUsage().getUsed() / (1024 * 1024);
+    }
+
+    public static void startReporter(int intervalSeconds) {
+        scheduler.scheduleAtFixedRate(ServerMetrics::sampleRates, 1, 1, TimeUnit.SECONDS);
+        if (intervalSeconds <= 0) return;
+        scheduler.scheduleAtFixedRate(() -> System.out.println(snapshot()),
+                intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+    }
+
+    private static void sampleRates() {
+        long messages = sum(routed);
+        long bytes = sum(routedBytes);
+        messagesPerSecond = messages - lastMessages;
+        bytesPerSecond = bytes - lastBytes;
+        lastMessages = messages;
+        lastBytes = bytes;
+    }
+
+    // registers the MXBean and, when port isn't 0, serves the text page on the loopback interface only
+    public static void expose(int port) {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(new ServerMetrics(),
+                    new ObjectName("luconnect:type=ServerMetrics"));
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+        if (port <= 0) return;
+        try {
+            HttpServer server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+            server.createContext("/metrics", exchange -> {
+                byte[] body = scrape().getBytes(StandardCharsets.UTF_8);
+                exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+                exchange.sendResponseHeaders(200, body.length);
+                try (OutputStream out = exchange.getResponseBody()) {
+                    out.write(body);
+                }
+            });
+            // the scraper is the only client, one thread is plenty
+            server.setExecutor(scheduler);
+            server.start();
+            System.out.println("Metrics on http://127.0.0.1:" + port + "/metrics");
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    // the Prometheus text exposition format, times in seconds
+    public static String scrape() {
+        StringBuilder out = new StringBuilder();
+        gauge(out, "luconnect_connections_open", "connections accepted and not yet closed", open.get());
+        gauge(out, "luconnect_connections_admitted", "sessions holding an admission slot", admitted.get());
+        gauge(out, "luconnect_connections_queued", "connections waiting for an admission slot",
+                LUConnectServer.admission.queued());
+        gauge(out, "luconnect_connections_peak", "most connections open at once", peakOpen.get());
+        counter(out, "luconnect_connections_accepted_total", "connections accepted", accepted.sum());
+        header(out, "luconnect_routed_messages_total", "counter", "frames relayed to a connected recipient");
+        byType(routed).forEach((type, count) ->
+                out.append("luconnect_routed_messages_total{type=\"").append(type).append("\"} ").append(count).append('\n'));
+        header(out, "luconnect_routed_bytes_total", "counter", "bytes of relayed frames as they were received");
+        byType(routedBytes).forEach((type, bytes) ->
+                out.append("luconnect_routed_bytes_total{type=\"").append(type).append("\"} ").append(bytes).append('\n'));
+        counter(out, "luconnect_unknown_recipient_dropped_total", "messages for users who aren't connected and weren't stored",
+                unknownRecipient.sum());
+        counter(out, "luconnect_overflow_dropped_total", "messages dropped because a recipient's queue was full",
+                overflowDropped.sum());
+        counter(out, "luconnect_over_limit_total", "frames queued past a recipient's outbound limit without holding anyone back",
+                overLimit.sum());
+        counter(out, "luconnect_idle_evicted_total", "sessions closed for not answering a PING", idleEvicted.sum());
+        counter(out, "luconnect_throttled_total", "frames held back because their sender was over its rate limit",
+                throttled.sum());
+        header(out, "luconnect_throttled_seconds_total", "counter", "time frames were held back by the rate limits");
+        out.append("luconnect_throttled_seconds_total ").append(throttledNanos.sum() / 1e9).append('\n');
+        counter(out, "luconnect_stored_messages_total", "messages kept for users who aren't connected", stored.sum());
+        gauge(out, "luconnect_outbound_queued_bytes_sum", "bytes waiting to be written to all clients", totalQueuedBytes());
+        header(out, "luconnect_outbound_queued_bytes", "gauge", "bytes waiting to be written, deepest queues only");
+        deepestQueues().forEach((user, bytes) ->
+                out.append("luconnect_outbound_queued_bytes{user=\"").append(user).append("\"} ").append(bytes).append('\n'));
+        summary(out, "luconnect_routing_latency_seconds", "time to relay a frame to the recipient's queue", routingLatency);
+        summary(out, "luconnect_admission_wait_seconds", "time connections waited for an admission slot", admissionWait);
+        summary(out, "luconnect_db_call_seconds", "time DatabaseManager calls took, waiting for a connection included",
+                DatabaseManager.callLatency);
+        return out.toString();
+    }
+
+    private static void header(StringBuilder out, String name, String type, String help) {
+        out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    }
+
+    private static void gauge(StringBuilder out, String name, String help, long value) {
+        header(out, name, "gauge", help);
+        out.append(name).append(' ').append(value).append('\n');
+    }
+
+    private static void counter(StringBuilder out, String name, String help, long value) {
+        header(out, name, "counter", help);
+        out.append(name).append(' ').append(value).append('\n');
+    }
+
+    private static void summary(StringBuilder out, String name, String help, LatencyHistogram histogram) {
+        header(out, name, "summary", help);
+        for (String quantile : new String[]{"0.5", "0.9", "0.99", "0.999"}) {
+            out.append(name).append("{quantile=\"").append(quantile).append("\"} ")
+                    .append(histogram.percentile(Double.parseDouble(quantile) * 100) / 1e9).append('\n');
+        }
+        out.append(name).append("_sum ").append(histogram.sum() / 1e9).append('\n');
+        out.append(name).append("_count ").append(histogram.count()).append('\n');
+    }
+
+    private ServerMetrics() {
+    }
+
+    public int getOpenConnections() {
+        return open.get();
+    }
+
+    public int getAdmittedConnections() {
+        return admitted.get();
+    }
+
+    public int getQueuedConnections() {
+        return LUConnectServer.admission.queued();
+    }
+
+    public int getPeakConnections() {
+        return peakOpen.get();
+    }
+
+    public long getAcceptedConnections() {
+        return accepted.sum();
+    }
+
+    public Map<String, Long> getMessagesRouted() {
+        return byType(routed);
+    }
+
+    public Map<String, Long> getBytesRouted() {
+        return byType(routedBytes);
+    }
+
+    public double getMessagesPerSecond() {
+        return messagesPerSecond;
+    }
+
+    public double getBytesPerSecond() {
+        return bytesPerSecond;
+    }
+
+    public long getUnknownRecipientDropped() {
+        return unknownRecipient.sum();
+    }
+
+    public long getOverflowDropped() {
+        return overflowDropped.sum();
+    }
+
+    public long getOverLimit() {
+        return overLimit.sum();
+    }
+
+    public long getIdleEvicted() {
+        return idleEvicted.sum();
+    }
+
+    public long getThrottled() {
+        return throttled.sum();
+    }
+
+    public long getThrottledMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(throttledNanos.sum());
+    }
+
+    public long getMessagesStored() {
+        return stored.sum();
+    }
+
+    public long getQueuedBytes() {
+        return totalQueuedBytes();
+    }
+
+    public Map<String, Long> getDeepestQueues() {
+        return deepestQueues();
+    }
+
+    public double getRoutingLatencyP99Micros() {
+        return routingLatency.percentile(99) / 1e3;
+    }
+
+    public double getAdmissionWaitP99Millis() {
+        return admissionWait.percentile(99) / 1e6;
+    }
+
+    public double getDbCallP99Micros() {
+        return DatabaseManager.callLatency.percentile(99) / 1e3;
+    }
+}
@@ -0,0 +1,51 @@
+import java.util.Map;
+
+// what ServerMetrics shows over JMX as luconnect:type=ServerMetrics, e.g. in jconsole or VisualVM
+public interface ServerMetricsMXBean {
+    int getOpenConnections();
+
+    int getAdmittedConnections();
+
+    int getQueuedConnections();
+
+    int getPeakConnections();
+
+    long getAcceptedConnections();
+
+    // by the type of frame the sender sent, e.g. TO or FILE_CHUNK
+    Map<String, Long> getMessagesRouted();
+
+    Map<String, Long> getBytesRouted();
+
+    // over the last second
+    double getMessagesPerSecond();
+
+    double getBytesPerSecond();
+
+    long getUnknownRecipientDropped();
+
+    long getOverflowDropped();
+
+    long getOverLimit();
+
+    long getMessagesStored();
+
+    // sessions closed for not answering a PING
+    long getIdleEvicted();
+
+    // frames held back by the per user rate limits and for how long in all
+    long getThrottled();
+
+    long getThrottledMillis();
+
+    long getQueuedBytes();
+
+    // the deepest outbound queues, recipient to bytes waiting
+    Map<String, Long> getDeepestQueues();
+
+    double getRoutingLatencyP99Micros();
+
+    double getAdmissionWaitP99Millis();
+
+    double getDbCallP99Micros();
+}
@@ -0,0 +1,28 @@
+// a frame sent to many sessions at once, e.g. a group message. it is encoded at most once per protocol
+// and the recipients' queues all hold the same array, which is never changed after it is built
+public class SharedFrame {
+    private final Frame frame;
+    private byte[] text;
+    private byte[] binary;
+
+    public SharedFrame(Frame frame) {
+        this.frame = frame;
+    }
+
+    public String sender() {
+        return frame.sender();
+    }
+
+    // throws IllegalArgumentException like FrameCodec.encode
+    public synchronized byte[] encoded(FrameCodec codec) {
+        if (codec == FrameCodec.TEXT) {
+            if (text == null) text = codec.encode(frame);
+            return text;
+        }
+        if (codec == FrameCodec.BINARY) {
+            if (binary == null) binary = codec.encode(frame);
+            return binary;
+        }
+        return codec.encode(frame);
+    }
+}
@@ -8,7 +8,11 @@ public class SignUpFrame extends JFrame {
     private JPasswordField passwordField, confirmPasswordField;
     private JButton signUpButton;
 
-    public SignUpFrame() {
+    private final JFrame loginFrame;
+
+    // the server adds the user and signs them straight in, replacing loginFrame with the chat
+    public SignUpFrame(JFrame loginFrame) {
+        this.loginFrame = loginFrame;
         setTitle("LU-Connect Sign Up");
         setSize(300, 250);
         setDefaultCloseOperation(JFrame.DISPOSE_ON_CLOSE);
@@ -43,17 +47,17 @@ public class SignUpFrame extends JFrame {
                     JOptionPane.showMessageDialog(SignUpFrame.this, "Please fill all the fields correctly.");
                     return;
                 }
+                if(!Auth.validName(username)) {
+                    JOptionPane.showMessageDialog(SignUpFrame.this, "Usernames can't contain ':' or ','.");
+                    return;
+                }
                 if(!password.equals(confirmPassword)) {
                     JOptionPane.showMessageDialog(SignUpFrame.this, "Passwords do not match.");
                     return;
                 }
-                String hashedPassword = EncryptionUtils.sha256(password);
-                if(DatabaseManager.addUser(username, hashedPassword)) {
-                    JOptionPane.showMessageDialog(SignUpFrame.this, "User successfully registered.");
-                    dispose();
-                } else {
-                    JOptionPane.showMessageDialog(SignUpFrame.this, "Something went wrong.");
-                }
+                dispose();
+                loginFrame.dispose();
+                new ChatFrame(username, password, true).setVisible(true);
             }
         });
     }
@@ -0,0 +1,110 @@
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+// the original newline terminated protocol, "TYPE:field:...:payload" with the last part taking the rest of the line.
+// the Base64 payload stays bytes on the way through, only the type and fields become Strings
+public class TextCodec implements FrameCodec {
+    private static final byte[] NEWLINE = {'\n'};
+
+    public byte[] encode(Frame frame) {
+        return encode(frame, frame.type.payload ? frame.textPayload() : null);
+    }
+
+    public ByteBuffer[] encodeParts(Frame frame) {
+        ByteBuffer payload = frame.type.payload ? frame.textPayload() : null;
+        if (payload == null || payload.remaining() < GATHER_AT) {
+            return new ByteBuffer[]{ByteBuffer.wrap(encode(frame, payload))};
+        }
+        return new ByteBuffer[]{ByteBuffer.wrap(header(frame)), payload, ByteBuffer.wrap(NEWLINE)};
+    }
+
+    private static byte[] encode(Frame frame, ByteBuffer payload) {
+        if (frame.type == Frame.Type.UNKNOWN) {
+            return (frame.fields[0] + "\n").getBytes(StandardCharsets.UTF_8);
+        }
+        byte[] header = header(frame);
+        int payloadLength = payload == null ? 0 : payload.remaining();
+        byte[] out = Arrays.copyOf(header, header.length + payloadLength + 1);
+        if (payload != null) {
+            payload.get(out, header.length, payloadLength);
+        }
+        out[out.length - 1] = '\n';
+        return out;
+    }
+
+    // "TYPE:field:...:" up to the payload, or without the last ':' for a type that has none
+    private static byte[] header(Frame frame) {
+        StringBuilder line = new StringBuilder(frame.type.name());
+        for (String field : frame.fields) {
+            line.append(':').append(field);
+        }
+        if (frame.type.payload) {
+            line.append(':');
+        }
+        return line.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    public int frameLength(byte[] buffer, int start, int end, int scanFrom) {
+        for (int i = Math.max(start, scanFrom); i < end; i++) {
+            if (buffer[i] == '\n') {
+                return i - start + 1;
+            }
+        }
+        return -1;
+    }
+
+    public Frame decode(byte[] buffer, int start, int length, boolean owned) {
+        int end = start + length;
+        if (end > start && buffer[end - 1] == '\n') end--;
+        if (end > start && buffer[end - 1] == '\r') end--;
+        int typeEnd = indexOf(buffer, start, end);
+        Frame.Type type = typeEnd < 0 ? Frame.Type.UNKNOWN
+                : Frame.Type.byName(new String(buffer, start, typeEnd - start, StandardCharsets.US_ASCII));
+        if (type == Frame.Type.UNKNOWN) {
+            // lines outside the framed protocol, e.g. WAIT: or START, are kept whole
+            return unknown(buffer, start, end);
+        }
+        int parts = type.fields + (type.payload ? 1 : 0);
+        String[] fields = new String[type.fields];
+        int from = typeEnd + 1;
+        for (int i = 0; i < parts - 1; i++) {
+            int next = indexOf(buffer, from, end);
+            if (next < 0) {
+                // too few parts, the same lines the split(":", n) checks used to ignore
+                return unknown(buffer, start, end);
+            }
+            fields[i] = new String(buffer, from, next - from, StandardCharsets.UTF_8);
+            from = next + 1;
+        }
+        if (!type.payload) {
+            fields[parts - 1] = new String(buffer, from, end - from, StandardCharsets.UTF_8);
+            return new Frame(type, fields, null, null);
+        }
+        if (owned) {
+            return Frame.withText(type, fields, buffer, from, end - from);
+        }
+        return Frame.withText(type, fields, Arrays.copyOfRange(buffer, from, end), 0, end - from);
+    }
+
+    public static Frame parse(String line) {
+        byte[] bytes = line.getBytes(StandardCharsets.UTF_8);
+        return FrameCodec.TEXT.decode(bytes, 0, bytes.length, true);
+    }
+
+    public static String format(Frame frame) {
+        byte[] line = FrameCodec.TEXT.encode(frame);
+        return new String(line, 0, line.length - 1, StandardCharsets.UTF_8);
+    }
+
+    private static int indexOf(byte[] buffer, int from, int end) {
+        for (int i = from; i < end; i++) {
+            if (buffer[i] == ':') return i;
+        }
+        return -1;
+    }
+
+    private static Frame unknown(byte[] buffer, int start, int end) {
+        return new Frame(Frame.Type.UNKNOWN, new String[]{new String(buffer, start, end - start, StandardCharsets.UTF_8)}, null, null);
+    }
+}
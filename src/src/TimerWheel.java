@@ -0,0 +1,98 @@
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+// a hashed timer wheel: a ring of buckets, one per tick, and a single thread that wakes every tick and runs what is
+// due in that bucket. scheduling and cancelling are O(1) whatever the number of timeouts, so every connection can
+// have one without a thread or a timer each. timeouts fire up to a tick late and tasks run on the wheel's thread,
+// so they must not block
+public class TimerWheel {
+    public static class Timeout {
+        final Runnable task;
+        // full turns of the wheel left before it is due
+        long rounds;
+        volatile boolean cancelled;
+
+        Timeout(Runnable task, long rounds) {
+            this.task = task;
+            this.rounds = rounds;
+        }
+
+        public void cancel() {
+            cancelled = true;
+        }
+    }
+
+    private final long tickNanos;
+    private final List<Timeout>[] buckets;
+    // the tick the wheel thread will run next, buckets and tick are guarded by this
+    private long tick;
+    private final long started = System.nanoTime();
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public TimerWheel(String name, long tick, TimeUnit unit, int size) {
+        this.tickNanos = unit.toNanos(tick);
+        buckets = new List[size];
+        for (int i = 0; i < size; i++) {
+            buckets[i] = new ArrayList<>();
+        }
+        Thread thread = new Thread(this::run, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public Timeout schedule(Runnable task, long delay, TimeUnit unit) {
+        // rounded up, a timeout never fires early
+        long ticks = Math.max(1, (unit.toNanos(delay) + tickNanos - 1) / tickNanos);
+        synchronized (this) {
+            // the bucket for tick runs at the end of the current tick, so this one runs ticks after that
+            Timeout timeout = new Timeout(task, ticks / buckets.length);
+            buckets[(int) ((tick + ticks) % buckets.length)].add(timeout);
+            return timeout;
+        }
+    }
+
+    private void run() {
+        List<Timeout> due = new ArrayList<>();
+        while (true) {
+            long current;
+            synchronized (this) {
+                current = tick;
+            }
+            long sleep = started + (current + 1) * tickNanos - System.nanoTime();
+            if (sleep > 0) {
+                try {
+                    TimeUnit.NANOSECONDS.sleep(sleep);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+            synchronized (this) {
+                Iterator<Timeout> bucket = buckets[(int) (tick % buckets.length)].iterator();
+                while (bucket.hasNext()) {
+                    Timeout timeout = bucket.next();
+                    if (timeout.cancelled) {
+                        bucket.remove();
+                    } else if (timeout.rounds == 0) {
+                        due.add(timeout);
+                        bucket.remove();
+                    } else {
+                        timeout.rounds--;
+                    }
+                }
+                tick++;
+            }
+            // outside the lock, a task may schedule its next timeout
+            for (Timeout timeout : due) {
+                if (timeout.cancelled) continue;
+                try {
+                    timeout.task.run();
+                } catch (RuntimeException e) {
+                    e.printStackTrace();
+                }
+            }
+            due.clear();
+        }
+    }
+}